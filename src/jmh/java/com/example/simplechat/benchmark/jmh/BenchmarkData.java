@@ -0,0 +1,124 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.model.User;
+import com.example.simplechat.repository.FileMetadataRepository;
+import com.example.simplechat.repository.MessageLog;
+import com.example.simplechat.repository.MessageRepository;
+import com.example.simplechat.repository.UserRepository;
+import com.example.simplechat.service.MessageService;
+import com.example.simplechat.service.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic data sets for the benchmarks, wired without Spring so setup stays cheap.
+ *
+ * user{i} is friends with the next friendsPerUser users (wrapping around), logs in with token-{i}
+ * and receives every users-th message; every other message is still unread.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    static String username(int i) {
+        return "user" + i;
+    }
+
+    static String token(int i) {
+        return "token-" + i;
+    }
+
+    static User user(int i, int users, int friendsPerUser) {
+        User user = new User();
+        user.setUsername(username(i));
+        user.setPasswordHash("e10adc3949ba59abbe56e057f20f883e"); // 123456
+        List<String> friends = new ArrayList<>(friendsPerUser);
+        for (int f = 1; f <= Math.min(friendsPerUser, users - 1); f++) {
+            friends.add(username((i + f) % users));
+        }
+        user.setFriends(friends);
+        user.setAccessToken(token(i));
+        user.setAccessTokenExpiry(LocalDateTime.now().plusDays(1));
+        return user;
+    }
+
+    static Message message(int i, int users) {
+        Message message = new Message();
+        message.setId(UUID.randomUUID().toString());
+        message.setSender(username((i + 1) % users));
+        message.setReceiver(username(i % users));
+        message.setContent("Benchmark message " + i);
+        message.setTimestamp(LocalDateTime.now());
+        message.setRead(i % 2 == 0);
+        return message;
+    }
+
+    static UserRepository userRepository(Path dir, int users, int friendsPerUser) {
+        UserRepository repository = new UserRepository();
+        ReflectionTestUtils.setField(repository, "usersFile", dir.resolve("users.json").toFile());
+        for (int i = 0; i < users; i++) {
+            // index() directly: save() would rewrite users.json once per user
+            ReflectionTestUtils.invokeMethod(repository, "index", user(i, users, friendsPerUser));
+        }
+        return repository;
+    }
+
+    // persistence is a simplechat.messages.persistence mode. The log is not fsynced so its numbers show
+    // serialization cost, not the disk; segments are still forced (msync) on every commit.
+    static MessageRepository messageRepository(Path dir, String persistence, int messages, int users) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        List<Message> seed = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            seed.add(message(i, users));
+        }
+        Path messagesFile = dir.resolve("messages.json");
+        objectMapper.writeValue(messagesFile.toFile(), seed);
+
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", persistence);
+        ReflectionTestUtils.setField(repository, "fsyncPolicy", MessageLog.FsyncPolicy.NEVER);
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+
+    static UserService userService(UserRepository userRepository) {
+        UserService userService = new UserService();
+        ReflectionTestUtils.setField(userService, "userRepository", userRepository);
+        return userService;
+    }
+
+    static MessageService messageService(Path dir, MessageRepository messageRepository, UserService userService) {
+        MessageService messageService = new MessageService();
+        ReflectionTestUtils.setField(messageService, "messageRepository", messageRepository);
+        ReflectionTestUtils.setField(messageService, "userService", userService);
+        ReflectionTestUtils.setField(messageService, "fileMetadataRepository", new FileMetadataRepository());
+        ReflectionTestUtils.setField(messageService, "STORAGE_ROOT", dir.resolve("storage") + "/");
+        return messageService;
+    }
+
+    static void shutdown(MessageRepository repository) {
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.controller.ChatController;
+import com.example.simplechat.repository.MessageRepository;
+import com.example.simplechat.service.MessageService;
+import com.example.simplechat.service.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+
+// The controller hot paths through Spring MVC (argument binding, JSON rendering) without a socket
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatControllerBenchmark {
+
+    @Param({"1000", "100000"})
+    int messages;
+
+    @Param({"100", "10000"})
+    int users;
+
+    @Param({"10", "100"})
+    int friendsPerUser;
+
+    private Path dir;
+    private MessageRepository messageRepository;
+    private MockMvc mockMvc;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("simplechat-jmh");
+        messageRepository = BenchmarkData.messageRepository(dir, "log", messages, users);
+        UserService userService = BenchmarkData.userService(BenchmarkData.userRepository(dir, users, friendsPerUser));
+        MessageService messageService = BenchmarkData.messageService(dir, messageRepository, userService);
+
+        ChatController controller = new ChatController();
+        ReflectionTestUtils.setField(controller, "userService", userService);
+        ReflectionTestUtils.setField(controller, "messageService", messageService);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkData.shutdown(messageRepository);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getFriends() throws Exception {
+        return mockMvc.perform(get("/api/friends").header("Access-Token", BenchmarkData.token(next++ % users)))
+                .andReturn().getResponse();
+    }
+
+    @Benchmark
+    public MockHttpServletResponse sendMessage() throws Exception {
+        int receiver = next++ % users;
+        return mockMvc.perform(multipart("/api/send-message")
+                        .header("Access-Token", BenchmarkData.token((receiver + 1) % users))
+                        .param("receiver", BenchmarkData.username(receiver))
+                        .param("message", "Hello"))
+                .andReturn().getResponse();
+    }
+}
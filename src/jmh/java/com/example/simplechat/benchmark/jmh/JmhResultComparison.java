@@ -0,0 +1,72 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files (-rf json) from different builds.
+ *
+ * Prints every benchmark/parameter combination present in both with its relative change, and exits
+ * with status 1 if any got worse by more than the threshold, so a CI job can fail on it.
+ * "Worse" follows the mode: a higher time for avgt/sample/ss, a lower score for thrpt.
+ *
+ * Run with: mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.simplechat.benchmark.jmh.JmhResultComparison
+ *   -Dexec.args="baseline.json target/jmh-result.json 10"   (threshold in percent, default 10)
+ */
+public class JmhResultComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: JmhResultComparison <baseline.json> <current.json> [threshold-percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, JsonNode> baseline = load(new File(args[0]));
+        Map<String, JsonNode> current = load(new File(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-100s new%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+            double oldScore = before.path("primaryMetric").path("score").asDouble();
+            double newScore = after.path("primaryMetric").path("score").asDouble();
+            double change = oldScore == 0 ? 0 : (newScore - oldScore) / oldScore * 100;
+            boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+            boolean regression = higherIsBetter ? change < -threshold : change > threshold;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf("%-100s %12.3f -> %12.3f %s %+7.1f%%%s%n", entry.getKey(), oldScore, newScore,
+                    after.path("primaryMetric").path("scoreUnit").asText(), change, regression ? "  REGRESSION" : "");
+        }
+        System.out.printf("%d regression(s) over %.1f%%%n", regressions, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    // Key: benchmark name plus its parameters, e.g. "...UserServiceBenchmark.isFriend {friendsPerUser=10, users=1000}"
+    private static Map<String, JsonNode> load(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            Map<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                params.put(field.getKey(), field.getValue().asText());
+            }
+            results.put(result.path("benchmark").asText() + " " + params, result);
+        }
+        return results;
+    }
+}
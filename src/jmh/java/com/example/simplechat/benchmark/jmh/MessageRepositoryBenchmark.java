@@ -0,0 +1,74 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.repository.MessageRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Unread lookup, history paging and persistence cost of MessageRepository as the message count grows
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageRepositoryBenchmark {
+
+    @Param({"1000", "100000"})
+    int messages;
+
+    @Param({"100", "10000"})
+    int users;
+
+    @Param({"json", "log", "segments"})
+    String persistence;
+
+    private Path dir;
+    private MessageRepository repository;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("simplechat-jmh");
+        repository = BenchmarkData.messageRepository(dir, persistence, messages, users);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.shutdown(repository);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public List<Message> findUnreadMessagesForUser() {
+        return repository.findUnreadMessagesForUser(BenchmarkData.username(next++ % users));
+    }
+
+    // Newest page of one conversation; should not depend on the message count
+    @Benchmark
+    public List<Message> findConversationPage() {
+        int user = next++ % users;
+        return repository.findConversationPage(BenchmarkData.username(user), BenchmarkData.username((user + 1) % users), null, 50);
+    }
+
+    // Grows the data set by one message per call; json mode rewrites the whole file each time
+    @Benchmark
+    public void save() {
+        repository.save(BenchmarkData.message(messages + next++, users));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.repository.MessageRepository;
+import com.example.simplechat.service.MessageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// sendMessage end to end (friend check, persistence, queueing) and the receiving side
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageServiceBenchmark {
+
+    @Param({"1000", "100000"})
+    int messages;
+
+    @Param({"100", "10000"})
+    int users;
+
+    @Param({"10", "100"})
+    int friendsPerUser;
+
+    @Param({"json", "log"})
+    String persistence;
+
+    private Path dir;
+    private MessageRepository messageRepository;
+    private MessageService messageService;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("simplechat-jmh");
+        messageRepository = BenchmarkData.messageRepository(dir, persistence, messages, users);
+        messageService = BenchmarkData.messageService(dir, messageRepository,
+                BenchmarkData.userService(BenchmarkData.userRepository(dir, users, friendsPerUser)));
+    }
+
+    // sendMessage() leaves every message queued for its receiver
+    @TearDown(Level.Iteration)
+    public void drainQueues() {
+        ((Map<?, ?>) ReflectionTestUtils.getField(messageService, "messageQueues")).clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.shutdown(messageRepository);
+        BenchmarkData.delete(dir);
+    }
+
+    // user{i+1} is one of user{i}'s friends
+    @Benchmark
+    public int sendMessage() {
+        int receiver = next++ % users;
+        return messageService.sendMessage(BenchmarkData.username((receiver + 1) % users),
+                BenchmarkData.username(receiver), "Hello", null);
+    }
+
+    // One send followed by the receiver collecting and acknowledging it, so neither queues nor
+    // unacknowledged messages grow across iterations
+    @Benchmark
+    public List<Message> sendAndReceive() {
+        int receiver = next++ % users;
+        String receiverName = BenchmarkData.username(receiver);
+        messageService.sendMessage(BenchmarkData.username((receiver + 1) % users), receiverName, "Hello", null);
+        List<Message> received = messageService.getNewMessages(receiverName);
+        if (!received.isEmpty()) {
+            messageService.acknowledge(receiverName, received.get(received.size() - 1).getSeq());
+        }
+        return received;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.repository.MessageRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * messages.json against messages.bin at a million messages: the full rewrite a json or binary
+ * mode commit does, and the startup load (parse plus building the repository's indexes).
+ * The file size is printed once per trial.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec -Djmh.include=SnapshotFormatBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotFormatBenchmark {
+
+    @Param({"1000000"})
+    int messages;
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"json", "binary"})
+    String persistence;
+
+    private Path dir;
+    private MessageRepository repository;
+    private MessageRepository loaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("simplechat-jmh");
+        repository = BenchmarkData.messageRepository(dir, persistence, messages, users);
+        // BenchmarkData seeds compact JSON; rewrite it the way the repository itself writes it
+        write();
+        Path file = dir.resolve("binary".equals(persistence) ? "messages.bin" : "messages.json");
+        System.out.printf("%s: %,d bytes for %,d messages%n", file.getFileName(), Files.size(file), messages);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeLoaded() {
+        if (loaded != null) {
+            BenchmarkData.shutdown(loaded);
+            loaded = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.shutdown(repository);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void write() {
+        // An empty batch: json and binary modes rewrite the whole file whatever the batch holds
+        ReflectionTestUtils.invokeMethod(repository, "writeBatch", List.of());
+    }
+
+    @Benchmark
+    public MessageRepository load() {
+        loaded = new MessageRepository();
+        ReflectionTestUtils.setField(loaded, "persistenceMode", persistence);
+        ReflectionTestUtils.setField(loaded, "messagesFile", dir.resolve("messages.json").toFile());
+        ReflectionTestUtils.invokeMethod(loaded, "load");
+        return loaded;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.simplechat.benchmark.jmh;
+
+import com.example.simplechat.model.User;
+import com.example.simplechat.service.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Per-request user lookups: every authenticated endpoint validates a token, every send checks friendship
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UserServiceBenchmark {
+
+    @Param({"1000", "100000"})
+    int users;
+
+    @Param({"10", "500"})
+    int friendsPerUser;
+
+    private Path dir;
+    private UserService userService;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("simplechat-jmh");
+        userService = BenchmarkData.userService(BenchmarkData.userRepository(dir, users, friendsPerUser));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public Optional<User> validateAccessToken() {
+        return userService.validateAccessToken(BenchmarkData.token(next++ % users));
+    }
+
+    // The sender is the receiver's last friend, the worst case for a list scan
+    @Benchmark
+    public boolean isFriend() {
+        int receiver = next++ % users;
+        int sender = (receiver + Math.min(friendsPerUser, users - 1)) % users;
+        return userService.isFriend(BenchmarkData.username(sender), BenchmarkData.username(receiver));
+    }
+
+    @Benchmark
+    public List<String> getFriends() {
+        return userService.getFriends(BenchmarkData.username(next++ % users));
+    }
+}
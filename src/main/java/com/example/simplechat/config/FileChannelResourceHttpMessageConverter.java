@@ -0,0 +1,47 @@
+package com.example.simplechat.config;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes file-backed resources from a FileChannel, through the same transfer as the region converter.
+ * Other resources go through the default path.
+ *
+ * This is not zero-copy: the servlet output stream is not a socket channel, so transferTo falls
+ * back to copying through a buffer, much like the default InputStream path.
+ */
+public class FileChannelResourceHttpMessageConverter extends ResourceHttpMessageConverter {
+
+    @Override
+    protected void writeContent(Resource resource, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        if (!resource.isFile()) {
+            super.writeContent(resource, outputMessage);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            transfer(file, 0, file.size(), outputMessage);
+        }
+    }
+
+    // Copies count bytes from position on, without reading what comes before them
+    static void transfer(FileChannel file, long position, long count, HttpOutputMessage outputMessage) throws IOException {
+        WritableByteChannel out = Channels.newChannel(outputMessage.getBody());
+        long end = position + count;
+        while (position < end) {
+            long n = file.transferTo(position, end - position, out);
+            if (n <= 0) {
+                break; // File was truncated under us
+            }
+            position += n;
+        }
+        outputMessage.getBody().flush();
+    }
+}
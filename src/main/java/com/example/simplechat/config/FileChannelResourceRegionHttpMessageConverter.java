@@ -0,0 +1,40 @@
+package com.example.simplechat.config;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-range (206) responses for file-backed resources, read from the range's offset in a
+ * FileChannel instead of skipping through an InputStream. Multipart ranges keep the default path.
+ * The bytes are still copied into the response stream (see FileChannelResourceHttpMessageConverter).
+ */
+public class FileChannelResourceRegionHttpMessageConverter extends ResourceRegionHttpMessageConverter {
+
+    @Override
+    protected void writeResourceRegion(ResourceRegion region, HttpOutputMessage outputMessage) throws IOException {
+        Resource resource = region.getResource();
+        if (!resource.isFile()) {
+            super.writeResourceRegion(region, outputMessage);
+            return;
+        }
+
+        // Same headers as the default implementation
+        long start = region.getPosition();
+        long end = start + region.getCount() - 1;
+        long resourceLength = resource.contentLength();
+        end = Math.min(end, resourceLength - 1);
+        long rangeLength = end - start + 1;
+        outputMessage.getHeaders().add("Content-Range", "bytes " + start + '-' + end + '/' + resourceLength);
+        outputMessage.getHeaders().setContentLength(rangeLength);
+
+        try (FileChannel file = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+            FileChannelResourceHttpMessageConverter.transfer(file, start, rangeLength, outputMessage);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.simplechat.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    // File downloads (/api/files) return Resources; swap in the converters that read them from a FileChannel
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        for (int i = 0; i < converters.size(); i++) {
+            HttpMessageConverter<?> converter = converters.get(i);
+            if (converter.getClass() == ResourceHttpMessageConverter.class) {
+                converters.set(i, new FileChannelResourceHttpMessageConverter());
+            } else if (converter.getClass() == ResourceRegionHttpMessageConverter.class) {
+                converters.set(i, new FileChannelResourceRegionHttpMessageConverter());
+            }
+        }
+    }
+}
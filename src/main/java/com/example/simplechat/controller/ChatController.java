@@ -1,14 +1,21 @@
 package com.example.simplechat.controller;
 
+import com.example.simplechat.model.FileMetadata;
 import com.example.simplechat.model.Message;
+import com.example.simplechat.model.UploadSession;
 import com.example.simplechat.model.User;
 import com.example.simplechat.service.MessageService;
+import com.example.simplechat.service.PushService;
+import com.example.simplechat.service.UploadService;
 import com.example.simplechat.service.UserService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import jakarta.annotation.PostConstruct;
-import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -16,21 +23,21 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
-import java.time.LocalDateTime;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @RestController
 @RequestMapping("/api")
@@ -42,40 +49,38 @@ public class ChatController {
     @Autowired
     private MessageService messageService;
 
-    // Map to hold long-polling requests
-    // Key: username, Value: DeferredResult for their pending messages
-    private final ConcurrentHashMap<String, DeferredResult<List<Message>>> longPollingRequests = new ConcurrentHashMap<>();
+    @Autowired
+    private PushService pushService;
 
-    // A scheduler to check for messages periodically and resolve DeferredResult
-    private final java.util.concurrent.ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    @Autowired
+    private UploadService uploadService;
 
-    // Initialize scheduler to check for new messages every 100ms
-    // In a real system, you would use a messaging queue or more direct notification.
-    @PostConstruct
-    private void setupScheduler() {
-        scheduler.scheduleAtFixedRate(() -> {
-            longPollingRequests.forEach((username, deferredResult) -> {
-                // Check if the user is still online (has an active long polling request)
-                if (!deferredResult.isSetOrExpired()) {
-                    List<Message> newMessages = messageService.getNewMessages(username);
-                    if (!newMessages.isEmpty()) {
-                        deferredResult.setResult(newMessages);
-                        longPollingRequests.remove(username); // Request resolved
-                    }
-                } else {
-                    // Remove expired requests
-                    longPollingRequests.remove(username);
-                    userService.setOnlineStatus(username, false); // Mark user as offline if request expires
-                }
-            });
-        }, 0, 100, TimeUnit.MILLISECONDS); // Check every 100ms
-    }
+    // Map to hold long-polling requests
+    // Key: username, Value: their parked requests, one per session (device, tab)
+    private final ConcurrentHashMap<String, ParkedPolls> longPollingRequests = new ConcurrentHashMap<>();
 
-    @PreDestroy
-    private void cleanupScheduler() {
-        scheduler.shutdown();
+    // One user's parked long polls. They share one message listener, and a wake-up fetches the new
+    // messages once and completes every request with them.
+    private static final class ParkedPolls {
+        final Set<DeferredResult<List<Message>>> requests = ConcurrentHashMap.newKeySet();
+        // Keeps a timeout from completing a request that a wake-up is completing
+        final ReentrantLock lock = new ReentrantLock();
+        Runnable listener;
     }
 
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    @PostConstruct
+    private void registerGauges() {
+        Gauge.builder("simplechat.longpoll.requests", longPollingRequests, polls -> polls.values().stream().mapToInt(p -> p.requests.size()).sum())
+                .description("Parked long-poll requests")
+                .register(meterRegistry);
+        Gauge.builder("simplechat.longpoll.users", longPollingRequests, Map::size)
+                .description("Users with a parked long-poll request")
+                .register(meterRegistry);
+    }
 
     @PostMapping("/login")
     public ResponseEntity<?> login(@RequestBody Map<String, String> payload) {
@@ -93,6 +98,23 @@ public class ChatController {
         return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid credentials.");
     }
 
+    // Revokes the calling token at once, or with all=true every token of the user (all devices)
+    @PostMapping("/logout")
+    public ResponseEntity<?> logout(
+            @RequestHeader("Access-Token") String accessToken,
+            @RequestParam(value = "all", defaultValue = "false") boolean all) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        if (all) {
+            userService.logoutAll(userOptional.get().getUsername());
+        } else {
+            userService.logout(accessToken);
+        }
+        return ResponseEntity.noContent().build();
+    }
+
     @GetMapping("/friends")
     public ResponseEntity<?> getFriends(@RequestHeader("Access-Token") String accessToken) {
         Optional<User> userOptional = userService.validateAccessToken(accessToken);
@@ -104,6 +126,41 @@ public class ChatController {
         return ResponseEntity.ok().body(Map.of("friends", friends));
     }
 
+    // Adds {friend} to the caller's friend list, which lets {friend} message the caller.
+    // Returns the updated list; 404 if no such user, 409 if already listed (or the caller themself).
+    @PostMapping("/friends/{friend}")
+    public ResponseEntity<?> addFriend(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String friend) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        String username = userOptional.get().getUsername();
+        if (!userService.userExists(friend)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("User not found.");
+        }
+        if (!userService.addFriend(username, friend)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Already a friend.");
+        }
+        return ResponseEntity.ok().body(Map.of("friends", userService.getFriends(username)));
+    }
+
+    @DeleteMapping("/friends/{friend}")
+    public ResponseEntity<?> removeFriend(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String friend) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        String username = userOptional.get().getUsername();
+        if (!userService.removeFriend(username, friend)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Not a friend.");
+        }
+        return ResponseEntity.ok().body(Map.of("friends", userService.getFriends(username)));
+    }
+
     @PostMapping(value = "/send-message", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.MULTIPART_FORM_DATA_VALUE})
     public ResponseEntity<?> sendMessage(
             @RequestHeader("Access-Token") String accessToken,
@@ -121,8 +178,55 @@ public class ChatController {
             return ResponseEntity.badRequest().body("Message content or file is required.");
         }
 
+        long retryAfterMs = messageService.acquireSendPermit(sender.getUsername());
+        if (retryAfterMs > 0) {
+            return tooManyRequests(retryAfterMs);
+        }
+
         int status = messageService.sendMessage(sender.getUsername(), receiver, messageContent, file);
+        return sendStatusResponse(status);
+    }
+
+    // Fan-out: one text or file payload to many receivers (repeated or comma-separated "receivers").
+    // The file is uploaded and stored once. The body maps each receiver to its status (1, 2, 3 or -1).
+    @PostMapping(value = "/send-multicast", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.MULTIPART_FORM_DATA_VALUE})
+    public ResponseEntity<?> sendMulticast(
+            @RequestHeader("Access-Token") String accessToken,
+            @RequestParam("receivers") List<String> receivers,
+            @RequestParam(value = "message", required = false) String messageContent,
+            @RequestPart(value = "file", required = false) MultipartFile file
+    ) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+
+        if (messageContent == null && (file == null || file.isEmpty())) {
+            return ResponseEntity.badRequest().body("Message content or file is required.");
+        }
+
+        // One token per request: the receivers share one stored payload and one group commit
+        long retryAfterMs = messageService.acquireSendPermit(userOptional.get().getUsername());
+        if (retryAfterMs > 0) {
+            return tooManyRequests(retryAfterMs);
+        }
 
+        try {
+            Map<String, Integer> statuses = messageService.sendMulticast(userOptional.get().getUsername(), receivers, messageContent, file);
+            return ResponseEntity.ok().body(Map.of("statuses", statuses));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // 429 with Retry-After in whole seconds, rounded up; the body has the exact wait
+    private ResponseEntity<?> tooManyRequests(long retryAfterMs) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf((retryAfterMs + 999) / 1000))
+                .body(Map.of("message", "Sending too fast, retry later.", "retryAfterMs", retryAfterMs));
+    }
+
+    private ResponseEntity<?> sendStatusResponse(int status) {
         switch (status) {
             case 1: return ResponseEntity.ok().body(Map.of("status", 1, "message", "Message sent, receiver online."));
             case 2: return ResponseEntity.ok().body(Map.of("status", 2, "message", "Message queued, receiver offline."));
@@ -131,8 +235,146 @@ public class ChatController {
         }
     }
 
+    // Chunked, resumable uploads for large files: POST /uploads, PUT each chunk (any order,
+    // GET /uploads/{id} lists the ones still missing after a dropped connection), then POST .../complete
+    @PostMapping("/uploads")
+    public ResponseEntity<?> startUpload(
+            @RequestHeader("Access-Token") String accessToken,
+            @RequestBody Map<String, Object> payload) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+
+        Object receiver = payload.get("receiver");
+        Object fileName = payload.get("fileName");
+        Object size = payload.get("size");
+        if (receiver == null || fileName == null || !(size instanceof Number)) {
+            return ResponseEntity.badRequest().body("Receiver, fileName and size are required.");
+        }
+
+        try {
+            UploadSession upload = uploadService.startUpload(userOptional.get().getUsername(), receiver.toString(),
+                    fileName.toString(), ((Number) size).longValue());
+            if (upload == null) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("status", 3, "message", "Sender not in receiver's friend list."));
+            }
+            return ResponseEntity.ok().body(uploadStatus(upload));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error starting upload: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<?> getUpload(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String uploadId) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        UploadSession upload = uploadService.getUpload(uploadId, userOptional.get().getUsername());
+        if (upload == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok().body(uploadStatus(upload));
+    }
+
+    // The body is the raw chunk (application/octet-stream), streamed to disk without multipart parsing
+    @PutMapping("/uploads/{uploadId}/chunks/{index}")
+    public ResponseEntity<?> uploadChunk(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String uploadId,
+            @PathVariable int index,
+            InputStream body) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        UploadSession upload = uploadService.getUpload(uploadId, userOptional.get().getUsername());
+        if (upload == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        try {
+            uploadService.writeChunk(upload, index, body);
+            return ResponseEntity.ok().body(Map.of("uploadId", uploadId, "chunk", index, "remaining", upload.getMissingChunks().size()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error writing upload chunk: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<?> completeUpload(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String uploadId) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        UploadSession upload = uploadService.getUpload(uploadId, userOptional.get().getUsername());
+        if (upload == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        // An upload that can't complete yet is answered before taking a send token
+        if (!upload.isReadyToComplete()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(uploadStatus(upload));
+        }
+        // Completing sends the file message, so it takes a send token; the upload stays for a retry
+        long retryAfterMs = messageService.acquireSendPermit(userOptional.get().getUsername());
+        if (retryAfterMs > 0) {
+            return tooManyRequests(retryAfterMs);
+        }
+
+        try {
+            return sendStatusResponse(uploadService.completeUpload(upload));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(uploadStatus(upload));
+        } catch (IOException e) {
+            System.err.println("Error completing upload: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("status", -1, "message", "Error sending message."));
+        }
+    }
+
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<?> cancelUpload(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String uploadId) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        UploadSession upload = uploadService.getUpload(uploadId, userOptional.get().getUsername());
+        if (upload == null || !uploadService.cancelUpload(upload)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    private Map<String, Object> uploadStatus(UploadSession upload) {
+        return Map.of(
+                "uploadId", upload.getUploadId(),
+                "size", upload.getSize(),
+                "chunkSize", upload.getChunkSize(),
+                "chunkCount", upload.getChunkCount(),
+                "missingChunks", upload.getMissingChunks());
+    }
+
+    // Returns the messages not yet acknowledged, so the same ones come back until they are:
+    // pass the seq of the last one processed as "ack" on the next poll, or use /ack
     @GetMapping("/get-new-messages")
-    public DeferredResult<List<Message>> getNewMessages(@RequestHeader("Access-Token") String accessToken) {
+    public DeferredResult<List<Message>> getNewMessages(
+            @RequestHeader("Access-Token") String accessToken,
+            @RequestParam(value = "ack", required = false) Long ack) {
         DeferredResult<List<Message>> deferredResult = new DeferredResult<>(10000L, Collections.emptyList()); // 10 seconds timeout, empty list on timeout
 
         Optional<User> userOptional = userService.validateAccessToken(accessToken);
@@ -142,34 +384,167 @@ public class ChatController {
         }
         User currentUser = userOptional.get();
         String username = currentUser.getUsername();
+        if (ack != null && ack > 0) {
+            messageService.acknowledge(username, ack);
+        }
 
-        userService.setOnlineStatus(username, true); // Mark user as online for long polling
+        userService.setOnlineStatus(username, true); // Renews the presence lease, which outlasts the gap between polls
 
         // First, check for any immediate messages
         List<Message> immediateMessages = messageService.getNewMessages(username);
         if (!immediateMessages.isEmpty()) {
             deferredResult.setResult(immediateMessages);
-            userService.setOnlineStatus(username, false); // Mark offline if all messages delivered immediately
         } else {
-            // No immediate messages, put the request into the map for long polling
-            longPollingRequests.put(username, deferredResult);
+            // No immediate messages: park the request next to the user's other sessions and let
+            // MessageService wake them up as soon as a message for this user is accepted
+            park(username, deferredResult);
 
             // Set a completion handler to remove the request when it's done (either by timeout or by result)
-            deferredResult.onCompletion(() -> {
-                longPollingRequests.remove(username);
-                userService.setOnlineStatus(username, false); // Mark offline after completion
-            });
+            deferredResult.onCompletion(() -> unpark(username, deferredResult));
 
             // Set a timeout handler
             deferredResult.onTimeout(() -> {
-                longPollingRequests.remove(username);
-                userService.setOnlineStatus(username, false); // Mark offline on timeout
-                deferredResult.setResult(Collections.emptyList());
+                ParkedPolls polls = longPollingRequests.get(username);
+                if (polls != null) {
+                    polls.lock.lock();
+                }
+                try {
+                    deferredResult.setResult(Collections.emptyList());
+                } finally {
+                    if (polls != null) {
+                        polls.lock.unlock();
+                    }
+                }
+                unpark(username, deferredResult);
             });
+
+            // A message may have been accepted between the first check and registering the listener
+            deliverNewMessages(username);
         }
         return deferredResult;
     }
 
+    private void park(String username, DeferredResult<List<Message>> deferredResult) {
+        longPollingRequests.compute(username, (k, polls) -> {
+            if (polls == null) {
+                polls = new ParkedPolls();
+                polls.listener = () -> deliverNewMessages(username);
+                messageService.addMessageListener(username, polls.listener);
+            }
+            polls.requests.add(deferredResult);
+            return polls;
+        });
+    }
+
+    // Idempotent: runs on completion, and earlier for requests a wake-up completed
+    private void unpark(String username, DeferredResult<List<Message>> deferredResult) {
+        longPollingRequests.computeIfPresent(username, (k, polls) -> {
+            polls.requests.remove(deferredResult);
+            if (!polls.requests.isEmpty()) {
+                return polls;
+            }
+            messageService.removeMessageListener(username, polls.listener);
+            return null;
+        });
+    }
+
+    // Keeps the caller online between polls, or while a client is idle without polling
+    @PostMapping("/heartbeat")
+    public ResponseEntity<?> heartbeat(@RequestHeader("Access-Token") String accessToken) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        userService.setOnlineStatus(userOptional.get().getUsername(), true);
+        return ResponseEntity.noContent().build();
+    }
+
+    // Online status of everyone in the caller's friend list, in one call
+    @GetMapping("/friends/presence")
+    public ResponseEntity<?> getFriendsPresence(@RequestHeader("Access-Token") String accessToken) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        List<String> friends = userService.getFriends(userOptional.get().getUsername());
+        return ResponseEntity.ok().body(Map.of("presence", userService.getPresence(friends)));
+    }
+
+    // Acknowledges every message up to and including seq "cursor", so it isn't delivered again.
+    // Returns the user's delivery cursor, which only moves forward.
+    @PostMapping("/ack")
+    public ResponseEntity<?> acknowledge(
+            @RequestHeader("Access-Token") String accessToken,
+            @RequestParam("cursor") long cursor) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        try {
+            return ResponseEntity.ok().body(Map.of("cursor", messageService.acknowledge(userOptional.get().getUsername(), cursor)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Conversation history, newest page first: pass the returned nextCursor as "before" to scroll back
+    @GetMapping("/conversations/{friend}/messages")
+    public ResponseEntity<?> getConversation(
+            @RequestHeader("Access-Token") String accessToken,
+            @PathVariable String friend,
+            @RequestParam(value = "before", required = false) String before,
+            @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid or expired access token.");
+        }
+        try {
+            return ResponseEntity.ok().body(messageService.getConversation(userOptional.get().getUsername(), friend, before, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Persistent push channel. The token is checked once when the stream opens; browsers' EventSource
+    // can't set headers, so it may also come as a query parameter. /get-new-messages stays as the fallback.
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> stream(
+            @RequestHeader(value = "Access-Token", required = false) String accessToken,
+            @RequestParam(value = "accessToken", required = false) String accessTokenParam) {
+        Optional<User> userOptional = userService.validateAccessToken(accessToken != null ? accessToken : accessTokenParam);
+        if (userOptional.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        return ResponseEntity.ok(pushService.connect(userOptional.get().getUsername()));
+    }
+
+    // Runs on the sender's thread. One fetch serves every parked session of the user, since
+    // messages stay unacknowledged until a client acks them (see MessageService.getNewMessages).
+    private void deliverNewMessages(String username) {
+        ParkedPolls polls = longPollingRequests.get(username);
+        if (polls == null) {
+            return;
+        }
+        List<DeferredResult<List<Message>>> waiting;
+        polls.lock.lock();
+        try {
+            waiting = polls.requests.stream().filter(r -> !r.isSetOrExpired()).toList();
+            if (waiting.isEmpty()) {
+                return;
+            }
+            List<Message> newMessages = messageService.getNewMessages(username);
+            if (newMessages.isEmpty()) {
+                return;
+            }
+            waiting.forEach(r -> r.setResult(newMessages));
+        } finally {
+            polls.lock.unlock();
+        }
+        waiting.forEach(r -> unpark(username, r));
+    }
+
+    // Range, If-None-Match and If-Modified-Since are handled by Spring from the ETag and Last-Modified
+    // set here (206 / 304); the body is written from a FileChannel (see config.WebConfig)
     @GetMapping("/files/{filename}")
     public ResponseEntity<Resource> downloadFile(
             @RequestHeader("Access-Token") String accessToken,
@@ -188,15 +563,24 @@ public class ChatController {
 
             Resource resource = new UrlResource(filePath.toUri());
 
-            String contentType = Files.probeContentType(filePath);
+            FileMetadata metadata = messageService.getFileMetadata(filename, filePath);
+            String contentType = metadata != null ? metadata.getContentType() : Files.probeContentType(filePath);
             if(contentType == null) {
                 contentType = "application/octet-stream"; // Default if type cannot be determined
             }
 
-            return ResponseEntity.ok()
+            // Stored under the content hash; the user's message has the name it was sent with
+            String attachmentName = messageService.getAttachmentName(filename, userOptional.get().getUsername());
+            ContentDisposition disposition = ContentDisposition.attachment()
+                    .filename(attachmentName != null ? attachmentName : resource.getFilename(), StandardCharsets.UTF_8)
+                    .build();
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                     .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
-                    .body(resource);
+                    .header(HttpHeaders.CONTENT_DISPOSITION, disposition.toString());
+            if (metadata != null) {
+                response.eTag(metadata.getSha256()).lastModified(metadata.getLastModified());
+            }
+            return response.body(resource);
         } catch (MalformedURLException e) {
             return ResponseEntity.badRequest().build();
         } catch (IOException e) {
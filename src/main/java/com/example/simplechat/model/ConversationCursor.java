@@ -0,0 +1,35 @@
+package com.example.simplechat.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+// Position in a conversation's history: just before the message with this timestamp and id.
+// Clients get it as an opaque string, which stays valid however many messages arrive later.
+public record ConversationCursor(LocalDateTime timestamp, String id) {
+
+    public static ConversationCursor of(Message message) {
+        return new ConversationCursor(message.getTimestamp(), message.getId());
+    }
+
+    public String encode() {
+        String value = (timestamp == null ? "" : timestamp.toString()) + "|" + (id == null ? "" : id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Throws IllegalArgumentException if the string isn't a cursor
+    public static ConversationCursor decode(String cursor) {
+        String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        int separator = value.indexOf('|');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+        try {
+            LocalDateTime timestamp = separator == 0 ? null : LocalDateTime.parse(value.substring(0, separator));
+            return new ConversationCursor(timestamp, value.substring(separator + 1));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor.", e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.simplechat.model;
+
+import lombok.Getter;
+
+import java.util.List;
+
+// One page of a conversation's history, oldest message first. nextCursor asks for the page before
+// this one and is null once the start of the conversation is reached.
+@Getter
+public class ConversationPage {
+
+    private final List<Message> messages;
+    private final String nextCursor;
+
+    public ConversationPage(List<Message> messages, String nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+}
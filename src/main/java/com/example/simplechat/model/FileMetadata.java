@@ -0,0 +1,22 @@
+package com.example.simplechat.model;
+
+import lombok.Data;
+
+import java.util.Map;
+
+// Recorded once when a file is stored, so downloads don't hash or probe the file again
+@Data
+public class FileMetadata {
+    private String fileName; // Name under STORAGE_ROOT
+    private long size;
+    private String contentType;
+    private String sha256; // Hex content hash, served as the strong ETag
+    private long lastModified; // Epoch millis of the stored file
+    // References held for messages sent to users on other nodes: those nodes link here, and no local
+    // message holds the reference for them
+    private int routedReferences;
+    private long lastRoutedMillis;
+    // Key: username, Value: the name the file was sent to or by them under. Identical uploads share the
+    // blob, so the name depends on who asks. Replaced, not changed, when names are added.
+    private Map<String, String> namesByUser = Map.of();
+}
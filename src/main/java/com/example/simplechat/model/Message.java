@@ -10,6 +10,9 @@ public class Message {
     private String receiver;
     private String content; // Text message
     private String fileLink; // File message
+    private String fileName; // Original name of the attached file
     private LocalDateTime timestamp;
     private boolean read;
+    // Assigned by the repository on save, increasing in save order; clients ack up to it
+    private long seq;
 }
\ No newline at end of file
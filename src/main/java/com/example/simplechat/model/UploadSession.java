@@ -0,0 +1,131 @@
+package com.example.simplechat.model;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A chunked upload in progress. Chunks are written in place into partFile, so they may arrive
+// in any order and a client that lost its connection only re-sends the chunks still missing.
+@Getter
+public class UploadSession {
+
+    private final String uploadId;
+    private final String sender;
+    private final String receiver;
+    private final String fileName;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Path partFile;
+    private volatile long lastActivityMillis;
+    private volatile boolean completed;
+
+    @Getter(AccessLevel.NONE)
+    private int writesInFlight;
+
+    @Getter(AccessLevel.NONE)
+    private final BitSet receivedChunks = new BitSet();
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public UploadSession(String uploadId, String sender, String receiver, String fileName, long size, int chunkSize, Path partFile) {
+        this.uploadId = uploadId;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = Math.toIntExact(Math.max(1, Math.ceilDiv(size, chunkSize))); // ArithmeticException past Integer.MAX_VALUE
+        this.partFile = partFile;
+        this.lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public long chunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    // The last chunk is usually short
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, size - chunkOffset(index));
+    }
+
+    // Registers a chunk write about to start; false once the upload is being completed
+    public boolean beginWrite() {
+        lock.lock();
+        try {
+            if (completed) {
+                return false;
+            }
+            writesInFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ends a write started with beginWrite, marking the chunk received if it was written whole
+    public void endWrite(int index, boolean received) {
+        lock.lock();
+        try {
+            writesInFlight--;
+            if (received) {
+                markReceived(index);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void markReceived(int index) {
+        lock.lock();
+        try {
+            receivedChunks.set(index);
+            lastActivityMillis = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Integer> getMissingChunks() {
+        lock.lock();
+        try {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = receivedChunks.nextClearBit(0); i < chunkCount; i = receivedChunks.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether markCompleted would succeed now
+    public boolean isReadyToComplete() {
+        lock.lock();
+        try {
+            return !completed && writesInFlight == 0 && receivedChunks.nextClearBit(0) >= chunkCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Claims the upload for completion; false if chunks are missing, a chunk is still being written
+    // or it was already completed. From then on beginWrite refuses, so the part file stays as it is.
+    public boolean markCompleted() {
+        lock.lock();
+        try {
+            if (!isReadyToComplete()) {
+                return false;
+            }
+            completed = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.model.User;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary snapshot of all users or all messages, the alternative to the pretty-printed
+ * JSON files.
+ *
+ * Layout: magic "SCSN", format version, kind ('U' or 'M'), record count, then the records.
+ * Integers are unsigned LEB128 varints. Usernames are dictionary-encoded inline: the first
+ * occurrence is written out and numbered, later ones are just that number. Timestamps are UTC
+ * epoch seconds, each stored as the zig-zag delta from the previous one, plus the sub-second
+ * part; message sequence numbers are zig-zag deltas too. UUID ids and tokens take 16 bytes and
+ * attachment blob names 32. Version 1 files (no sequence numbers) are still read.
+ *
+ * Files are written to a temporary sibling and moved into place, and read as a stream: records
+ * are handed to the consumer one by one, nothing but a fixed-size I/O buffer is held. Reader and
+ * Writer manage that buffer themselves; going through Data*Stream and Buffered*Stream costs a
+ * lock acquisition per byte, which made up most of the time at a million messages.
+ */
+public final class BinarySnapshot {
+
+    private static final byte[] MAGIC = {'S', 'C', 'S', 'N'};
+    private static final int VERSION = 2;
+    private static final byte KIND_USERS = 'U';
+    private static final byte KIND_MESSAGES = 'M';
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Message flags
+    private static final int READ = 1;
+    private static final int ID_UUID = 1 << 1;
+    private static final int HAS_CONTENT = 1 << 2;
+    private static final int HAS_FILE_LINK = 1 << 3;
+    private static final int FILE_LINK_BLOB = 1 << 4; // "/files/<hash>", written as the 32 hash bytes
+    private static final String BLOB_LINK_PREFIX = "/files/";
+    private static final int HAS_FILE_NAME = 1 << 5;
+    private static final int HAS_TIMESTAMP = 1 << 6;
+    private static final int HAS_SEQ = 1 << 7;
+
+    // User flags
+    private static final int HAS_PASSWORD_HASH = 1;
+    private static final int HAS_FRIENDS = 1 << 1;
+    private static final int HAS_TOKEN = 1 << 2;
+    private static final int TOKEN_UUID = 1 << 3;
+    private static final int HAS_TOKEN_EXPIRY = 1 << 4;
+
+    private BinarySnapshot() {
+    }
+
+    // Returns the size of the written file in bytes
+    public static long writeMessages(Path file, Collection<Message> messages) throws IOException {
+        return write(file, KIND_MESSAGES, messages.size(), out -> {
+            for (Message message : messages) {
+                out.writeMessage(message);
+            }
+        });
+    }
+
+    // Returns the number of messages read
+    public static int readMessages(Path file, Consumer<Message> consumer) throws IOException {
+        return read(file, KIND_MESSAGES, in -> consumer.accept(in.readMessage()));
+    }
+
+    public static long writeUsers(Path file, Collection<User> users) throws IOException {
+        return write(file, KIND_USERS, users.size(), out -> {
+            for (User user : users) {
+                out.writeUser(user);
+            }
+        });
+    }
+
+    public static int readUsers(Path file, Consumer<User> consumer) throws IOException {
+        return read(file, KIND_USERS, in -> consumer.accept(in.readUser()));
+    }
+
+    private interface RecordWriter {
+        void writeAll(Writer out) throws IOException;
+    }
+
+    private interface RecordReader {
+        void readOne(Reader in) throws IOException;
+    }
+
+    private static long write(Path file, byte kind, int count, RecordWriter records) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer out = new Writer(Files.newOutputStream(tmp))) {
+                out.write(MAGIC);
+                out.writeVarInt(VERSION);
+                out.writeByte(kind);
+                out.writeVarInt(count);
+                records.writeAll(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return Files.size(file);
+    }
+
+    private static int read(Path file, byte kind, RecordReader records) throws IOException {
+        try (Reader in = new Reader(Files.newInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file.getFileName() + " is not a snapshot file");
+            }
+            int version = in.readVarInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file.getFileName());
+            }
+            if (in.readUnsignedByte() != kind) {
+                throw new IOException(file.getFileName() + " holds a different kind of snapshot");
+            }
+            int count = in.readVarInt();
+            try {
+                for (int i = 0; i < count; i++) {
+                    records.readOne(in);
+                }
+            } catch (EOFException e) {
+                throw new IOException(file.getFileName() + " is truncated", e);
+            }
+            return count;
+        }
+    }
+
+    private static final class Writer implements AutoCloseable {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        // Key: username, Value: its number in this file
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long lastEpochSecond;
+        private long lastSeq;
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeMessage(Message message) throws IOException {
+            UUID id = parseUuid(message.getId());
+            String fileLink = message.getFileLink();
+            String blobName = fileLink != null && fileLink.startsWith(BLOB_LINK_PREFIX) ? fileLink.substring(BLOB_LINK_PREFIX.length()) : null;
+            int flags = (message.isRead() ? READ : 0)
+                    | (id != null ? ID_UUID : 0)
+                    | (message.getContent() != null ? HAS_CONTENT : 0)
+                    | (fileLink != null ? HAS_FILE_LINK : 0)
+                    | (BlobStore.isBlobName(blobName) ? FILE_LINK_BLOB : 0)
+                    | (message.getFileName() != null ? HAS_FILE_NAME : 0)
+                    | (message.getTimestamp() != null ? HAS_TIMESTAMP : 0)
+                    | (message.getSeq() != 0 ? HAS_SEQ : 0);
+            writeByte(flags);
+            if (id != null) {
+                writeUuid(id);
+            } else {
+                writeNullableString(message.getId());
+            }
+            writeName(message.getSender());
+            writeName(message.getReceiver());
+            if ((flags & HAS_CONTENT) != 0) {
+                writeString(message.getContent());
+            }
+            if ((flags & FILE_LINK_BLOB) != 0) {
+                write(HexFormat.of().parseHex(blobName));
+            } else if (fileLink != null) {
+                writeString(fileLink);
+            }
+            if ((flags & HAS_FILE_NAME) != 0) {
+                writeString(message.getFileName());
+            }
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                writeTimestamp(message.getTimestamp());
+            }
+            if ((flags & HAS_SEQ) != 0) {
+                // Messages are written in save order, so this is usually a one-byte delta
+                writeVarLong(zigZag(message.getSeq() - lastSeq));
+                lastSeq = message.getSeq();
+            }
+        }
+
+        void writeUser(User user) throws IOException {
+            UUID token = parseUuid(user.getAccessToken());
+            int flags = (user.getPasswordHash() != null ? HAS_PASSWORD_HASH : 0)
+                    | (user.getFriends() != null ? HAS_FRIENDS : 0)
+                    | (user.getAccessToken() != null ? HAS_TOKEN : 0)
+                    | (token != null ? TOKEN_UUID : 0)
+                    | (user.getAccessTokenExpiry() != null ? HAS_TOKEN_EXPIRY : 0);
+            writeByte(flags);
+            writeName(user.getUsername());
+            if ((flags & HAS_PASSWORD_HASH) != 0) {
+                writeString(user.getPasswordHash());
+            }
+            if ((flags & HAS_FRIENDS) != 0) {
+                writeVarInt(user.getFriends().size());
+                for (String friend : user.getFriends()) {
+                    writeName(friend);
+                }
+            }
+            if (token != null) {
+                writeUuid(token);
+            } else if (user.getAccessToken() != null) {
+                writeString(user.getAccessToken());
+            }
+            if ((flags & HAS_TOKEN_EXPIRY) != 0) {
+                writeTimestamp(user.getAccessTokenExpiry());
+            }
+        }
+
+        // 0: null, 1: new name follows, n >= 2: the (n - 2)th name of this file
+        private void writeName(String name) throws IOException {
+            if (name == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = dictionary.get(name);
+            if (index != null) {
+                writeVarInt(index + 2);
+            } else {
+                writeVarInt(1);
+                writeString(name);
+                dictionary.put(name, dictionary.size());
+            }
+        }
+
+        // Sub-second part: micros (the usual LocalDateTime.now() precision) when that is exact, nanos otherwise
+        private void writeTimestamp(LocalDateTime timestamp) throws IOException {
+            long epochSecond = timestamp.toEpochSecond(ZoneOffset.UTC);
+            writeVarLong(zigZag(epochSecond - lastEpochSecond));
+            lastEpochSecond = epochSecond;
+            int nano = timestamp.getNano();
+            writeVarInt(nano % 1000 == 0 ? (nano / 1000) << 1 : (nano << 1) | 1);
+        }
+
+        private void writeUuid(UUID uuid) throws IOException {
+            writeLong(uuid.getMostSignificantBits());
+            writeLong(uuid.getLeastSignificantBits());
+        }
+
+        private void writeNullableString(String value) throws IOException {
+            if (value == null) {
+                writeVarInt(0);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length + 1);
+                write(bytes);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeLong(long value) throws IOException {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeByte(int value) throws IOException {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length) {
+                flush();
+                out.write(bytes);
+                return;
+            }
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (buffer.length - position < length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class Reader implements AutoCloseable {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private final List<String> dictionary = new ArrayList<>();
+        private long lastEpochSecond;
+        private long lastSeq;
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        Message readMessage() throws IOException {
+            int flags = readUnsignedByte();
+            Message message = new Message();
+            message.setRead((flags & READ) != 0);
+            message.setId((flags & ID_UUID) != 0 ? readUuid().toString() : readNullableString());
+            message.setSender(readName());
+            message.setReceiver(readName());
+            if ((flags & HAS_CONTENT) != 0) {
+                message.setContent(readString());
+            }
+            if ((flags & FILE_LINK_BLOB) != 0) {
+                byte[] hash = new byte[32];
+                readFully(hash);
+                message.setFileLink(BLOB_LINK_PREFIX + HexFormat.of().formatHex(hash));
+            } else if ((flags & HAS_FILE_LINK) != 0) {
+                message.setFileLink(readString());
+            }
+            if ((flags & HAS_FILE_NAME) != 0) {
+                message.setFileName(readString());
+            }
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                message.setTimestamp(readTimestamp());
+            }
+            if ((flags & HAS_SEQ) != 0) {
+                lastSeq += unZigZag(readVarLong());
+                message.setSeq(lastSeq);
+            }
+            return message;
+        }
+
+        User readUser() throws IOException {
+            int flags = readUnsignedByte();
+            User user = new User();
+            user.setUsername(readName());
+            if ((flags & HAS_PASSWORD_HASH) != 0) {
+                user.setPasswordHash(readString());
+            }
+            if ((flags & HAS_FRIENDS) != 0) {
+                int count = readVarInt();
+                List<String> friends = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    friends.add(readName());
+                }
+                user.setFriends(friends);
+            }
+            if ((flags & TOKEN_UUID) != 0) {
+                user.setAccessToken(readUuid().toString());
+            } else if ((flags & HAS_TOKEN) != 0) {
+                user.setAccessToken(readString());
+            }
+            if ((flags & HAS_TOKEN_EXPIRY) != 0) {
+                user.setAccessTokenExpiry(readTimestamp());
+            }
+            return user;
+        }
+
+        private String readName() throws IOException {
+            int code = readVarInt();
+            if (code == 0) {
+                return null;
+            }
+            if (code == 1) {
+                String name = readString();
+                dictionary.add(name);
+                return name;
+            }
+            if (code - 2 >= dictionary.size()) {
+                throw new IOException("Corrupt snapshot: unknown name #" + (code - 2));
+            }
+            return dictionary.get(code - 2);
+        }
+
+        private LocalDateTime readTimestamp() throws IOException {
+            lastEpochSecond += unZigZag(readVarLong());
+            int fraction = readVarInt();
+            int nano = (fraction & 1) == 0 ? (fraction >>> 1) * 1000 : fraction >>> 1;
+            return LocalDateTime.ofEpochSecond(lastEpochSecond, nano, ZoneOffset.UTC);
+        }
+
+        private UUID readUuid() throws IOException {
+            return new UUID(readLong(), readLong());
+        }
+
+        private String readNullableString() throws IOException {
+            int length = readVarInt();
+            return length == 0 ? null : readBytes(length - 1);
+        }
+
+        private String readString() throws IOException {
+            return readBytes(readVarInt());
+        }
+
+        private String readBytes(int length) throws IOException {
+            if (length <= buffer.length) {
+                // Decode straight from the buffer
+                ensureAvailable(length);
+                String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+                position += length;
+                return value;
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value > 0xFFFFFFFFL) {
+                throw new IOException("Corrupt snapshot: varint out of range");
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt snapshot: varint too long");
+        }
+
+        private long readLong() throws IOException {
+            ensureAvailable(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readUnsignedByte() throws IOException {
+            if (position == limit) {
+                ensureAvailable(1);
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        void readFully(byte[] bytes) throws IOException {
+            int copied = Math.min(bytes.length, limit - position);
+            System.arraycopy(buffer, position, bytes, 0, copied);
+            position += copied;
+            if (copied < bytes.length && in.readNBytes(bytes, copied, bytes.length - copied) != bytes.length - copied) {
+                throw new EOFException();
+            }
+        }
+
+        // Makes at least length (<= BUFFER_SIZE) bytes available from position onwards
+        private void ensureAvailable(int length) throws IOException {
+            if (limit - position >= length) {
+                return;
+            }
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            while (limit < length) {
+                int n = in.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                limit += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Only the canonical lower-case form, so that ids round-trip to the exact same string
+    static UUID parseUuid(String value) {
+        if (value == null || value.length() != 36) {
+            return null;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            boolean valid = i == 8 || i == 13 || i == 18 || i == 23 ? c == '-' : (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+            if (!valid) {
+                return null;
+            }
+        }
+        return UUID.fromString(value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.simplechat.repository;
+
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed attachment storage: every blob is named by the SHA-256 of its bytes, so
+ * identical uploads share one file.
+ *
+ * Reference counts track how many messages point at each blob. A blob is deleted when its last
+ * reference is released, and collectGarbage() removes blobs nothing references at all (e.g. left
+ * behind by a crash between storing a file and saving its message).
+ * store() takes its reference before it writes, so a concurrent release or sweep can't delete a
+ * blob that is about to be used.
+ */
+public class BlobStore {
+
+    private static final Pattern BLOB_NAME = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path root;
+    // Key: blob name (hex SHA-256), Value: number of references; blobs without references have no entry
+    private final ConcurrentHashMap<String, Integer> refCounts = new ConcurrentHashMap<>();
+    private final Consumer<String> onDelete;
+
+    public BlobStore(Path root, Consumer<String> onDelete) throws IOException {
+        this.root = root;
+        this.onDelete = onDelete;
+        Files.createDirectories(root);
+    }
+
+    public static boolean isBlobName(String name) {
+        return name != null && BLOB_NAME.matcher(name).matches();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path path(String blobName) {
+        return root.resolve(blobName);
+    }
+
+    public int getRefCount(String blobName) {
+        return refCounts.getOrDefault(blobName, 0);
+    }
+
+    // Hashes the content first and only writes it if no blob with that hash exists, so a duplicate
+    // upload costs one read and no write. New content is read a second time into a temp file that
+    // is then moved into place; the source must be re-readable (e.g. a spooled multipart file).
+    // Returns the blob name with one reference taken on behalf of the caller.
+    public String store(InputStreamSource source) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(source.getInputStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        String blobName = HexFormat.of().formatHex(digest.digest());
+        retain(blobName); // Before the exists check, so the blob can't be swept between the two
+        try {
+            Path blob = path(blobName);
+            if (!Files.exists(blob)) {
+                Path tmp = Files.createTempFile(root, ".blob-", ".tmp");
+                try {
+                    try (InputStream in = source.getInputStream()) {
+                        Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        } catch (IOException e) {
+            release(blobName);
+            throw e;
+        }
+        return blobName;
+    }
+
+    // Takes ownership of a file that is already on this file system (e.g. an assembled chunked
+    // upload): it becomes the blob if the content is new, and is deleted otherwise.
+    // Returns the blob name with one reference taken on behalf of the caller.
+    public String storeFile(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return keep(file, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    // Moves file to the blob named blobName, or deletes it if that blob exists already
+    private String keep(Path file, String blobName) throws IOException {
+        retain(blobName);
+        try {
+            Path blob = path(blobName);
+            if (Files.exists(blob)) {
+                Files.delete(file);
+            } else {
+                Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            release(blobName);
+            throw e;
+        }
+        return blobName;
+    }
+
+    public void retain(String blobName) {
+        refCounts.merge(blobName, 1, Integer::sum);
+    }
+
+    // Drops one reference; the last one deletes the blob
+    public void release(String blobName) {
+        refCounts.computeIfPresent(blobName, (name, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            delete(name);
+            return null;
+        });
+    }
+
+    // Replaces the reference counts, e.g. with one reference per message fileLink after a restart
+    public void resetRefCounts(Iterable<String> references) {
+        refCounts.clear();
+        for (String blobName : references) {
+            if (isBlobName(blobName)) {
+                retain(blobName);
+            }
+        }
+    }
+
+    // Deletes every blob without references. Returns the number of blobs deleted.
+    public int collectGarbage() throws IOException {
+        int[] deleted = {0};
+        try (DirectoryStream<Path> blobs = Files.newDirectoryStream(root, entry -> isBlobName(entry.getFileName().toString()))) {
+            for (Path blob : blobs) {
+                // compute() so a concurrent store() of the same content either retains first or finds no file
+                refCounts.compute(blob.getFileName().toString(), (name, count) -> {
+                    if (count == null && delete(name)) {
+                        deleted[0]++;
+                    }
+                    return count;
+                });
+            }
+        }
+        return deleted[0];
+    }
+
+    private boolean delete(String blobName) {
+        try {
+            boolean deleted = Files.deleteIfExists(path(blobName));
+            onDelete.accept(blobName);
+            return deleted;
+        } catch (IOException e) {
+            System.err.println("Failed to delete blob " + blobName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Required on every JVM
+        }
+    }
+}
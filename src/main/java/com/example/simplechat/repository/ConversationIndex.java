@@ -0,0 +1,176 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.Message;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * Messages of each conversation (unordered user pair) in (timestamp, id) order, so a page of
+ * history costs a binary search plus the page itself, however long the conversation is.
+ *
+ * Messages are referred to by ordinal, their position in the owner's append order, and the
+ * owner resolves ordinals back to messages. A conversation is two parallel arrays, 12 bytes per
+ * message and no object. Ids are only looked up to order messages with equal timestamps.
+ * Not thread-safe: owners call it under their own lock.
+ */
+final class ConversationIndex {
+
+    // The order of messages within a conversation, for message lists kept outside an index
+    static final Comparator<Message> ORDER = Comparator.comparingLong((Message m) -> time(m.getTimestamp()))
+            .thenComparing(m -> nullToEmpty(m.getId()));
+
+    private final IntFunction<Message> messages;
+    // Key: conversationKey(userA, userB)
+    private final Map<String, Conversation> conversations = new HashMap<>();
+
+    private static final class Conversation {
+        long[] times = new long[8];
+        int[] ordinals = new int[8];
+        int size;
+    }
+
+    ConversationIndex(IntFunction<Message> messages) {
+        this.messages = messages;
+    }
+
+    void add(String sender, String receiver, LocalDateTime timestamp, String id, int ordinal) {
+        Conversation conversation = conversations.computeIfAbsent(conversationKey(sender, receiver), k -> new Conversation());
+        long time = time(timestamp);
+        // Nearly always the newest message, so check the end before searching
+        int index = conversation.size == 0 || compare(conversation, conversation.size - 1, time, id) < 0
+                ? conversation.size
+                : search(conversation, time, id);
+        if (conversation.size == conversation.times.length) {
+            conversation.times = Arrays.copyOf(conversation.times, conversation.size * 2);
+            conversation.ordinals = Arrays.copyOf(conversation.ordinals, conversation.size * 2);
+        }
+        System.arraycopy(conversation.times, index, conversation.times, index + 1, conversation.size - index);
+        System.arraycopy(conversation.ordinals, index, conversation.ordinals, index + 1, conversation.size - index);
+        conversation.times[index] = time;
+        conversation.ordinals[index] = ordinal;
+        conversation.size++;
+    }
+
+    // Up to limit messages strictly before the cursor, oldest first. A null cursor means the newest messages.
+    List<Message> page(String userA, String userB, ConversationCursor before, int limit) {
+        Conversation conversation = conversations.get(conversationKey(userA, userB));
+        if (conversation == null) {
+            return new ArrayList<>();
+        }
+        int end = before == null ? conversation.size : search(conversation, time(before.timestamp()), before.id());
+        int start = Math.max(0, end - limit);
+        List<Message> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            page.add(messages.apply(conversation.ordinals[i]));
+        }
+        return page;
+    }
+
+    // Number of messages after the given one in its conversation
+    int newerCount(Message message) {
+        Conversation conversation = conversations.get(conversationKey(message.getSender(), message.getReceiver()));
+        if (conversation == null) {
+            return 0;
+        }
+        int index = search(conversation, time(message.getTimestamp()), message.getId());
+        return Math.max(0, conversation.size - index - 1);
+    }
+
+    // Whether retention takes the message out of the live set. Only read messages ever leave: those
+    // older than readBefore, and those followed by at least maxPerConversation newer messages in
+    // their conversation. A null readBefore, or a maxPerConversation of 0, turns that rule off.
+    boolean isRetired(Message message, LocalDateTime readBefore, int maxPerConversation) {
+        if (!message.isRead()) {
+            return false;
+        }
+        if (readBefore != null && message.getTimestamp() != null && message.getTimestamp().isBefore(readBefore)) {
+            return true;
+        }
+        return maxPerConversation > 0 && newerCount(message) >= maxPerConversation;
+    }
+
+    // Drops the entries whose ordinal fails keep, e.g. after the owner removed those messages
+    void retain(IntPredicate keep) {
+        Iterator<Conversation> iterator = conversations.values().iterator();
+        while (iterator.hasNext()) {
+            Conversation conversation = iterator.next();
+            int kept = 0;
+            for (int i = 0; i < conversation.size; i++) {
+                if (keep.test(conversation.ordinals[i])) {
+                    conversation.times[kept] = conversation.times[i];
+                    conversation.ordinals[kept] = conversation.ordinals[i];
+                    kept++;
+                }
+            }
+            conversation.size = kept;
+            if (kept == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void clear() {
+        conversations.clear();
+    }
+
+    // Whether the message sorts strictly before the cursor
+    static boolean isBefore(Message message, ConversationCursor cursor) {
+        int byTime = Long.compare(time(message.getTimestamp()), time(cursor.timestamp()));
+        if (byTime != 0) {
+            return byTime < 0;
+        }
+        return nullToEmpty(message.getId()).compareTo(nullToEmpty(cursor.id())) < 0;
+    }
+
+    // First index whose entry is not before (time, id)
+    private int search(Conversation conversation, long time, String id) {
+        int low = 0;
+        int high = conversation.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(conversation, mid, time, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(Conversation conversation, int index, long time, String id) {
+        int byTime = Long.compare(conversation.times[index], time);
+        if (byTime != 0) {
+            return byTime;
+        }
+        return nullToEmpty(messages.apply(conversation.ordinals[index]).getId()).compareTo(nullToEmpty(id));
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    // Nanoseconds since the epoch (UTC), which fits a long until 2262. Messages without a timestamp sort first.
+    private static long time(LocalDateTime timestamp) {
+        if (timestamp == null) {
+            return Long.MIN_VALUE;
+        }
+        return timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + timestamp.getNano();
+    }
+
+    static String conversationKey(String userA, String userB) {
+        String a = nullToEmpty(userA);
+        String b = nullToEmpty(userB);
+        return a.compareTo(b) <= 0 ? a + '\0' + b : b + '\0' + a;
+    }
+}
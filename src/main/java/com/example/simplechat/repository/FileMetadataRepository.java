@@ -0,0 +1,140 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.FileMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Repository;
+
+import jakarta.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Repository
+public class FileMetadataRepository {
+
+    // Lives next to users.json and messages.json
+    private static final String ANCHOR_PATH = "users.json";
+    private static final String METADATA_DB_PATH = "file-metadata.json";
+    // Key: file name under STORAGE_ROOT
+    private final ConcurrentHashMap<String, FileMetadata> metadataByFileName = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper;
+    private File metadataFile;
+    // Serializes writers; a ReentrantLock so virtual threads waiting on it don't pin their carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public FileMetadataRepository() {
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    @PostConstruct
+    private void init() {
+        try {
+            metadataFile = new File(new ClassPathResource(ANCHOR_PATH).getFile().getParentFile(), METADATA_DB_PATH);
+            if (metadataFile.exists() && metadataFile.length() > 0) {
+                for (FileMetadata metadata : objectMapper.readValue(metadataFile, FileMetadata[].class)) {
+                    metadataByFileName.put(metadata.getFileName(), metadata);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error initializing file metadata database: " + e.getMessage());
+        }
+    }
+
+    public Optional<FileMetadata> findByFileName(String fileName) {
+        if (fileName == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(metadataByFileName.get(fileName));
+    }
+
+    public void save(FileMetadata metadata) {
+        writeLock.lock();
+        try {
+            metadataByFileName.put(metadata.getFileName(), metadata);
+            if (metadataFile != null) {
+                objectMapper.writeValue(metadataFile, new ArrayList<>(metadataByFileName.values()));
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving file metadata: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public List<FileMetadata> findAll() {
+        return new ArrayList<>(metadataByFileName.values());
+    }
+
+    // Records one more routed reference to the file; false if it has no metadata
+    public boolean addRoutedReference(String fileName, long nowMillis) {
+        writeLock.lock();
+        try {
+            FileMetadata metadata = metadataByFileName.get(fileName);
+            if (metadata == null) {
+                return false;
+            }
+            metadata.setRoutedReferences(metadata.getRoutedReferences() + 1);
+            metadata.setLastRoutedMillis(nowMillis);
+            save(metadata);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Adds the names the file was sent under, by username
+    public void recordNames(String fileName, Map<String, String> namesByUser) {
+        writeLock.lock();
+        try {
+            FileMetadata metadata = metadataByFileName.get(fileName);
+            if (metadata == null || metadata.getNamesByUser().entrySet().containsAll(namesByUser.entrySet())) {
+                return;
+            }
+            Map<String, String> names = new HashMap<>(metadata.getNamesByUser());
+            names.putAll(namesByUser);
+            metadata.setNamesByUser(names); // A new map, so readers never see one being changed
+            save(metadata);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Forgets the file's routed references. Returns how many there were.
+    public int clearRoutedReferences(String fileName) {
+        writeLock.lock();
+        try {
+            FileMetadata metadata = metadataByFileName.get(fileName);
+            if (metadata == null || metadata.getRoutedReferences() == 0) {
+                return 0;
+            }
+            int references = metadata.getRoutedReferences();
+            metadata.setRoutedReferences(0);
+            save(metadata);
+            return references;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void delete(String fileName) {
+        writeLock.lock();
+        try {
+            if (metadataByFileName.remove(fileName) != null && metadataFile != null) {
+                objectMapper.writeValue(metadataFile, new ArrayList<>(metadataByFileName.values()));
+            }
+        } catch (IOException e) {
+            System.err.println("Error saving file metadata: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.simplechat.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Friend lists as a directed graph over interned user ids, with adjacency in both directions:
+ * friends (the users someone lists) and followers (the users listing them). Membership is a hash
+ * probe on an int set, so checking a friendship costs the same with ten friends or ten thousand.
+ *
+ * An edge owner -> friend means friend is in owner's list, which is what lets friend message
+ * owner. Users are interned on first mention and keep their id for the life of the graph.
+ * Readers share a read lock; every check on a send is a read.
+ */
+public class FriendGraph {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[64];
+    private IntSet[] friends = new IntSet[64];
+    private IntSet[] followers = new IntSet[64];
+    private int edges;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Whether friend is in owner's friend list
+    public boolean hasFriend(String owner, String friend) {
+        lock.readLock().lock();
+        try {
+            Integer ownerId = ids.get(owner);
+            Integer friendId = ids.get(friend);
+            return ownerId != null && friendId != null && friends[ownerId].contains(friendId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The users in owner's friend list
+    public List<String> getFriends(String owner) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(owner);
+            return id == null ? new ArrayList<>() : names(friends[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The users whose friend list contains user
+    public List<String> getFollowers(String user) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(user);
+            return id == null ? new ArrayList<>() : names(followers[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns false if the edge was already there
+    public boolean addFriend(String owner, String friend) {
+        lock.writeLock().lock();
+        try {
+            return link(intern(owner), intern(friend));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns false if there was no such edge
+    public boolean removeFriend(String owner, String friend) {
+        lock.writeLock().lock();
+        try {
+            Integer ownerId = ids.get(owner);
+            Integer friendId = ids.get(friend);
+            return ownerId != null && friendId != null && unlink(ownerId, friendId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Replaces owner's friend list, touching only the edges that differ
+    public void setFriends(String owner, Collection<String> newFriends) {
+        lock.writeLock().lock();
+        try {
+            int ownerId = intern(owner);
+            IntSet wanted = new IntSet();
+            if (newFriends != null) {
+                for (String friend : newFriends) {
+                    if (friend != null) {
+                        wanted.add(intern(friend));
+                    }
+                }
+            }
+            int[] current = friends[ownerId].toArray();
+            for (int friendId : current) {
+                if (!wanted.contains(friendId)) {
+                    unlink(ownerId, friendId);
+                }
+            }
+            for (int friendId : wanted.toArray()) {
+                link(ownerId, friendId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getEdgeCount() {
+        lock.readLock().lock();
+        try {
+            return edges;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean link(int ownerId, int friendId) {
+        if (!friends[ownerId].add(friendId)) {
+            return false;
+        }
+        followers[friendId].add(ownerId);
+        edges++;
+        return true;
+    }
+
+    private boolean unlink(int ownerId, int friendId) {
+        if (!friends[ownerId].remove(friendId)) {
+            return false;
+        }
+        followers[friendId].remove(ownerId);
+        edges--;
+        return true;
+    }
+
+    private int intern(String username) {
+        Integer id = ids.get(username);
+        if (id != null) {
+            return id;
+        }
+        int newId = ids.size();
+        if (newId == names.length) {
+            names = Arrays.copyOf(names, newId * 2);
+            friends = Arrays.copyOf(friends, newId * 2);
+            followers = Arrays.copyOf(followers, newId * 2);
+        }
+        names[newId] = username;
+        friends[newId] = new IntSet();
+        followers[newId] = new IntSet();
+        ids.put(username, newId);
+        return newId;
+    }
+
+    // Sorted by id, i.e. by when each user was first seen, so lists come out in a stable order
+    private List<String> names(IntSet set) {
+        int[] members = set.toArray();
+        Arrays.sort(members);
+        List<String> result = new ArrayList<>(members.length);
+        for (int id : members) {
+            result.add(names[id]);
+        }
+        return result;
+    }
+
+    // Open-addressing set of non-negative ints with linear probing; -1 marks a free slot.
+    // Removal shifts the following run back, so there are no tombstones.
+    private static final class IntSet {
+
+        private static final int FREE = -1;
+
+        private int[] table = new int[4];
+        private int size;
+
+        IntSet() {
+            Arrays.fill(table, FREE);
+        }
+
+        boolean contains(int value) {
+            int mask = table.length - 1;
+            for (int i = mix(value) & mask; ; i = (i + 1) & mask) {
+                if (table[i] == value) {
+                    return true;
+                }
+                if (table[i] == FREE) {
+                    return false;
+                }
+            }
+        }
+
+        boolean add(int value) {
+            if ((size + 1) * 4 > table.length * 3) {
+                resize(table.length * 2);
+            }
+            int mask = table.length - 1;
+            int i = mix(value) & mask;
+            while (table[i] != FREE) {
+                if (table[i] == value) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = value;
+            size++;
+            return true;
+        }
+
+        boolean remove(int value) {
+            int mask = table.length - 1;
+            int i = mix(value) & mask;
+            while (table[i] != value) {
+                if (table[i] == FREE) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            // Move later members of the run into the hole if their home slot allows it
+            int hole = i;
+            for (int j = (hole + 1) & mask; table[j] != FREE; j = (j + 1) & mask) {
+                int home = mix(table[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    table[hole] = table[j];
+                    hole = j;
+                }
+            }
+            table[hole] = FREE;
+            size--;
+            return true;
+        }
+
+        int[] toArray() {
+            int[] values = new int[size];
+            int n = 0;
+            for (int value : table) {
+                if (value != FREE) {
+                    values[n++] = value;
+                }
+            }
+            return values;
+        }
+
+        private void resize(int capacity) {
+            int[] old = table;
+            table = new int[capacity];
+            Arrays.fill(table, FREE);
+            size = 0;
+            for (int value : old) {
+                if (value != FREE) {
+                    add(value);
+                }
+            }
+        }
+
+        // Ids are dense and sequential; spread them so runs don't form
+        private static int mix(int value) {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.simplechat.repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Batches mutations from many callers into one durable write.
+ *
+ * A single writer thread takes the first pending mutation, keeps collecting for up to
+ * maxLatencyMs or until maxBatchSize mutations are pending, writes them with one call to the
+ * BatchWriter and completes every caller's future once that write returns. Without concurrent
+ * callers there is nothing to wait for, so a mutation that arrives alone is written at once.
+ */
+public class GroupCommitter<T> implements Closeable {
+
+    @FunctionalInterface
+    public interface BatchWriter<T> {
+        void write(List<T> batch) throws IOException;
+    }
+
+    private record Pending<T>(T mutation, CompletableFuture<Void> future) {
+    }
+
+    private final LinkedBlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+    private final BatchWriter<T> batchWriter;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    // Held to check running and enqueue in one step, and by close() to stop, so nothing is queued
+    // after the writer has drained the queue for the last time
+    private final ReentrantLock submitLock = new ReentrantLock();
+
+    // Batch size metrics
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong mutationCount = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile int largestBatchSize;
+    private volatile IntConsumer batchSizeListener = size -> { };
+
+    public GroupCommitter(String name, BatchWriter<T> batchWriter, int maxBatchSize, long maxLatencyMs) {
+        this.batchWriter = batchWriter;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMs));
+        this.writerThread = new Thread(this::run, name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // The returned future completes once the mutation has been written, or completes
+    // exceptionally with the IOException of the batch it was part of
+    public CompletableFuture<Void> submit(T mutation) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        submitLock.lock();
+        try {
+            if (!running) {
+                future.completeExceptionally(new IOException("Group committer is closed"));
+                return future;
+            }
+            queue.add(new Pending<>(mutation, future));
+        } finally {
+            submitLock.unlock();
+        }
+        return future;
+    }
+
+    public void setBatchSizeListener(IntConsumer batchSizeListener) {
+        this.batchSizeListener = batchSizeListener;
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getMutationCount() {
+        return mutationCount.get();
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getLargestBatchSize() {
+        return largestBatchSize;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void collect(List<Pending<T>> batch) throws InterruptedException {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        // A lone caller is committed right away. The window only opens once callers overlap,
+        // i.e. the last batch had company, so a single writer never pays maxLatencyMs.
+        if (batch.size() == 1 && lastBatchSize <= 1) {
+            return;
+        }
+        long deadline = System.nanoTime() + maxLatencyNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+                return;
+            }
+            Pending<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commit(List<Pending<T>> batch) {
+        List<T> mutations = new ArrayList<>(batch.size());
+        batch.forEach(p -> mutations.add(p.mutation()));
+        Exception failure = null;
+        try {
+            batchWriter.write(mutations);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        // Metrics first, so a caller whose future has completed also sees its batch counted
+        batchCount.incrementAndGet();
+        mutationCount.addAndGet(batch.size());
+        lastBatchSize = batch.size();
+        if (batch.size() > largestBatchSize) {
+            largestBatchSize = batch.size();
+        }
+        try {
+            batchSizeListener.accept(batch.size());
+        } catch (RuntimeException e) {
+            System.err.println("Batch size listener failed: " + e.getMessage()); // The writer must keep going
+        }
+
+        for (Pending<T> pending : batch) {
+            if (failure == null) {
+                pending.future().complete(null);
+            } else {
+                pending.future().completeExceptionally(failure);
+            }
+        }
+    }
+
+    // Writes whatever is still pending, then stops the writer thread. The writer is not interrupted:
+    // an interrupt during a FileChannel write would close the channel under it.
+    @Override
+    public void close() {
+        submitLock.lock();
+        try {
+            running = false;
+        } finally {
+            submitLock.unlock();
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Only if the writer didn't finish in time: whatever it hadn't taken yet won't be written
+        List<Pending<T>> left = new ArrayList<>();
+        queue.drainTo(left);
+        IOException closed = new IOException("Group committer closed before the mutation was written");
+        left.forEach(pending -> pending.future().completeExceptionally(closed));
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.simplechat.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent-hash ring over partitions 0..n-1. Each partition owns many points on a 64-bit ring and a
+ * key belongs to the partition of the first point at or after the key's hash. Going from n to n+1
+ * partitions moves about 1/(n+1) of the keys, all of them to the new partition; the others stay put.
+ */
+public class HashRing {
+
+    // Points per partition; more even out the partition sizes
+    private static final int POINTS_PER_PARTITION = 160;
+
+    private final int partitionCount;
+    // Sorted; owners[i] is the partition of points[i]
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        this.partitionCount = partitionCount;
+        long[][] pairs = new long[partitionCount * POINTS_PER_PARTITION][];
+        for (int partition = 0; partition < partitionCount; partition++) {
+            for (int i = 0; i < POINTS_PER_PARTITION; i++) {
+                pairs[partition * POINTS_PER_PARTITION + i] = new long[]{hash("partition-" + partition + "#" + i), partition};
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[pairs.length];
+        this.owners = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public int partitionOf(String key) {
+        if (partitionCount == 1) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1; // First point after the hash
+        }
+        return owners[i == points.length ? 0 : i]; // Past the last point wraps around
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a 64-bit finalizer so similar keys land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
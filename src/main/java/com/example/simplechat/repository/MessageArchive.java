@@ -0,0 +1,136 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.Message;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Cold tier for messages retention took out of the live set, still readable by the history API.
+ *
+ * One BinarySnapshot file per conversation, named by a hash of the user pair and holding its
+ * messages in conversation order, so a history page reads one file and nothing else. Adding
+ * messages rewrites the conversation's file (atomically, like every snapshot). Recently read
+ * conversations are kept decoded, so paging back through one reads its file once.
+ */
+public class MessageArchive {
+
+    private static final String SUFFIX = ".bin";
+    private static final int CACHED_CONVERSATIONS = 16;
+
+    private final Path dir;
+    // Decoded conversations by file, least recently used first. An empty list means no file.
+    private final LinkedHashMap<Path, List<Message>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public MessageArchive(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    // Adds the messages to their conversations' files. Messages already archived (same id) are
+    // skipped, so repeating an add after a crash is harmless.
+    public void add(Collection<Message> messages) throws IOException {
+        Map<Path, List<Message>> byConversation = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byConversation.computeIfAbsent(file(message.getSender(), message.getReceiver()), k -> new ArrayList<>()).add(message);
+        }
+        lock.lock();
+        try {
+            for (Map.Entry<Path, List<Message>> entry : byConversation.entrySet()) {
+                List<Message> conversation = new ArrayList<>(load(entry.getKey()));
+                Set<String> ids = new HashSet<>();
+                conversation.forEach(m -> ids.add(m.getId()));
+                entry.getValue().stream().filter(m -> ids.add(m.getId())).forEach(conversation::add);
+                conversation.sort(ConversationIndex.ORDER);
+                BinarySnapshot.writeMessages(entry.getKey(), conversation);
+                cache.put(entry.getKey(), conversation);
+                trimCache();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to limit archived messages between the two users strictly before the cursor, oldest first
+    public List<Message> page(String userA, String userB, ConversationCursor before, int limit) throws IOException {
+        lock.lock();
+        try {
+            List<Message> conversation = load(file(userA, userB));
+            int end = conversation.size();
+            if (before != null) {
+                // First message not before the cursor
+                int low = 0;
+                while (low < end) {
+                    int mid = (low + end) >>> 1;
+                    if (ConversationIndex.isBefore(conversation.get(mid), before)) {
+                        low = mid + 1;
+                    } else {
+                        end = mid;
+                    }
+                }
+            }
+            return new ArrayList<>(conversation.subList(Math.max(0, end - limit), end));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Streams every archived message, one conversation file at a time, bypassing the cache
+    public void forEach(Consumer<Message> consumer) throws IOException {
+        lock.lock();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                BinarySnapshot.readMessages(file, consumer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Message> load(Path file) throws IOException {
+        List<Message> conversation = cache.get(file);
+        if (conversation != null) {
+            return conversation;
+        }
+        conversation = new ArrayList<>();
+        if (Files.exists(file)) {
+            BinarySnapshot.readMessages(file, conversation::add);
+        }
+        cache.put(file, conversation);
+        trimCache();
+        return conversation;
+    }
+
+    private void trimCache() {
+        while (cache.size() > CACHED_CONVERSATIONS) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    // User names can hold anything, so the file is named by the SHA-256 of the pair
+    private Path file(String userA, String userB) {
+        byte[] key = ConversationIndex.conversationKey(userA, userB).getBytes(StandardCharsets.UTF_8);
+        try {
+            return dir.resolve(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key)) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Required on every JVM
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.simplechat.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of message mutations, one JSON object per line.
+ * Replaying the log from the start rebuilds the message list.
+ */
+public class MessageLog implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS,   // force after every append
+        INTERVAL, // force from a background thread every fsyncIntervalMs
+        NEVER     // leave it to the OS
+    }
+
+    private final Path path;
+    private final FsyncPolicy fsyncPolicy;
+    private final ObjectMapper objectMapper;
+    private FileChannel channel;
+    private ScheduledExecutorService fsyncScheduler;
+    private volatile boolean dirty;
+    // Appends block on disk I/O and callers may be virtual threads, so this is a lock, not a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public MessageLog(File file, FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        this.path = file.toPath();
+        this.fsyncPolicy = fsyncPolicy;
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+        this.channel = openForAppend(path);
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "message-log-fsync");
+                t.setDaemon(true);
+                return t;
+            });
+            fsyncScheduler.scheduleWithFixedDelay(this::forceIfDirty, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEmpty() throws IOException {
+        return channel.size() == 0;
+    }
+
+    public void append(MessageLogEntry entry) throws IOException {
+        append(List.of(entry));
+    }
+
+    // Appends all entries with one write and, under the ALWAYS policy, one fsync. Returns the bytes written.
+    public int append(List<MessageLogEntry> entries) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (MessageLogEntry entry : entries) {
+            lines.append(objectMapper.writeValueAsString(entry)).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        int length = buffer.remaining();
+        lock.lock();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                channel.force(false);
+            } else {
+                dirty = true;
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Feeds every complete entry to the consumer in write order.
+    // A torn last line (crash in the middle of an append) is skipped.
+    public void replay(Consumer<MessageLogEntry> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    consumer.accept(objectMapper.readValue(line, MessageLogEntry.class));
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable message log line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Replaces the log with the given entries, e.g. one SAVE per live message after a replay.
+    public void rewrite(List<MessageLogEntry> entries) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        lock.lock();
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (MessageLogEntry entry : entries) {
+                    ByteBuffer buffer = ByteBuffer.wrap((objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = openForAppend(path);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forceIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            dirty = false;
+            lock.lock();
+            try {
+                channel.force(false);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            dirty = true;
+            System.err.println("Error syncing message log: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fsyncScheduler != null) {
+            fsyncScheduler.shutdown();
+        }
+        lock.lock();
+        try {
+            if (channel.isOpen()) {
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    channel.force(false);
+                }
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static FileChannel openForAppend(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// One line of messages.log. SAVE carries the full message, READ only the ids that were marked read,
+// DELETE the ids that retention took out of the live set. ACK is a user's new delivery cursor; it goes
+// through the same group commits but is written to delivery-cursors.json, never to the log.
+@Data
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MessageLogEntry {
+
+    public enum Type { SAVE, READ, DELETE, ACK }
+
+    private Type type;
+    private Message message;
+    private List<String> ids;
+    private String username;
+    private Long cursor;
+
+    public static MessageLogEntry save(Message message) {
+        MessageLogEntry entry = new MessageLogEntry();
+        entry.setType(Type.SAVE);
+        entry.setMessage(message);
+        return entry;
+    }
+
+    public static MessageLogEntry read(List<String> ids) {
+        MessageLogEntry entry = new MessageLogEntry();
+        entry.setType(Type.READ);
+        entry.setIds(ids);
+        return entry;
+    }
+
+    public static MessageLogEntry delete(List<String> ids) {
+        MessageLogEntry entry = new MessageLogEntry();
+        entry.setType(Type.DELETE);
+        entry.setIds(ids);
+        return entry;
+    }
+
+    public static MessageLogEntry ack(String username, long cursor) {
+        MessageLogEntry entry = new MessageLogEntry();
+        entry.setType(Type.ACK);
+        entry.setUsername(username);
+        entry.setCursor(cursor);
+        return entry;
+    }
+}
@@ -1,27 +1,144 @@
 package com.example.simplechat.repository;
 
+import com.example.simplechat.model.ConversationCursor;
 import com.example.simplechat.model.Message;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Repository;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Repository
 public class MessageRepository {
 
     private static final String MESSAGES_DB_PATH = "messages.json";
+    private static final String MESSAGES_LOG_PATH = "messages.log";
+    private static final String MESSAGES_SNAPSHOT_PATH = "messages.bin";
+    private static final String MESSAGES_SEGMENTS_PATH = "messages-segments";
+    private static final String MESSAGES_ARCHIVE_PATH = "messages-archive";
+    private static final String DELIVERY_CURSORS_PATH = "delivery-cursors.json";
+    private static final String MESSAGES_PARTITIONS_PATH = "messages-partitions";
+    private static final String PARTITION_LAYOUT_PATH = "layout.json";
+
+    // "json": rewrite messages.json on every change (original behaviour)
+    // "log": append one record per change to messages.log, messages.json is only used for import/export
+    // "binary": rewrite the compact messages.bin (see BinarySnapshot) instead, messages.json is only imported once
+    // "segments": append to memory-mapped segment files (see MessageSegmentStore), messages stay off the heap
+    @Value("${simplechat.messages.persistence:json}")
+    private String persistenceMode = "json";
+
+    @Value("${simplechat.messages.segments.segment-size:67108864}")
+    private int segmentSize = 64 * 1024 * 1024;
+
+    @Value("${simplechat.messages.segments.mapped-segments:8}")
+    private int mappedSegments = 8;
+
+    @Value("${simplechat.messages.log.fsync:always}")
+    private MessageLog.FsyncPolicy fsyncPolicy = MessageLog.FsyncPolicy.ALWAYS;
+
+    @Value("${simplechat.messages.log.fsync-interval-ms:1000}")
+    private long fsyncIntervalMs = 1000;
+
+    // Group commit: mutations from concurrent callers are written together, at most
+    // max-batch-size per write, waiting at most max-latency-ms for more to arrive
+    @Value("${simplechat.messages.commit.max-batch-size:256}")
+    private int commitMaxBatchSize = 256;
+
+    @Value("${simplechat.messages.commit.max-latency-ms:2}")
+    private long commitMaxLatencyMs = 2;
+
+    // Retention (see compact): read messages older than read-max-age-days, or with max-per-conversation
+    // newer messages after them, leave the live set. 0 turns a rule off; unread messages always stay.
+    @Value("${simplechat.messages.retention.read-max-age-days:0}")
+    private int retentionReadMaxAgeDays = 0;
+
+    @Value("${simplechat.messages.retention.max-per-conversation:0}")
+    private int retentionMaxPerConversation = 0;
+
+    // true: retired messages move to the archive, where history still finds them. false: they are deleted.
+    @Value("${simplechat.messages.retention.archive:true}")
+    private boolean retentionArchive = true;
+
+    // Messages split by receiver over this many partitions on a consistent-hash ring (see HashRing), each a
+    // repository of its own under messages-partitions/<n>/ with its own files, lists and commit thread, so
+    // writes for users in different partitions never wait on each other. 1 keeps everything next to
+    // messages.json. After a change, the next start moves the receivers whose partition changed.
+    @Value("${simplechat.messages.partitions:1}")
+    private int partitionCount = 1;
+
+    private HashRing ring;
+    // Null unless partitioned; this repository then only routes to them
+    private List<MessageRepository> partitions;
+    private String commitThreadName = "message-commit";
+    // Set on partitions and the unpartitioned files being moved into them, which never partition themselves
+    private boolean partitionMember;
+
     private List<Message> messages;
+    private Map<String, Message> messagesById;
+    // Key: receiver username, Value: that user's unread messages by id, in arrival order
+    private Map<String, Map<String, Message>> unreadByReceiver;
+    // Key: receiver username, Value: seq of the last message they acknowledged (see acknowledge).
+    // A message at or below its receiver's cursor counts as read, whatever its stored flag says.
+    private final Map<String, Long> deliveryCursors = new HashMap<>();
+    // Highest seq handed out; segments mode numbers messages itself (see MessageSegmentStore)
+    private long lastSeq;
+    // Messages saved before sequence numbers existed got one while loading, which isn't on disk yet
+    private boolean seqsAssigned;
+    // History pages by conversation; ordinals are indexes into messages
+    private final ConversationIndex conversations = new ConversationIndex(ordinal -> messages.get(ordinal));
     private final ObjectMapper objectMapper;
     private File messagesFile;
+    private MessageLog messageLog;
+    private MessageSegmentStore segmentStore;
+    private MessageArchive archive;
+    private GroupCommitter<MessageLogEntry> committer;
+    // Registered by load() for the persistence mode, so a commit only records
+    private Timer writeTimer;
+    private DistributionSummary writeBytes;
+    // A ReentrantLock rather than synchronized: file writes happen while it is held, and a virtual
+    // thread blocked on a monitor pins its carrier, while one waiting on a ReentrantLock unmounts
+    private final ReentrantLock lock = new ReentrantLock();
+    // One compaction at a time; held across the archive write, so not the lock above
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
 
     public MessageRepository() {
         this.objectMapper = new ObjectMapper();
@@ -33,48 +150,863 @@ public class MessageRepository {
     private void init() {
         try {
             messagesFile = new ClassPathResource(MESSAGES_DB_PATH).getFile();
-            if (messagesFile.exists() && messagesFile.length() > 0) {
-                Message[] messageArray = objectMapper.readValue(messagesFile, Message[].class);
-                messages = new ArrayList<>(Arrays.asList(messageArray));
+        } catch (IOException e) {
+            System.err.println("Error initializing messages database: " + e.getMessage());
+        }
+        load();
+    }
+
+    private void load() {
+        if (partitions != null) {
+            partitions.forEach(MessageRepository::shutdown);
+            partitions = null;
+        }
+        messages = new ArrayList<>();
+        messagesById = new HashMap<>();
+        unreadByReceiver = new HashMap<>();
+        conversations.clear();
+        deliveryCursors.clear();
+        lastSeq = 0;
+        seqsAssigned = false;
+        if (committer != null) {
+            committer.close();
+            committer = null;
+        }
+        if (partitionCount > 1 && messagesFile != null) {
+            loadPartitions();
+            return;
+        }
+        committer = new GroupCommitter<>(commitThreadName, this::writeBatch, commitMaxBatchSize, commitMaxLatencyMs);
+        DistributionSummary commitBatches = DistributionSummary.builder("simplechat.repository.commit.batch")
+                .description("Mutations per group commit")
+                .baseUnit("mutations")
+                .register(meterRegistry);
+        committer.setBatchSizeListener(commitBatches::record);
+        String mode = isLogMode() ? "log" : isBinaryMode() ? "binary" : isSegmentMode() ? "segments" : "json";
+        writeTimer = meterRegistry.timer("simplechat.repository.write", "repository", "messages", "mode", mode);
+        writeBytes = DistributionSummary.builder("simplechat.repository.write.bytes")
+                .baseUnit("bytes")
+                .tags("repository", "messages", "mode", mode)
+                .register(meterRegistry);
+        try {
+            if (messagesFile == null) {
+                return;
+            }
+            archive = new MessageArchive(new File(messagesFile.getParentFile(), MESSAGES_ARCHIVE_PATH).toPath());
+            loadDeliveryCursors();
+            if (isLogMode()) {
+                initLog(new File(messagesFile.getParentFile(), MESSAGES_LOG_PATH));
+            } else if (isBinaryMode()) {
+                initBinarySnapshot();
+            } else if (isSegmentMode()) {
+                initSegments(new File(messagesFile.getParentFile(), MESSAGES_SEGMENTS_PATH));
+            } else if (messagesFile.exists() && messagesFile.length() > 0) {
+                importSnapshot();
             } else {
-                messages = new ArrayList<>();
                 objectMapper.writeValue(messagesFile, messages);
             }
+            // Log mode has just rewritten its log with them
+            if (seqsAssigned && !isLogMode()) {
+                writeSnapshot();
+            }
+            if (!partitionMember && partitionsDir().isDirectory()) {
+                mergePartitions();
+            }
         } catch (IOException e) {
             System.err.println("Error initializing messages database: " + e.getMessage());
-            messages = new ArrayList<>();
+        } finally {
+            rebuildUnreadIndex();
         }
     }
 
-    public void save(Message message) {
+    private void rebuildUnreadIndex() {
+        unreadByReceiver.clear();
+        messages.stream().filter(m -> !m.isRead()).forEach(this::indexUnread);
+    }
+
+    private void indexUnread(Message message) {
+        unreadByReceiver.computeIfAbsent(message.getReceiver(), k -> new LinkedHashMap<>()).put(message.getId(), message);
+    }
+
+    private void unindexUnread(Message message) {
+        Map<String, Message> unread = unreadByReceiver.get(message.getReceiver());
+        if (unread != null) {
+            unread.remove(message.getId());
+            if (unread.isEmpty()) {
+                unreadByReceiver.remove(message.getReceiver());
+            }
+        }
+    }
+
+    private void initLog(File logFile) throws IOException {
+        messageLog = new MessageLog(logFile, fsyncPolicy, fsyncIntervalMs);
+        if (messageLog.isEmpty()) {
+            // First start in log mode: seed the log from the existing JSON file
+            if (messagesFile.exists() && messagesFile.length() > 0) {
+                importSnapshot();
+            }
+        } else {
+            messageLog.replay(this::apply);
+        }
+        // Compact: one SAVE per message, so READ records don't pile up across restarts
+        messageLog.rewrite(messages.stream().map(MessageLogEntry::save).collect(Collectors.toList()));
+    }
+
+    private void initBinarySnapshot() throws IOException {
+        File snapshotFile = snapshotFile();
+        if (snapshotFile.exists()) {
+            BinarySnapshot.readMessages(snapshotFile.toPath(), this::addToMemory);
+            return;
+        }
+        // First start in binary mode: convert the existing JSON file
+        if (messagesFile.exists() && messagesFile.length() > 0) {
+            importSnapshot();
+        }
+        BinarySnapshot.writeMessages(snapshotFile.toPath(), messages);
+    }
+
+    private void initSegments(File dir) throws IOException {
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+        File replaced = new File(dir.getParentFile(), MESSAGES_SEGMENTS_PATH + ".old");
+        if (!dir.exists() && replaced.exists()) {
+            // Stopped halfway through swapping in rewritten segments (see rewriteSegments); the old ones are complete
+            Files.move(replaced.toPath(), dir.toPath());
+        }
+        segmentStore = new MessageSegmentStore(dir.toPath(), segmentSize, mappedSegments);
+        // First start in segment mode: copy the existing JSON file into the segments
+        if (segmentStore.isEmpty() && messagesFile.exists() && messagesFile.length() > 0) {
+            for (Message message : objectMapper.readValue(messagesFile, Message[].class)) {
+                segmentStore.append(message);
+            }
+            segmentStore.force();
+            // The segments number messages afresh; what was acknowledged is in the imported read flags
+            deliveryCursors.clear();
+            writeDeliveryCursors();
+        }
+        deliveryCursors.forEach(segmentStore::acknowledge);
+    }
+
+    private void loadDeliveryCursors() throws IOException {
+        File cursorsFile = deliveryCursorsFile();
+        if (cursorsFile.exists() && cursorsFile.length() > 0) {
+            deliveryCursors.putAll(objectMapper.readValue(cursorsFile, new TypeReference<Map<String, Long>>() {}));
+        }
+        // New messages must come after every acknowledged one, even if retention removed it since
+        lastSeq = deliveryCursors.values().stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+
+    // Rewritten whole, but it holds one number per user, not a flag per message
+    private long writeDeliveryCursors() throws IOException {
+        String json;
+        lock.lock();
+        try {
+            json = objectMapper.writeValueAsString(deliveryCursors);
+        } finally {
+            lock.unlock();
+        }
+        Path file = deliveryCursorsFile().toPath();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, json);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return json.length();
+    }
+
+    private File deliveryCursorsFile() {
+        return new File(messagesFile.getParentFile(), DELIVERY_CURSORS_PATH);
+    }
+
+    private File snapshotFile() {
+        return new File(messagesFile.getParentFile(), MESSAGES_SNAPSHOT_PATH);
+    }
+
+    private void importSnapshot() throws IOException {
+        Message[] messageArray = objectMapper.readValue(messagesFile, Message[].class);
+        for (Message message : Arrays.asList(messageArray)) {
+            addToMemory(message);
+        }
+    }
+
+    private void apply(MessageLogEntry entry) {
+        switch (entry.getType()) {
+            case SAVE -> addToMemory(entry.getMessage());
+            case READ -> entry.getIds().forEach(id -> {
+                Message message = messagesById.get(id);
+                if (message != null) {
+                    message.setRead(true);
+                }
+            });
+            case DELETE -> removeFromMemory(entry.getIds());
+        }
+    }
+
+    private void addToMemory(Message message) {
+        if (message.getSeq() <= 0) {
+            message.setSeq(++lastSeq);
+            seqsAssigned = true;
+        } else {
+            lastSeq = Math.max(lastSeq, message.getSeq());
+        }
+        if (message.getSeq() <= deliveryCursors.getOrDefault(message.getReceiver(), 0L)) {
+            message.setRead(true);
+        }
         messages.add(message);
+        messagesById.put(message.getId(), message);
+        conversations.add(message.getSender(), message.getReceiver(), message.getTimestamp(), message.getId(), messages.size() - 1);
+    }
+
+    private void removeFromMemory(Collection<String> ids) {
+        Set<String> removed = new HashSet<>(ids);
+        messages.removeIf(m -> removed.contains(m.getId()));
+        removed.forEach(messagesById::remove);
+        // Removal shifts ordinals, so the conversation index is rebuilt
+        conversations.clear();
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            conversations.add(message.getSender(), message.getReceiver(), message.getTimestamp(), message.getId(), i);
+        }
+    }
+
+    // Runs on the committer thread. Log mode appends the batch; json and binary modes have no incremental
+    // format, so the whole batch costs one rewrite of the file instead of one per mutation.
+    // Acknowledgements only touch the delivery cursors file, once per batch.
+    private void writeBatch(List<MessageLogEntry> batch) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        List<MessageLogEntry> mutations = batch.stream().filter(e -> e.getType() != MessageLogEntry.Type.ACK).collect(Collectors.toList());
+        long bytes = 0;
+        if (mutations.size() < batch.size()) {
+            bytes += writeDeliveryCursors();
+        }
+        if (isLogMode()) {
+            bytes += mutations.isEmpty() ? 0 : messageLog.append(mutations);
+        } else if (isSegmentMode()) {
+            // The batch is already in the mapped segments; committing it means forcing them to disk
+            bytes += segmentStore.force();
+        } else if (!mutations.isEmpty()) {
+            bytes += writeSnapshot();
+        }
+        sample.stop(writeTimer);
+        writeBytes.record(bytes);
+    }
+
+    // The whole message list, to messages.json or in binary mode messages.bin. Returns the bytes written.
+    private long writeSnapshot() throws IOException {
+        lock.lock();
         try {
+            if (isBinaryMode()) {
+                return BinarySnapshot.writeMessages(snapshotFile().toPath(), messages);
+            }
             objectMapper.writeValue(messagesFile, messages);
+            return messagesFile.length();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private File partitionsDir() {
+        return new File(messagesFile.getParentFile(), MESSAGES_PARTITIONS_PATH);
+    }
+
+    private File partitionDir(int index) {
+        return new File(partitionsDir(), String.valueOf(index));
+    }
+
+    // Opens the partitions of the configured ring. If the last start used another layout, first moves the
+    // messages of every receiver whose partition changed: out of the unpartitioned files next to
+    // messages.json, or out of the old partitions, dropping those past the new count.
+    private void loadPartitions() {
+        ring = new HashRing(partitionCount);
+        partitions = new ArrayList<>();
+        List<MessageRepository> opened = new ArrayList<>();
+        try {
+            int previous = readPartitionLayout();
+            // Directories past the count are left by an interrupted move, or are from a larger layout
+            int existing = countPartitionDirs();
+            for (int i = 0; i < Math.max(partitionCount, existing); i++) {
+                opened.add(partition(new File(partitionDir(i), MESSAGES_DB_PATH), "message-commit-" + i));
+            }
+            partitions.addAll(opened.subList(0, partitionCount));
+            if (previous == partitionCount && existing <= partitionCount) {
+                return;
+            }
+            Function<String, MessageRepository> owner = receiver -> partitions.get(ring.partitionOf(receiver));
+            int moved = 0;
+            if (previous == 0) {
+                MessageRepository unpartitioned = partition(messagesFile, commitThreadName);
+                moved += moveOut(unpartitioned, receiver -> false, owner);
+                moveArchive(unpartitioned, owner);
+                unpartitioned.shutdown();
+                deleteRecursively(new File(messagesFile.getParentFile(), MESSAGES_ARCHIVE_PATH));
+            }
+            for (int i = 0; i < existing; i++) {
+                int index = i;
+                moved += moveOut(opened.get(i), receiver -> ring.partitionOf(receiver) == index, owner);
+                if (i >= partitionCount) {
+                    moveArchive(opened.get(i), owner);
+                }
+            }
+            // Written last: a start interrupted before it moves again, and the copies skip what already arrived
+            writePartitionLayout(partitionCount);
+            for (int i = partitionCount; i < opened.size(); i++) {
+                opened.get(i).shutdown();
+                deleteRecursively(partitionDir(i));
+            }
+            meterRegistry.counter("simplechat.repository.partition.moved", "repository", "messages").increment(moved);
         } catch (IOException e) {
-            System.err.println("Error saving message to database: " + e.getMessage());
+            System.err.println("Error repartitioning messages: " + e.getMessage());
+        }
+    }
+
+    // Back to one partition: every partition's messages move here, and messages-partitions/ goes
+    private void mergePartitions() throws IOException {
+        Function<String, MessageRepository> owner = receiver -> this;
+        for (int i = 0; i < countPartitionDirs(); i++) {
+            MessageRepository partition = partition(new File(partitionDir(i), MESSAGES_DB_PATH), "message-commit-" + i);
+            try {
+                moveOut(partition, receiver -> false, owner);
+                moveArchive(partition, owner);
+            } finally {
+                partition.shutdown();
+            }
+        }
+        deleteRecursively(partitionsDir());
+    }
+
+    // A partition: a repository of its own on messagesFile's directory, with this one's settings
+    private MessageRepository partition(File file, String threadName) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        MessageRepository partition = new MessageRepository();
+        partition.persistenceMode = persistenceMode;
+        partition.segmentSize = segmentSize;
+        partition.mappedSegments = mappedSegments;
+        partition.fsyncPolicy = fsyncPolicy;
+        partition.fsyncIntervalMs = fsyncIntervalMs;
+        partition.commitMaxBatchSize = commitMaxBatchSize;
+        partition.commitMaxLatencyMs = commitMaxLatencyMs;
+        partition.retentionReadMaxAgeDays = retentionReadMaxAgeDays;
+        partition.retentionMaxPerConversation = retentionMaxPerConversation;
+        partition.retentionArchive = retentionArchive;
+        partition.meterRegistry = meterRegistry;
+        partition.commitThreadName = threadName;
+        partition.messagesFile = file;
+        partition.partitionMember = true;
+        partition.load();
+        return partition;
+    }
+
+    // One past the highest partition directory on disk
+    private int countPartitionDirs() {
+        String[] names = partitionsDir().list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("\\d+")) {
+                    count = Math.max(count, Integer.parseInt(name) + 1);
+                }
+            }
+        }
+        return count;
+    }
+
+    // Partition count of the last layout written, 0 if there is none (unpartitioned)
+    private int readPartitionLayout() throws IOException {
+        File layoutFile = new File(partitionsDir(), PARTITION_LAYOUT_PATH);
+        if (!layoutFile.exists()) {
+            return 0;
+        }
+        return objectMapper.readValue(layoutFile, new TypeReference<Map<String, Integer>>() {}).getOrDefault("partitions", 0);
+    }
+
+    private void writePartitionLayout(int count) throws IOException {
+        Path file = new File(partitionsDir(), PARTITION_LAYOUT_PATH).toPath();
+        Path tmp = file.resolveSibling(PARTITION_LAYOUT_PATH + ".tmp");
+        Files.writeString(tmp, objectMapper.writeValueAsString(Map.of("partitions", count)));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Moves source's messages whose receiver doesn't stay to the receiver's partition: copied there first,
+    // then removed from source. Returns the number moved.
+    private static int moveOut(MessageRepository source, Predicate<String> stays, Function<String, MessageRepository> owner) throws IOException {
+        Map<MessageRepository, List<Message>> moving = new LinkedHashMap<>();
+        List<Message> leaving = new ArrayList<>();
+        for (Message message : source.findAll()) {
+            if (!stays.test(message.getReceiver())) {
+                moving.computeIfAbsent(owner.apply(message.getReceiver()), k -> new ArrayList<>()).add(message);
+                leaving.add(message);
+            }
+        }
+        if (leaving.isEmpty()) {
+            return 0;
+        }
+        for (Map.Entry<MessageRepository, List<Message>> entry : moving.entrySet()) {
+            entry.getKey().importMessages(entry.getValue());
+        }
+        source.removeMessages(leaving);
+        return leaving.size();
+    }
+
+    // Archived messages of a partition that goes away, into the archives of their receivers' partitions
+    private static void moveArchive(MessageRepository source, Function<String, MessageRepository> owner) throws IOException {
+        if (source.archive == null) {
+            return;
+        }
+        Map<MessageRepository, List<Message>> moving = new LinkedHashMap<>();
+        source.archive.forEach(message -> moving.computeIfAbsent(owner.apply(message.getReceiver()), k -> new ArrayList<>()).add(message));
+        for (Map.Entry<MessageRepository, List<Message>> entry : moving.entrySet()) {
+            if (entry.getKey().archive != null) {
+                entry.getKey().archive.add(entry.getValue());
+            }
+        }
+    }
+
+    // Messages moved here from another partition, numbered afresh; their read flags carry what was
+    // acknowledged. Ids already here, copied by a move that was interrupted, are skipped.
+    private void importMessages(List<Message> moved) throws IOException {
+        Set<String> present = findAll().stream().map(Message::getId).collect(Collectors.toSet());
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        for (Message message : moved) {
+            if (present.add(message.getId())) {
+                Message copy = objectMapper.convertValue(message, Message.class);
+                copy.setSeq(0);
+                saves.add(saveAsync(copy));
+            }
+        }
+        join(CompletableFuture.allOf(saves.toArray(new CompletableFuture[0])));
+    }
+
+    private void removeMessages(List<Message> moved) throws IOException {
+        Set<String> ids = moved.stream().map(Message::getId).collect(Collectors.toSet());
+        if (segmentStore != null) {
+            rewriteSegments(m -> !ids.contains(m.getId()));
+            return;
+        }
+        lock.lock();
+        try {
+            moved.forEach(this::unindexUnread);
+        } finally {
+            lock.unlock();
         }
+        join(removeAsync(moved));
     }
 
+    // Segments can't drop single messages: the kept ones are copied into fresh segments, which then replace
+    // the old ones. They are numbered afresh, so the cursors go; the read flags carry what was acknowledged.
+    private void rewriteSegments(Predicate<Message> keep) throws IOException {
+        Path dir = new File(messagesFile.getParentFile(), MESSAGES_SEGMENTS_PATH).toPath();
+        Path fresh = dir.resolveSibling(MESSAGES_SEGMENTS_PATH + ".tmp");
+        Path replaced = dir.resolveSibling(MESSAGES_SEGMENTS_PATH + ".old");
+        List<Message> kept = segmentStore.findAll().stream().filter(keep).collect(Collectors.toList());
+        deleteRecursively(fresh.toFile());
+        try (MessageSegmentStore store = new MessageSegmentStore(fresh, segmentSize, mappedSegments)) {
+            for (Message message : kept) {
+                store.append(message);
+            }
+            store.force();
+        }
+        lock.lock();
+        try {
+            segmentStore.close();
+            deleteRecursively(replaced.toFile());
+            Files.move(dir, replaced);
+            Files.move(fresh, dir);
+            deleteRecursively(replaced.toFile());
+            segmentStore = new MessageSegmentStore(dir, segmentSize, mappedSegments);
+            deliveryCursors.clear();
+        } finally {
+            lock.unlock();
+        }
+        writeDeliveryCursors();
+    }
+
+    private static void join(CompletableFuture<?> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private MessageRepository partitionFor(String receiver) {
+        return partitions.get(ring.partitionOf(receiver));
+    }
+
+    private boolean isLogMode() {
+        return "log".equalsIgnoreCase(persistenceMode);
+    }
+
+    private boolean isBinaryMode() {
+        return "binary".equalsIgnoreCase(persistenceMode);
+    }
+
+    private boolean isSegmentMode() {
+        return "segments".equalsIgnoreCase(persistenceMode);
+    }
+
+    // Writes the current state to messages.json, whatever the persistence mode
+    public void exportSnapshot() throws IOException {
+        if (partitions != null) {
+            for (MessageRepository partition : partitions) {
+                partition.exportSnapshot(); // Each to its own directory
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            objectMapper.writeValue(messagesFile, segmentStore != null ? segmentStore.findAll() : messages);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (partitions != null) {
+            partitions.forEach(MessageRepository::shutdown);
+            return;
+        }
+        if (committer != null) {
+            committer.close();
+        }
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+        if (messageLog == null) {
+            return;
+        }
+        try {
+            exportSnapshot();
+            messageLog.close();
+        } catch (IOException e) {
+            System.err.println("Error closing message log: " + e.getMessage());
+        }
+    }
+
+    public GroupCommitter<MessageLogEntry> getCommitter() {
+        return partitions != null ? partitions.get(0).getCommitter() : committer;
+    }
+
+    // Blocks until the message is durable. Write errors are logged, as before.
+    public void save(Message message) {
+        await(saveAsync(message), "Error saving message to database: ");
+    }
+
+    // Visible to readers immediately; the future completes once the message's batch is written
+    public CompletableFuture<Void> saveAsync(Message message) {
+        if (partitions != null) {
+            return partitionFor(message.getReceiver()).saveAsync(message);
+        }
+        lock.lock();
+        try {
+            if (segmentStore != null) {
+                try {
+                    segmentStore.append(message);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            } else {
+                message.setSeq(++lastSeq);
+                addToMemory(message);
+                if (!message.isRead()) {
+                    indexUnread(message);
+                }
+            }
+            // Submitted under the lock so the commit order matches the in-memory order
+            return committer.submit(MessageLogEntry.save(message));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The user's messages not yet acknowledged (nor marked read), in seq order
     public List<Message> findUnreadMessagesForUser(String username) {
-        return messages.stream()
-                .filter(m -> m.getReceiver().equals(username) && !m.isRead())
-                .collect(Collectors.toList());
+        if (partitions != null) {
+            return partitionFor(username).findUnreadMessagesForUser(username);
+        }
+        lock.lock();
+        try {
+            if (segmentStore != null) {
+                return segmentStore.findUnread(username);
+            }
+            Map<String, Message> unread = unreadByReceiver.get(username);
+            return unread == null ? new ArrayList<>() : new ArrayList<>(unread.values());
+        } catch (IOException e) {
+            System.err.println("Error reading unread messages: " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void markMessagesAsRead(List<Message> msgs) {
-        msgs.forEach(m -> {
-            m.setRead(true);
-            // Optionally update the message in the list, though it's already a reference
-        });
+    // Up to limit messages between the two users strictly before the cursor, oldest first.
+    // A null cursor returns the newest messages. Archived messages are included.
+    public List<Message> findConversationPage(String userA, String userB, ConversationCursor before, int limit) {
+        if (partitions != null) {
+            // Live messages are with each receiver's partition, archived ones stay where they were archived
+            List<Message> merged = new ArrayList<>();
+            for (MessageRepository partition : partitions) {
+                List<Message> page = partition.findConversationPage(userA, userB, before, limit);
+                merged = merged.isEmpty() ? page : newest(merged, page, limit);
+            }
+            return merged;
+        }
+        List<Message> live;
+        lock.lock();
         try {
-            objectMapper.writeValue(messagesFile, messages);
+            live = segmentStore != null
+                    ? segmentStore.findConversation(userA, userB, before, limit)
+                    : conversations.page(userA, userB, before, limit);
+        } catch (IOException e) {
+            System.err.println("Error reading conversation: " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        if (archive == null) {
+            return live;
+        }
+        try {
+            // Unread messages never leave, so archived ones can be newer than live ones: merge, don't append
+            List<Message> archived = archive.page(userA, userB, before, limit);
+            return archived.isEmpty() ? live : newest(live, archived, limit);
         } catch (IOException e) {
-            System.err.println("Error marking messages as read: " + e.getMessage());
+            System.err.println("Error reading archived conversation: " + e.getMessage());
+            return live;
+        }
+    }
+
+    // The newest limit messages of both pages in conversation order. Archived copies of live
+    // messages, left by a compaction interrupted after archiving, are dropped.
+    private static List<Message> newest(List<Message> live, List<Message> archived, int limit) {
+        Set<String> liveIds = live.stream().map(Message::getId).collect(Collectors.toSet());
+        List<Message> merged = new ArrayList<>(live);
+        archived.stream().filter(m -> !liveIds.contains(m.getId())).forEach(merged::add);
+        merged.sort(ConversationIndex.ORDER);
+        return new ArrayList<>(merged.subList(Math.max(0, merged.size() - limit), merged.size()));
+    }
+
+    // Takes read messages past the retention rules out of the live set, so it is bounded by recent
+    // traffic rather than by the age of the deployment. They are archived, or with archiving off
+    // deleted and handed to deleted (e.g. to release attachments). Segments mode drops whole segments,
+    // see MessageSegmentStore.findRetirable. Returns the number of messages removed.
+    public int compact(Consumer<Message> deleted) {
+        if (partitions != null) {
+            return partitions.stream().mapToInt(partition -> partition.compact(deleted)).sum();
+        }
+        if (retentionReadMaxAgeDays <= 0 && retentionMaxPerConversation <= 0) {
+            return 0;
+        }
+        LocalDateTime readBefore = retentionReadMaxAgeDays > 0 ? LocalDateTime.now().minusDays(retentionReadMaxAgeDays) : null;
+        compactionLock.lock();
+        try {
+            if (retentionArchive && archive == null) {
+                return 0; // Nowhere to archive to
+            }
+            List<Message> retired;
+            if (segmentStore != null) {
+                retired = segmentStore.findRetirable(readBefore, retentionMaxPerConversation);
+            } else {
+                lock.lock();
+                try {
+                    retired = messages.stream()
+                            .filter(m -> conversations.isRetired(m, readBefore, retentionMaxPerConversation))
+                            .collect(Collectors.toList());
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (retired.isEmpty()) {
+                return 0;
+            }
+            // Archived before they are removed: a crash in between only leaves copies, which the
+            // archive skips when the next run retires them again
+            if (retentionArchive) {
+                archive.add(retired);
+            }
+            if (segmentStore != null) {
+                segmentStore.retire(retired.size());
+            } else {
+                await(removeAsync(retired), "Error compacting messages: ");
+            }
+            if (!retentionArchive) {
+                retired.forEach(deleted);
+            }
+            return retired.size();
+        } catch (IOException e) {
+            System.err.println("Error compacting messages: " + e.getMessage());
+            return 0;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> removeAsync(List<Message> retired) {
+        lock.lock();
+        try {
+            List<String> ids = retired.stream().map(Message::getId).collect(Collectors.toList());
+            removeFromMemory(ids);
+            return committer.submit(MessageLogEntry.delete(ids));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every archived message, read from disk one conversation at a time; findAll has the live ones
+    public void forEachArchived(Consumer<Message> consumer) {
+        if (partitions != null) {
+            partitions.forEach(partition -> partition.forEachArchived(consumer));
+            return;
+        }
+        if (archive == null) {
+            return;
+        }
+        try {
+            archive.forEach(consumer);
+        } catch (IOException e) {
+            System.err.println("Error reading archived messages: " + e.getMessage());
+        }
+    }
+
+    // Advances the user's delivery cursor to cursor, but never past the last message saved: their
+    // messages with a seq up to it count as read from now on. A cursor at or below the current one
+    // changes nothing. Blocks until the cursor is durable. Returns the number of messages that were unread.
+    public int acknowledge(String username, long cursor) {
+        int[] acknowledged = new int[1];
+        await(acknowledgeAsync(username, cursor, acknowledged), "Error saving delivery cursor: ");
+        return acknowledged[0];
+    }
+
+    private CompletableFuture<Void> acknowledgeAsync(String username, long cursor, int[] acknowledged) {
+        if (partitions != null) {
+            return partitionFor(username).acknowledgeAsync(username, cursor, acknowledged);
+        }
+        lock.lock();
+        try {
+            long current = deliveryCursors.getOrDefault(username, 0L);
+            long accepted;
+            if (segmentStore != null) {
+                acknowledged[0] = segmentStore.acknowledge(username, cursor);
+                accepted = segmentStore.getDeliveryCursor(username);
+            } else {
+                accepted = Math.min(cursor, lastSeq);
+                if (accepted > current) {
+                    acknowledged[0] = markAcknowledged(username, accepted);
+                }
+            }
+            if (accepted <= current) {
+                return CompletableFuture.completedFuture(null);
+            }
+            deliveryCursors.put(username, accepted);
+            return committer.submit(MessageLogEntry.ack(username, accepted));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets the read flag in memory only; json and binary modes persist it with their next rewrite
+    private int markAcknowledged(String username, long cursor) {
+        Map<String, Message> unread = unreadByReceiver.get(username);
+        if (unread == null) {
+            return 0;
+        }
+        // In seq order, so the acknowledged ones are a prefix
+        int acknowledged = 0;
+        Iterator<Message> it = unread.values().iterator();
+        Message message;
+        while (it.hasNext() && (message = it.next()).getSeq() <= cursor) {
+            message.setRead(true);
+            it.remove();
+            acknowledged++;
+        }
+        if (unread.isEmpty()) {
+            unreadByReceiver.remove(username);
+        }
+        return acknowledged;
+    }
+
+    // Seq of the last message the user acknowledged, 0 if none
+    public long getDeliveryCursor(String username) {
+        if (partitions != null) {
+            return partitionFor(username).getDeliveryCursor(username);
+        }
+        lock.lock();
+        try {
+            return deliveryCursors.getOrDefault(username, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void markMessagesAsRead(List<Message> msgs) {
+        await(markMessagesAsReadAsync(msgs), "Error marking messages as read: ");
+    }
+
+    public CompletableFuture<Void> markMessagesAsReadAsync(List<Message> msgs) {
+        if (partitions != null) {
+            Map<MessageRepository, List<Message>> byPartition = msgs.stream()
+                    .collect(Collectors.groupingBy(m -> partitionFor(m.getReceiver()), LinkedHashMap::new, Collectors.toList()));
+            return CompletableFuture.allOf(byPartition.entrySet().stream()
+                    .map(e -> e.getKey().markMessagesAsReadAsync(e.getValue()))
+                    .toArray(CompletableFuture[]::new));
+        }
+        lock.lock();
+        try {
+            if (segmentStore != null) {
+                try {
+                    segmentStore.markRead(msgs);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            } else {
+                msgs.forEach(m -> {
+                    m.setRead(true);
+                    unindexUnread(m);
+                });
+            }
+            return committer.submit(MessageLogEntry.read(msgs.stream().map(Message::getId).collect(Collectors.toList())));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future, String errorPrefix) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            System.err.println(errorPrefix + e.getCause().getMessage());
         }
     }
 
     // For simplicity, we just save/load all messages. In a real app, you'd manage them.
     public List<Message> findAll() {
-        return new ArrayList<>(messages);
+        if (partitions != null) {
+            List<Message> all = new ArrayList<>();
+            partitions.forEach(partition -> all.addAll(partition.findAll()));
+            return all;
+        }
+        lock.lock();
+        try {
+            return segmentStore != null ? segmentStore.findAll() : new ArrayList<>(messages);
+        } catch (IOException e) {
+            System.err.println("Error reading messages: " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,636 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Messages kept in fixed-size, memory-mapped segment files, so the history lives in the page
+ * cache rather than on the heap.
+ *
+ * Records are appended to the newest segment; when one doesn't fit, the segment is forced and a
+ * new one started. A record is [int length][int crc32 of body][byte flags][body]. The read flag
+ * lives in flags, outside the checksum, so marking a message read is a one-byte write in place.
+ * A zero length ends a segment's records, and so does a record whose checksum doesn't match
+ * (torn by a crash before force()).
+ *
+ * The heap holds the offset index (one long per record: segment number and offset, in append
+ * order), the conversation index over it and the positions of unread messages by receiver.
+ * At most mappedSegments segments are mapped at a time: the newest ones when opened, older ones
+ * on first access, evicting the least recently used. The OS pages mapped data in and out as needed.
+ *
+ * Retention deletes whole segments from the oldest end (see findRetirable and retire), so the
+ * remaining files are numbered contiguously from the oldest one kept, not necessarily from zero.
+ *
+ * A message's sequence number is its position plus one: it grows in append order and never
+ * changes, so it is not stored in the record. Delivery cursors (see acknowledge) are kept by the
+ * caller and handed in after opening; a message at or below its receiver's cursor reads as read
+ * without its flag being written.
+ */
+public class MessageSegmentStore implements Closeable {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{8})\\.segment");
+    private static final int HEADER_SIZE = 9;
+    private static final int FLAGS_OFFSET = 8;
+    private static final byte READ = 1;
+    private static final byte ID_UUID = 1;
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int mappedSegments;
+    // Segment number = firstSegment + index; the last one takes the appends
+    private final List<Segment> segments = new ArrayList<>();
+    private int firstSegment;
+    // Mapped segments in least recently used order
+    private final LinkedHashMap<Segment, MappedByteBuffer> mapped = new LinkedHashMap<>(16, 0.75f, true);
+    // Ranges changed since the last force(), by the mapping they were written through
+    private final Map<MappedByteBuffer, int[]> dirtyRanges = new IdentityHashMap<>();
+    private long[] positions = new long[1024];
+    private int count;
+    // Records deleted with retired segments. Ordinals in the conversation index count from the first
+    // record since opening, so they stay valid: a record's ordinal is retiredRecords + its index here.
+    private int retiredRecords;
+    // Key: receiver username, Value: message id -> position of that user's unread messages, in append order
+    private final Map<String, LinkedHashMap<String, Long>> unreadByReceiver = new HashMap<>();
+    // Key: receiver username, Value: sequence number of the last message they acknowledged
+    private final Map<String, Long> deliveryCursors = new HashMap<>();
+    private final ConversationIndex conversations = new ConversationIndex(ordinal -> {
+        try {
+            return read(positions[ordinal - retiredRecords]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    });
+    // Callers may be virtual threads and force() blocks on disk I/O, so this is a lock, not a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final class Segment {
+        final int number;
+        final Path file;
+        int end; // offset of the first free byte
+
+        Segment(int number, Path file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    public MessageSegmentStore(Path dir, int segmentSize, int mappedSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.mappedSegments = Math.max(1, mappedSegments);
+        Files.createDirectories(dir);
+
+        TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                Matcher matcher = SEGMENT_NAME.matcher(entry.getFileName().toString());
+                if (matcher.matches()) {
+                    files.put(Integer.parseInt(matcher.group(1)), entry);
+                }
+            }
+        }
+        firstSegment = files.isEmpty() ? 0 : files.firstKey();
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            if (file.getKey() != firstSegment + segments.size()) {
+                throw new IOException("Missing message segment " + segmentName(firstSegment + segments.size()) + " in " + dir);
+            }
+            Segment segment = new Segment(file.getKey(), file.getValue());
+            segments.add(segment);
+            scan(segment);
+        }
+        if (segments.isEmpty()) {
+            addSegment();
+        }
+        // Pre-fault the newest segments; recent history is what gets read
+        for (int i = Math.max(0, segments.size() - this.mappedSegments); i < segments.size(); i++) {
+            map(segments.get(i)).load();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void append(Message message) throws IOException {
+        byte[] body = encode(message);
+        int recordSize = HEADER_SIZE + body.length;
+        if (recordSize > segmentSize) {
+            throw new IOException("Message " + message.getId() + " is too large for a " + segmentSize + " byte segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        lock.lock();
+        try {
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.end + recordSize > segmentSize) {
+                // Sealed segments are forced, so a crash can only tear records in the last one
+                MappedByteBuffer sealed = map(segment);
+                int[] range = dirtyRanges.remove(sealed);
+                if (range != null) {
+                    sealed.force(range[0], range[1] - range[0]);
+                }
+                segment = addSegment();
+            }
+            MappedByteBuffer buffer = map(segment);
+            int offset = segment.end;
+            buffer.put(offset + HEADER_SIZE, body);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            buffer.put(offset + FLAGS_OFFSET, message.isRead() ? READ : 0);
+            // Length last: until it is set the slot still reads as the end of the segment
+            buffer.putInt(offset, body.length);
+            segment.end += recordSize;
+            markDirty(buffer, offset, segment.end);
+
+            long position = position(segment.number, offset);
+            addPosition(position);
+            message.setSeq(seq(position));
+            conversations.add(message.getSender(), message.getReceiver(), message.getTimestamp(), message.getId(), retiredRecords + count - 1);
+            if (!message.isRead()) {
+                unreadByReceiver.computeIfAbsent(message.getReceiver(), k -> new LinkedHashMap<>()).put(message.getId(), position);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Message> findUnread(String receiver) throws IOException {
+        lock.lock();
+        try {
+            LinkedHashMap<String, Long> unread = unreadByReceiver.get(receiver);
+            List<Message> messages = new ArrayList<>();
+            if (unread != null) {
+                for (long position : unread.values()) {
+                    messages.add(read(position));
+                }
+            }
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to limit messages between the two users strictly before the cursor, oldest first
+    public List<Message> findConversation(String userA, String userB, ConversationCursor before, int limit) throws IOException {
+        lock.lock();
+        try {
+            return conversations.page(userA, userB, before, limit);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets the read flag of each message, on the objects and in place in their records
+    public void markRead(List<Message> messages) throws IOException {
+        lock.lock();
+        try {
+            for (Message message : messages) {
+                message.setRead(true);
+                LinkedHashMap<String, Long> unread = unreadByReceiver.get(message.getReceiver());
+                Long position = unread == null ? null : unread.remove(message.getId());
+                if (position == null) {
+                    continue;
+                }
+                if (unread.isEmpty()) {
+                    unreadByReceiver.remove(message.getReceiver());
+                }
+                MappedByteBuffer buffer = map(segment(segmentNumber(position)));
+                int flagsOffset = offset(position) + FLAGS_OFFSET;
+                buffer.put(flagsOffset, (byte) (buffer.get(flagsOffset) | READ));
+                markDirty(buffer, flagsOffset, flagsOffset + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Advances the receiver's delivery cursor to seq, but never past the last message appended: the
+    // receiver's messages up to it stop being unread. Nothing is written; the caller persists cursors.
+    // Returns the number of messages that stopped being unread.
+    public int acknowledge(String receiver, long seq) {
+        lock.lock();
+        try {
+            long cursor = Math.min(seq, count == 0 ? 0 : seq(positions[count - 1]));
+            if (cursor <= deliveryCursors.getOrDefault(receiver, 0L)) {
+                return 0;
+            }
+            deliveryCursors.put(receiver, cursor);
+            LinkedHashMap<String, Long> unread = unreadByReceiver.get(receiver);
+            if (unread == null) {
+                return 0;
+            }
+            // In append order, so the acknowledged ones are a prefix
+            int acknowledged = 0;
+            Iterator<Long> positionsOfUnread = unread.values().iterator();
+            while (positionsOfUnread.hasNext() && seq(positionsOfUnread.next()) <= cursor) {
+                positionsOfUnread.remove();
+                acknowledged++;
+            }
+            if (unread.isEmpty()) {
+                unreadByReceiver.remove(receiver);
+            }
+            return acknowledged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDeliveryCursor(String receiver) {
+        lock.lock();
+        try {
+            return deliveryCursors.getOrDefault(receiver, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every message in append order. Decodes the whole history, so it is meant for startup and export.
+    public List<Message> findAll() throws IOException {
+        lock.lock();
+        try {
+            List<Message> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(read(positions[i]));
+            }
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages of the oldest sealed segments in which every message is retired (see
+    // ConversationIndex.isRetired), up to the first segment still holding a live one. A single
+    // unread message keeps its whole segment. The lock is taken per segment, so appends carry on.
+    public List<Message> findRetirable(LocalDateTime readBefore, int maxPerConversation) throws IOException {
+        List<Message> retirable = new ArrayList<>();
+        int index = 0;
+        for (int s = 0; ; s++) {
+            lock.lock();
+            try {
+                // The segment taking appends is never retired
+                if (s >= segments.size() - 1) {
+                    return retirable;
+                }
+                int number = segments.get(s).number;
+                List<Message> segment = new ArrayList<>();
+                for (; index < count && segmentNumber(positions[index]) == number; index++) {
+                    Message message = read(positions[index]);
+                    if (!conversations.isRetired(message, readBefore, maxPerConversation)) {
+                        return retirable;
+                    }
+                    segment.add(message);
+                }
+                retirable.addAll(segment);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Deletes the oldest segments, which must hold exactly the first records messages: a result of
+    // findRetirable, with no retire in between. Files go oldest first, so a crash part way still
+    // leaves a contiguous run of segments.
+    public void retire(int records) throws IOException {
+        List<Segment> retired = new ArrayList<>();
+        lock.lock();
+        try {
+            int covered = 0;
+            while (covered < records) {
+                if (retired.size() >= segments.size() - 1) {
+                    throw new IllegalArgumentException("Cannot retire " + records + " records: reaches the open segment");
+                }
+                int number = segments.get(retired.size()).number;
+                while (covered < count && segmentNumber(positions[covered]) == number) {
+                    covered++;
+                }
+                retired.add(segments.get(retired.size()));
+            }
+            if (covered != records) {
+                throw new IllegalArgumentException("Cannot retire " + records + " records: not a segment boundary");
+            }
+            segments.subList(0, retired.size()).clear();
+            firstSegment += retired.size();
+            for (Segment segment : retired) {
+                MappedByteBuffer buffer = mapped.remove(segment);
+                if (buffer != null) {
+                    dirtyRanges.remove(buffer);
+                }
+            }
+            System.arraycopy(positions, records, positions, 0, count - records);
+            count -= records;
+            retiredRecords += records;
+            int firstOrdinal = retiredRecords;
+            conversations.retain(ordinal -> ordinal >= firstOrdinal);
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : retired) {
+            Files.deleteIfExists(segment.file);
+        }
+    }
+
+    // Makes everything appended or marked read so far durable. Returns the number of bytes forced.
+    public long force() {
+        List<Map.Entry<MappedByteBuffer, int[]>> ranges;
+        lock.lock();
+        try {
+            ranges = new ArrayList<>(dirtyRanges.entrySet());
+            dirtyRanges.clear();
+        } finally {
+            lock.unlock();
+        }
+        // msync outside the lock, so appends carry on meanwhile
+        long bytes = 0;
+        for (Map.Entry<MappedByteBuffer, int[]> range : ranges) {
+            int from = range.getValue()[0];
+            int length = range.getValue()[1] - from;
+            range.getKey().force(from, length);
+            bytes += length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        force();
+        lock.lock();
+        try {
+            // The mappings themselves are released when the buffers are garbage collected
+            mapped.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        MappedByteBuffer buffer = map(segment);
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || offset + HEADER_SIZE + length > segmentSize || !checksumMatches(buffer, offset, length)) {
+                System.err.println("Discarding torn record at " + segment.file.getFileName() + ":" + offset);
+                // Clear it, so a shorter record appended here doesn't leave a plausible tail behind
+                int tornEnd = length < 0 ? offset + HEADER_SIZE : Math.min(segmentSize, offset + HEADER_SIZE + length);
+                buffer.put(offset, new byte[tornEnd - offset]);
+                markDirty(buffer, offset, tornEnd);
+                break;
+            }
+            long position = position(segment.number, offset);
+            addPosition(position);
+            RecordReader record = new RecordReader(buffer, offset + HEADER_SIZE);
+            String id = record.readId();
+            String receiver = record.readString();
+            String sender = record.readString();
+            record.skipString(); // content
+            record.skipString(); // fileLink
+            record.skipString(); // fileName
+            conversations.add(sender, receiver, record.readTimestamp(), id, retiredRecords + count - 1);
+            if ((buffer.get(offset + FLAGS_OFFSET) & READ) == 0) {
+                unreadByReceiver.computeIfAbsent(receiver, k -> new LinkedHashMap<>()).put(id, position);
+            }
+            offset += HEADER_SIZE + length;
+        }
+        segment.end = offset;
+    }
+
+    private static boolean checksumMatches(MappedByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + HEADER_SIZE, length));
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    private Message read(long position) throws IOException {
+        MappedByteBuffer buffer = map(segment(segmentNumber(position)));
+        int offset = offset(position);
+        RecordReader record = new RecordReader(buffer, offset + HEADER_SIZE);
+        Message message = new Message();
+        message.setId(record.readId());
+        message.setReceiver(record.readString());
+        message.setSender(record.readString());
+        message.setContent(record.readString());
+        message.setFileLink(record.readString());
+        message.setFileName(record.readString());
+        message.setTimestamp(record.readTimestamp());
+        message.setSeq(seq(position));
+        message.setRead((buffer.get(offset + FLAGS_OFFSET) & READ) != 0
+                || message.getSeq() <= deliveryCursors.getOrDefault(message.getReceiver(), 0L));
+        return message;
+    }
+
+    private Segment segment(int number) {
+        return segments.get(number - firstSegment);
+    }
+
+    private Segment addSegment() throws IOException {
+        int number = firstSegment + segments.size();
+        Segment segment = new Segment(number, dir.resolve(segmentName(number)));
+        segments.add(segment);
+        map(segment);
+        return segment;
+    }
+
+    private MappedByteBuffer map(Segment segment) throws IOException {
+        MappedByteBuffer buffer = mapped.get(segment);
+        if (buffer != null) {
+            return buffer;
+        }
+        // Mapping READ_WRITE past the end grows the file to the full segment size (sparse until written)
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        mapped.put(segment, buffer);
+        Iterator<Map.Entry<Segment, MappedByteBuffer>> eldest = mapped.entrySet().iterator();
+        while (mapped.size() > mappedSegments && eldest.hasNext()) {
+            Segment candidate = eldest.next().getKey();
+            // The segment taking appends stays mapped. Evicted mappings with unforced changes are
+            // still referenced from dirtyRanges, so the next force() reaches them.
+            if (candidate != segments.get(segments.size() - 1) && candidate != segment) {
+                eldest.remove();
+            }
+        }
+        return buffer;
+    }
+
+    private void markDirty(MappedByteBuffer buffer, int from, int to) {
+        int[] range = dirtyRanges.get(buffer);
+        if (range == null) {
+            dirtyRanges.put(buffer, new int[]{from, to});
+        } else {
+            range[0] = Math.min(range[0], from);
+            range[1] = Math.max(range[1], to);
+        }
+    }
+
+    private void addPosition(long position) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        positions[count++] = position;
+    }
+
+    private static long position(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | offset;
+    }
+
+    private static long seq(long position) {
+        return position + 1;
+    }
+
+    private static int segmentNumber(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("%08d.segment", number);
+    }
+
+    // Body: [byte fields][id: 16 bytes if ID_UUID, else string][receiver][sender][content][fileLink][fileName]
+    // [long epoch second (NO_TIMESTAMP if null)][int nano]. Strings are [int length, -1 for null][UTF-8].
+    // scan() skips over the strings it doesn't index.
+    private static byte[] encode(Message message) {
+        UUID uuid = BinarySnapshot.parseUuid(message.getId());
+        byte[][] strings = {
+                uuid == null ? utf8(message.getId()) : null,
+                utf8(message.getReceiver()),
+                utf8(message.getSender()),
+                utf8(message.getContent()),
+                utf8(message.getFileLink()),
+                utf8(message.getFileName())
+        };
+        int length = 1 + (uuid != null ? 16 : 0) + 12;
+        for (int i = uuid != null ? 1 : 0; i < strings.length; i++) {
+            length += 4 + (strings[i] == null ? 0 : strings[i].length);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(uuid != null ? ID_UUID : 0);
+        if (uuid != null) {
+            body.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        }
+        for (int i = uuid != null ? 1 : 0; i < strings.length; i++) {
+            if (strings[i] == null) {
+                body.putInt(-1);
+            } else {
+                body.putInt(strings[i].length).put(strings[i]);
+            }
+        }
+        LocalDateTime timestamp = message.getTimestamp();
+        body.putLong(timestamp == null ? NO_TIMESTAMP : timestamp.toEpochSecond(ZoneOffset.UTC));
+        body.putInt(timestamp == null ? 0 : timestamp.getNano());
+        return body.array();
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class RecordReader {
+
+        private final ByteBuffer buffer;
+        private int offset;
+
+        RecordReader(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        String readId() {
+            byte fields = buffer.get(offset++);
+            if ((fields & ID_UUID) == 0) {
+                return readString();
+            }
+            UUID uuid = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+            offset += 16;
+            return uuid.toString();
+        }
+
+        String readString() {
+            int length = buffer.getInt(offset);
+            offset += 4;
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            offset += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void skipString() {
+            int length = buffer.getInt(offset);
+            offset += 4 + Math.max(0, length);
+        }
+
+        LocalDateTime readTimestamp() {
+            long epochSecond = buffer.getLong(offset);
+            int nano = buffer.getInt(offset + 8);
+            offset += 12;
+            return epochSecond == NO_TIMESTAMP ? null : LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+        }
+    }
+}
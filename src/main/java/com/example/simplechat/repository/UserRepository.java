@@ -4,25 +4,95 @@ import com.example.simplechat.model.User;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Repository;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Repository
 public class UserRepository {
 
     private static final String USERS_DB_PATH = "users.json";
-    private List<User> users;
+    private static final String USERS_SNAPSHOT_PATH = "users.bin";
+    private static final String USERS_PARTITIONS_PATH = "users-partitions";
+
+    // "json": rewrite users.json on every save (original behaviour)
+    // "binary": rewrite the compact users.bin (see BinarySnapshot) instead, users.json is only imported once
+    @Value("${simplechat.users.persistence:json}")
+    private String persistenceMode = "json";
+
+    // Users split by username over this many partitions on a consistent-hash ring (see HashRing), each with
+    // its own user map, its own file under users-partitions/<n>/ and its own writer thread, so saves of users in
+    // different partitions share nothing but the friend graph and the token index. 1 keeps users.json. After a
+    // change, the next start rewrites the partitions whose users changed.
+    @Value("${simplechat.users.partitions:1}")
+    private int partitionCount = 1;
+
+    // Saves queued on one partition's writer while it rewrites the file all go in its next rewrite
+    private static final int USER_COMMIT_MAX_BATCH_SIZE = 1024;
+
+    // One slice of the users; when partitioned also its file and writer
+    private static final class Partition {
+        // Key: username
+        final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        // Serializes index updates; a ReentrantLock so virtual threads waiting on it don't pin their carrier
+        final ReentrantLock lock = new ReentrantLock();
+        final File file;
+        GroupCommitter<User> committer;
+
+        Partition(File file) {
+            this.file = file;
+        }
+    }
+
+    private HashRing ring = new HashRing(1);
+    // Everyone when unpartitioned; written synchronously to users.json or users.bin under its lock
+    private final Partition whole = new Partition(null);
+    // Null unless partitioned
+    private List<Partition> partitions;
+
+    // Key: current access token, Value: username. One index over all partitions, since a token doesn't say
+    // whose it is. Tokens are rotated by mutating the User before save(), so indexedTokens remembers which
+    // token each username is currently indexed under. Each username is only indexed under its partition's lock.
+    private final ConcurrentHashMap<String, String> usernamesByAccessToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> indexedTokens = new ConcurrentHashMap<>();
+
+    // Friend lists of all users, both directions. User.friends stays the persisted form and index() keeps the two in step.
+    private final FriendGraph friendGraph = new FriendGraph();
     private final ObjectMapper objectMapper;
     private File usersFile;
 
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+    // Registered by load() for the persistence mode, so a write only records
+    private Timer writeTimer;
+    private DistributionSummary writeBytes;
+
     public UserRepository() {
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
@@ -34,44 +104,307 @@ public class UserRepository {
         try {
             // Get the actual file path from classpath resource
             usersFile = new ClassPathResource(USERS_DB_PATH).getFile();
-            if (usersFile.exists() && usersFile.length() > 0) {
-                User[] userArray = objectMapper.readValue(usersFile, User[].class);
-                users = new ArrayList<>(Arrays.asList(userArray));
-            } else {
-                users = new ArrayList<>();
-                // Create an empty JSON array if file is new
-                objectMapper.writeValue(usersFile, users);
-            }
+            load();
         } catch (IOException e) {
             System.err.println("Error initializing users database: " + e.getMessage());
-            users = new ArrayList<>(); // Initialize as empty list on error
+        }
+    }
+
+    private void load() throws IOException {
+        String mode = isBinaryMode() ? "binary" : "json";
+        writeTimer = meterRegistry.timer("simplechat.repository.write", "repository", "users", "mode", mode);
+        writeBytes = DistributionSummary.builder("simplechat.repository.write.bytes")
+                .baseUnit("bytes")
+                .tags("repository", "users", "mode", mode)
+                .register(meterRegistry);
+        if (partitionCount > 1) {
+            loadPartitions();
+            return;
+        }
+        if (isBinaryMode() && snapshotFile().exists()) {
+            BinarySnapshot.readUsers(snapshotFile().toPath(), this::index);
+        } else if (usersFile.exists() && usersFile.length() > 0) {
+            User[] userArray = objectMapper.readValue(usersFile, User[].class);
+            for (User user : userArray) {
+                index(user);
+            }
+            if (isBinaryMode()) {
+                // First start in binary mode: convert the JSON file
+                BinarySnapshot.writeUsers(snapshotFile().toPath(), findAll());
+            }
+        } else {
+            // Create an empty JSON array if file is new
+            objectMapper.writeValue(usersFile, new ArrayList<User>());
+        }
+        if (partitionsDir().isDirectory()) {
+            // Back to one partition: every partition's users move into the one file, and users-partitions/ goes
+            for (File file : partitionFiles()) {
+                readUsers(file).forEach(this::index);
+            }
+            write(isBinaryMode() ? snapshotFile() : usersFile, findAll());
+            deleteRecursively(partitionsDir());
+        }
+    }
+
+    // Reads every user on disk, whichever layout wrote them, then rewrites the partitions whose users
+    // changed and drops the files the layout no longer uses
+    private void loadPartitions() throws IOException {
+        shutdown();
+        ring = new HashRing(partitionCount);
+        partitions = new ArrayList<>();
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new Partition(new File(new File(partitionsDir(), String.valueOf(i)), isBinaryMode() ? USERS_SNAPSHOT_PATH : USERS_DB_PATH)));
+        }
+        Set<File> current = partitions.stream().map(p -> p.file).collect(Collectors.toSet());
+        List<File> stale = new ArrayList<>();
+        File unpartitioned = isBinaryMode() && snapshotFile().exists() ? snapshotFile() : usersFile;
+        if (unpartitioned.exists()) {
+            stale.add(unpartitioned);
+        }
+        partitionFiles().stream().filter(f -> !current.contains(f)).forEach(stale::add);
+
+        // Stale files first: a user left in two files by an interrupted move keeps the copy in their partition
+        Map<File, Set<String>> onDisk = new HashMap<>();
+        int moved = 0;
+        for (File file : stale) {
+            List<User> users = readUsers(file);
+            users.forEach(this::index);
+            moved += users.size();
+        }
+        for (Partition partition : partitions) {
+            if (partition.file.exists()) {
+                List<User> users = readUsers(partition.file);
+                users.forEach(this::index);
+                moved += (int) users.stream().filter(u -> partitionFor(u.getUsername()) != partition).count();
+                onDisk.put(partition.file, users.stream().map(User::getUsername).collect(Collectors.toSet()));
+            }
+        }
+        for (Partition partition : partitions) {
+            if (!partition.users.keySet().equals(onDisk.get(partition.file))) {
+                Files.createDirectories(partition.file.getParentFile().toPath());
+                write(partition.file, partition.users.values());
+            }
+        }
+        // Only once every user is in their partition's file
+        for (File file : stale) {
+            if (file.equals(usersFile)) {
+                objectMapper.writeValue(usersFile, new ArrayList<User>());
+            } else {
+                Files.delete(file.toPath());
+            }
+        }
+        for (int i = partitionCount; ; i++) {
+            File dir = new File(partitionsDir(), String.valueOf(i));
+            if (!dir.exists()) {
+                break;
+            }
+            deleteRecursively(dir);
+        }
+        meterRegistry.counter("simplechat.repository.partition.moved", "repository", "users").increment(moved);
+
+        for (int i = 0; i < partitions.size(); i++) {
+            Partition partition = partitions.get(i);
+            // No latency window: a rewrite costs the same for one save as for many, so it never waits for company
+            partition.committer = new GroupCommitter<>("user-commit-" + i, batch -> writePartition(partition), USER_COMMIT_MAX_BATCH_SIZE, 0);
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (partitions != null) {
+            partitions.forEach(partition -> {
+                if (partition.committer != null) {
+                    partition.committer.close();
+                }
+            });
+        }
+    }
+
+    private Partition partitionFor(String username) {
+        return partitions != null ? partitions.get(ring.partitionOf(username)) : whole;
+    }
+
+    private List<Partition> allPartitions() {
+        return partitions != null ? partitions : List.of(whole);
+    }
+
+    private File partitionsDir() {
+        return new File(usersFile.getParentFile(), USERS_PARTITIONS_PATH);
+    }
+
+    // The users files in users-partitions/<n>/, in either format
+    private List<File> partitionFiles() {
+        List<File> files = new ArrayList<>();
+        File[] dirs = partitionsDir().listFiles(f -> f.isDirectory() && f.getName().matches("\\d+"));
+        if (dirs == null) {
+            return files;
+        }
+        for (File dir : dirs) {
+            for (String name : List.of(USERS_DB_PATH, USERS_SNAPSHOT_PATH)) {
+                File file = new File(dir, name);
+                if (file.exists()) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private List<User> readUsers(File file) throws IOException {
+        List<User> users = new ArrayList<>();
+        if (file.getName().equals(USERS_SNAPSHOT_PATH)) {
+            BinarySnapshot.readUsers(file.toPath(), users::add);
+        } else if (file.length() > 0) {
+            users.addAll(List.of(objectMapper.readValue(file, User[].class)));
+        }
+        return users;
+    }
+
+    // Returns the bytes written
+    private long write(File file, Collection<User> users) throws IOException {
+        if (isBinaryMode()) {
+            return BinarySnapshot.writeUsers(file.toPath(), users);
+        }
+        objectMapper.writeValue(file, new ArrayList<>(users));
+        return file.length();
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Into the user's partition, and the token index
+    private void index(User user) {
+        String username = user.getUsername();
+        partitionFor(username).users.put(username, user);
+        friendGraph.setFriends(username, user.getFriends());
+
+        String oldToken = indexedTokens.get(username);
+        String newToken = user.getAccessToken();
+        if (oldToken != null && !oldToken.equals(newToken)) {
+            usernamesByAccessToken.remove(oldToken, username);
+        }
+        if (newToken != null) {
+            usernamesByAccessToken.put(newToken, username);
+            indexedTokens.put(username, newToken);
+        } else {
+            indexedTokens.remove(username);
         }
     }
 
     public Optional<User> findByUsername(String username) {
-        return users.stream()
-                .filter(u -> u.getUsername().equals(username))
-                .findFirst();
+        if (username == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(partitionFor(username).users.get(username));
     }
 
     public Optional<User> findByAccessToken(String accessToken) {
-        return users.stream()
-                .filter(u -> accessToken.equals(u.getAccessToken()))
-                .findFirst();
+        if (accessToken == null) {
+            return Optional.empty();
+        }
+        return findByUsername(usernamesByAccessToken.get(accessToken))
+                // Re-check the field: the token may have been rotated on the object but not saved yet
+                .filter(user -> accessToken.equals(user.getAccessToken()));
+    }
+
+    public FriendGraph getFriendGraph() {
+        return friendGraph;
+    }
+
+    // Adds friend to owner's list and saves owner. Returns false if either user doesn't exist or
+    // the friend was already listed (nothing is written then).
+    public boolean addFriend(String owner, String friend) {
+        return updateFriends(owner, friend, true);
+    }
+
+    // Removes friend from owner's list and saves owner. Returns false if it wasn't listed.
+    public boolean removeFriend(String owner, String friend) {
+        return updateFriends(owner, friend, false);
+    }
+
+    private boolean updateFriends(String owner, String friend, boolean add) {
+        // Only owner's list changes, so only owner's partition is locked
+        ReentrantLock lock = partitionFor(owner).lock;
+        lock.lock();
+        try {
+            User user = findByUsername(owner).orElse(null);
+            if (user == null || (add && findByUsername(friend).isEmpty())) {
+                return false;
+            }
+            boolean changed = add ? friendGraph.addFriend(owner, friend) : friendGraph.removeFriend(owner, friend);
+            if (!changed) {
+                return false;
+            }
+            // A new list rather than an edit in place: readers may be iterating the old one
+            List<String> friends = new ArrayList<>(user.getFriends() != null ? user.getFriends() : List.of());
+            if (add) {
+                friends.add(friend);
+            } else {
+                friends.removeIf(friend::equals);
+            }
+            user.setFriends(friends);
+            save(user);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void save(User user) {
-        // Remove existing user if present and add the updated one
-        users.removeIf(u -> u.getUsername().equals(user.getUsername()));
-        users.add(user);
+        Partition partition = partitionFor(user.getUsername());
+        if (partition.committer != null) {
+            partition.lock.lock();
+            try {
+                // Replaces any existing user with the same username and moves the token index along
+                index(user);
+            } finally {
+                partition.lock.unlock();
+            }
+            // The partition's writer rewrites its file with this and any other pending saves
+            try {
+                partition.committer.submit(user).join();
+            } catch (CompletionException e) {
+                System.err.println("Error saving user to database: " + e.getCause().getMessage());
+            }
+            return;
+        }
+        partition.lock.lock();
         try {
-            objectMapper.writeValue(usersFile, users);
+            index(user);
+            writePartition(partition);
         } catch (IOException e) {
             System.err.println("Error saving user to database: " + e.getMessage());
+        } finally {
+            partition.lock.unlock();
         }
     }
 
+    // Rewrites the partition's file with its users, or the users file when unpartitioned
+    private void writePartition(Partition partition) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        long bytes = partition.file != null
+                ? write(partition.file, partition.users.values())
+                : write(isBinaryMode() ? snapshotFile() : usersFile, findAll());
+        sample.stop(writeTimer);
+        writeBytes.record(bytes);
+    }
+
+    private boolean isBinaryMode() {
+        return "binary".equalsIgnoreCase(persistenceMode);
+    }
+
+    private File snapshotFile() {
+        return new File(usersFile.getParentFile(), USERS_SNAPSHOT_PATH);
+    }
+
     public List<User> findAll() {
-        return new ArrayList<>(users);
+        List<User> all = new ArrayList<>();
+        allPartitions().forEach(partition -> all.addAll(partition.users.values()));
+        return all;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,183 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Routes deliveries between nodes, so several can run behind one load balancer. A message for a user
+ * online here, or not known to be online anywhere, is delivered here as before; one for a user online
+ * on another node goes to that node over the DeliveryBus, which stores and delivers it there. Nodes
+ * learn where users are from each other's presence changes (see UserService.addPresenceListener).
+ *
+ * With simplechat.cluster.bus=none, the default, there is no bus and nothing is routed.
+ */
+@Service
+public class ClusterRouter {
+
+    @Autowired
+    private UserService userService;
+
+    // none | in-process | tcp
+    @Value("${simplechat.cluster.bus:none}")
+    private String busType = "none";
+
+    @Value("${simplechat.cluster.node-id:node-1}")
+    private String nodeId = "node-1";
+
+    @Value("${simplechat.cluster.tcp.bind:127.0.0.1}")
+    private String tcpBind = "127.0.0.1";
+
+    @Value("${simplechat.cluster.tcp.port:9700}")
+    private int tcpPort = 9700;
+
+    // The other nodes, as id@host:port, comma separated
+    @Value("${simplechat.cluster.peers:}")
+    private String peers = "";
+
+    private DeliveryBus bus;
+    // Stores and delivers a message another node sent here; set by MessageService
+    private volatile Predicate<Message> deliveryHandler;
+    private final Consumer<Map<String, Boolean>> presenceListener = this::announce;
+
+    // Users online on other nodes
+    // Key: username, Value: node id
+    private final ConcurrentHashMap<String, String> routes = new ConcurrentHashMap<>();
+
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    @PostConstruct
+    private void init() {
+        if ("in-process".equalsIgnoreCase(busType)) {
+            start(new InProcessDeliveryBus(InProcessDeliveryBus.DEFAULT_NETWORK, nodeId));
+        } else if ("tcp".equalsIgnoreCase(busType)) {
+            try {
+                TcpDeliveryBus tcpBus = new TcpDeliveryBus(nodeId, tcpBind, tcpPort);
+                for (String peer : peers.split(",")) {
+                    if (!peer.isBlank()) {
+                        addPeer(tcpBus, peer.trim());
+                    }
+                }
+                start(tcpBus);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to listen for cluster nodes on port " + tcpPort, e);
+            }
+        }
+    }
+
+    // Joins the cluster on the given bus; init() calls it with the configured one
+    void start(DeliveryBus bus) {
+        this.bus = bus;
+        this.nodeId = bus.getNodeId();
+        Gauge.builder("simplechat.cluster.routes", routes, Map::size)
+                .description("Users known to be online on other nodes")
+                .register(meterRegistry);
+        userService.addPresenceListener(presenceListener);
+        bus.start(new DeliveryBus.Receiver() {
+            @Override
+            public boolean message(Message message) {
+                return receive(message);
+            }
+
+            @Override
+            public void presence(String fromNode, Map<String, Boolean> presence) {
+                presence.forEach((username, online) -> {
+                    if (online) {
+                        routes.put(username, fromNode);
+                    } else {
+                        routes.remove(username, fromNode);
+                    }
+                });
+            }
+
+            @Override
+            public void joined(String otherNode) {
+                // Everyone online here, since the new node missed the earlier changes
+                Map<String, Boolean> online = new HashMap<>();
+                userService.getOnlineUsers().keySet().forEach(username -> online.put(username, true));
+                if (!online.isEmpty()) {
+                    bus.announce(online);
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (bus != null) {
+            userService.removePresenceListener(presenceListener);
+            bus.close();
+        }
+    }
+
+    public void setDeliveryHandler(Predicate<Message> handler) {
+        this.deliveryHandler = handler;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // The node the user is online on, if that's another node
+    public Optional<String> findNode(String username) {
+        if (bus == null || userService.isUserOnline(username)) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(routes.get(username));
+    }
+
+    // Sends the message to the node its receiver is online on. Returns false if it is to be
+    // delivered here: the receiver is online here or nowhere known, or the other node failed.
+    public boolean route(Message message) {
+        Optional<String> node = findNode(message.getReceiver());
+        if (node.isEmpty()) {
+            return false;
+        }
+        boolean sent = bus.send(node.get(), message);
+        meterRegistry.counter("simplechat.cluster.routed", "result", sent ? "sent" : "failed").increment();
+        if (!sent) {
+            routes.remove(message.getReceiver(), node.get()); // Until that node announces them again
+        }
+        return sent;
+    }
+
+    private void announce(Map<String, Boolean> presence) {
+        bus.announce(presence);
+    }
+
+    private boolean receive(Message message) {
+        Predicate<Message> handler = deliveryHandler;
+        if (handler == null) {
+            return false; // Not ready yet; the sender keeps it
+        }
+        meterRegistry.counter("simplechat.cluster.received").increment();
+        return handler.test(message);
+    }
+
+    private static void addPeer(TcpDeliveryBus bus, String peer) {
+        int at = peer.indexOf('@');
+        int colon = peer.lastIndexOf(':');
+        if (at < 1 || colon < at) {
+            throw new IllegalArgumentException("Peer must be id@host:port: " + peer);
+        }
+        bus.addPeer(peer.substring(0, at), new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+    }
+}
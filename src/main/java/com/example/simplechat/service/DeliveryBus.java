@@ -0,0 +1,38 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+
+import java.util.Map;
+
+/**
+ * Carries deliveries between the nodes of a cluster. Each node announces the users who come online
+ * or go offline on it; a node accepting a message for a user connected to another node sends it
+ * there, and that node stores and delivers it as if it had been sent there. See ClusterRouter.
+ */
+public interface DeliveryBus {
+
+    String getNodeId();
+
+    // Joins the cluster; the receiver is called on the bus's threads from then on
+    void start(Receiver receiver);
+
+    // Hands the message to the node. True once that node has stored it; false if the node is
+    // unknown, unreachable or couldn't store it, in which case the caller keeps the message.
+    boolean send(String nodeId, Message message);
+
+    // Tells every reachable node which users came online (true) or went offline (false) here
+    void announce(Map<String, Boolean> presence);
+
+    void close();
+
+    interface Receiver {
+
+        // A message another node sent here. Returns false if it couldn't be stored.
+        boolean message(Message message);
+
+        void presence(String nodeId, Map<String, Boolean> presence);
+
+        // A node connected, or reconnected, and doesn't know yet who is online here
+        void joined(String nodeId);
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DeliveryBus between nodes in one JVM, e.g. several application contexts in a test. Calls go
+ * straight to the other node's receiver on the caller's thread; messages are copied, so the nodes
+ * never share one.
+ */
+public class InProcessDeliveryBus implements DeliveryBus {
+
+    // Nodes on one network see each other
+    public static final class Network {
+        private final ConcurrentHashMap<String, InProcessDeliveryBus> nodes = new ConcurrentHashMap<>();
+    }
+
+    // What simplechat.cluster.bus=in-process joins
+    public static final Network DEFAULT_NETWORK = new Network();
+
+    private final Network network;
+    private final String nodeId;
+    private volatile Receiver receiver;
+
+    public InProcessDeliveryBus(Network network, String nodeId) {
+        this.network = network;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        if (network.nodes.putIfAbsent(nodeId, this) != null) {
+            throw new IllegalStateException("Node id already in use: " + nodeId);
+        }
+        for (InProcessDeliveryBus other : network.nodes.values()) {
+            if (other != this) {
+                other.receiver.joined(nodeId);
+                receiver.joined(other.nodeId);
+            }
+        }
+    }
+
+    @Override
+    public boolean send(String nodeId, Message message) {
+        InProcessDeliveryBus target = network.nodes.get(nodeId);
+        if (target == null || target == this) {
+            return false;
+        }
+        try {
+            return target.receiver.message(copy(message));
+        } catch (RuntimeException e) {
+            System.err.println("Delivery to node " + nodeId + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void announce(Map<String, Boolean> presence) {
+        Map<String, Boolean> snapshot = Map.copyOf(presence);
+        for (InProcessDeliveryBus other : network.nodes.values()) {
+            if (other != this) {
+                other.receiver.presence(nodeId, snapshot);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        network.nodes.remove(nodeId, this);
+    }
+
+    private static Message copy(Message message) {
+        Message copy = new Message();
+        copy.setId(message.getId());
+        copy.setSender(message.getSender());
+        copy.setReceiver(message.getReceiver());
+        copy.setContent(message.getContent());
+        copy.setFileLink(message.getFileLink());
+        copy.setFileName(message.getFileName());
+        copy.setTimestamp(message.getTimestamp());
+        copy.setRead(message.isRead());
+        copy.setSeq(message.getSeq());
+        return copy;
+    }
+}
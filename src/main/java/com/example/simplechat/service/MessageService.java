@@ -1,20 +1,56 @@
 package com.example.simplechat.service;
 
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.ConversationPage;
+import com.example.simplechat.model.FileMetadata;
 import com.example.simplechat.model.Message;
+import com.example.simplechat.repository.BlobStore;
+import com.example.simplechat.repository.FileMetadataRepository;
 import com.example.simplechat.repository.MessageRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 @Service
 public class MessageService {
@@ -25,12 +61,73 @@ public class MessageService {
     @Autowired
     private UserService userService; // To check online status and notify
 
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    // Sends messages for users online on another node there; one without a bus routes nothing,
+    // which is what unit tests and benchmarks get when it isn't wired by Spring
+    @Autowired
+    private ClusterRouter clusterRouter = new ClusterRouter();
+
     // Queue for messages awaiting long polling
     // Key: receiver username, Value: Queue of messages
     private final ConcurrentHashMap<String, LinkedBlockingQueue<Message>> messageQueues = new ConcurrentHashMap<>();
 
+    // Callbacks to run when a message for a user is accepted, e.g. to complete a parked long poll
+    // Key: receiver username, Value: listeners registered for that user
+    private final ConcurrentHashMap<String, Set<Runnable>> messageListeners = new ConcurrentHashMap<>();
+
+    // Highest seq handed out to each user since startup, to tell redeliveries apart
+    // Key: receiver username, Value: seq
+    private final ConcurrentHashMap<String, Long> handedOut = new ConcurrentHashMap<>();
+
     private String STORAGE_ROOT = "src/main/resources/storage/";
 
+    // Attachments by content hash, see BlobStore
+    private volatile BlobStore blobStore;
+    private final ReentrantLock blobStoreLock = new ReentrantLock();
+
+    // How often blobs no message links to are swept
+    @Value("${simplechat.attachments.gc-interval-ms:3600000}")
+    private long attachmentGcIntervalMs = 3600000;
+
+    // How long a reference held for an attachment sent to another node is kept after the last such
+    // send; 0 keeps them, like messages under the default retention
+    @Value("${simplechat.attachments.routed-ttl-days:0}")
+    private int routedAttachmentTtlDays = 0;
+
+    // Most receivers one multicast send may address
+    @Value("${simplechat.multicast.max-receivers:500}")
+    private int maxMulticastReceivers = 500;
+
+    // Larger history page requests are cut down to this
+    @Value("${simplechat.history.max-page-size:100}")
+    private int maxHistoryPageSize = 100;
+
+    // How often retention runs (see MessageRepository.compact); the rules themselves are repository settings
+    @Value("${simplechat.messages.retention.interval-ms:3600000}")
+    private long retentionIntervalMs = 3600000;
+
+    // Sends each user may make per second, and how many at once after a pause; a rate of 0 turns limiting off
+    @Value("${simplechat.send.rate-per-second:10}")
+    private double sendRatePerSecond = 10;
+
+    @Value("${simplechat.send.burst:20}")
+    private int sendBurst = 20;
+
+    // Most messages one receiver's delivery queue holds; more stay in the repository until polled
+    @Value("${simplechat.queues.max-per-receiver:1000}")
+    private int maxQueuedPerReceiver = 1000;
+
+    private ScheduledExecutorService attachmentGc;
+    private ScheduledExecutorService retention;
+    // Null when limiting is off, or when not started by Spring (unit tests, benchmarks)
+    private RateLimiter sendLimiter;
+
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
     public MessageService() {
         // Ensure storage directory exists
         try {
@@ -40,7 +137,107 @@ public class MessageService {
         }
     }
 
+    @PostConstruct
+    private void init() {
+        clusterRouter.setDeliveryHandler(this::acceptRouted);
+
+        // One reference per message fileLink; blobs left without any are swept right away.
+        // Later the counts are kept up to date by store and release, so the periodic sweep never
+        // races a file that has been stored but whose message isn't saved yet.
+        // Archived messages still link to their attachments, so they hold references too.
+        List<String> blobNames = new ArrayList<>();
+        // Attachments sent before names were recorded with their metadata get them from their messages
+        Map<String, Map<String, String>> unrecordedNames = new HashMap<>();
+        Consumer<Message> reference = m -> {
+            String blobName = attachmentBlobName(m);
+            blobNames.add(blobName);
+            if (blobName != null && m.getFileName() != null && fileMetadataRepository.findByFileName(blobName)
+                    .filter(metadata -> metadata.getNamesByUser().isEmpty()).isPresent()) {
+                Map<String, String> names = unrecordedNames.computeIfAbsent(blobName, k -> new HashMap<>());
+                names.put(m.getSender(), m.getFileName());
+                names.put(m.getReceiver(), m.getFileName());
+            }
+        };
+        messageRepository.findAll().forEach(reference);
+        messageRepository.forEachArchived(reference);
+        unrecordedNames.forEach(fileMetadataRepository::recordNames);
+        // Messages on other nodes linking here count too
+        for (FileMetadata metadata : fileMetadataRepository.findAll()) {
+            for (int i = 0; i < metadata.getRoutedReferences(); i++) {
+                blobNames.add(metadata.getFileName());
+            }
+        }
+        blobStore().resetRefCounts(blobNames);
+        collectAttachmentGarbage();
+        attachmentGc = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "attachment-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        attachmentGc.scheduleWithFixedDelay(this::collectAttachmentGarbage, attachmentGcIntervalMs, attachmentGcIntervalMs, TimeUnit.MILLISECONDS);
+
+        retention = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-retention");
+            t.setDaemon(true);
+            return t;
+        });
+        retention.scheduleWithFixedDelay(this::compactMessages, retentionIntervalMs, retentionIntervalMs, TimeUnit.MILLISECONDS);
+
+        if (sendRatePerSecond > 0) {
+            RateLimiter limiter = new RateLimiter(sendRatePerSecond, sendBurst, System::nanoTime);
+            // Idle users' buckets are full again, so they go; the retention thread has time to spare
+            retention.scheduleWithFixedDelay(limiter::prune, 1, 1, TimeUnit.MINUTES);
+            Gauge.builder("simplechat.send.limited-users", limiter, RateLimiter::size)
+                    .description("Users with a send rate bucket that isn't full")
+                    .register(meterRegistry);
+            sendLimiter = limiter;
+        }
+
+        Gauge.builder("simplechat.queues.receivers", messageQueues, Map::size)
+                .description("Receivers with a delivery queue")
+                .register(meterRegistry);
+        Gauge.builder("simplechat.queues.messages", messageQueues, queues -> queues.values().stream().mapToInt(LinkedBlockingQueue::size).sum())
+                .description("Messages waiting in delivery queues")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (attachmentGc != null) {
+            attachmentGc.shutdown();
+        }
+        if (retention != null) {
+            retention.shutdown();
+        }
+    }
+
+    // Takes one of the sender's send tokens (see simplechat.send.rate-per-second). Returns 0 if the send
+    // may go ahead, otherwise the milliseconds until the sender has a token again.
+    public long acquireSendPermit(String sender) {
+        RateLimiter limiter = sendLimiter;
+        if (limiter == null) {
+            return 0;
+        }
+        long waitNanos = limiter.tryAcquire(sender);
+        if (waitNanos == 0) {
+            return 0;
+        }
+        meterRegistry.counter("simplechat.send.throttled").increment();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
     public int sendMessage(String sender, String receiver, String content, MultipartFile file) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        return recordSend(sample, doSendMessage(sender, receiver, content, file));
+    }
+
+    // One timer per result code (1 online, 2 queued, 3 not friends, -1 error); its count is the counter
+    private int recordSend(Timer.Sample sample, int status) {
+        sample.stop(meterRegistry.timer("simplechat.messages.send", "status", String.valueOf(status)));
+        return status;
+    }
+
+    private int doSendMessage(String sender, String receiver, String content, MultipartFile file) {
         // Check if sender is friend of receiver
         if (!userService.isFriend(sender, receiver)) {
             return 3; // Not friends
@@ -55,10 +252,13 @@ public class MessageService {
 
         if (file != null && !file.isEmpty()) {
             try {
-                String fileName = UUID.randomUUID().toString() + "_" + file.getOriginalFilename();
-                Path filePath = Paths.get(STORAGE_ROOT, fileName);
-                Files.copy(file.getInputStream(), filePath);
-                message.setFileLink("/files/" + fileName); // Link for download
+                // The multipart body is already spooled by the container, so it's hashed before
+                // anything is written; content that is already stored costs no write at all
+                String blobName = blobStore().store(file);
+                recordAttachmentMetadata(blobName, file.getOriginalFilename(), file.getContentType());
+                recordAttachmentName(blobName, file.getOriginalFilename(), sender, List.of(receiver));
+                message.setFileLink("/files/" + blobName); // Link for download
+                message.setFileName(file.getOriginalFilename());
                 message.setContent("[FILE]"); // Indicate it's a file
             } catch (IOException e) {
                 System.err.println("Failed to save file: " + e.getMessage());
@@ -68,46 +268,450 @@ public class MessageService {
             message.setContent(content);
         }
 
+        return deliver(message);
+    }
+
+    // One payload to many receivers. Friendship is checked per receiver; the attachment, if any, is
+    // stored once and each receiver's message holds a reference to it. All messages go to the
+    // repository together, so they share group commits instead of costing one write each.
+    // Returns each distinct receiver's status, in request order, with the sendMessage codes.
+    // Throws IllegalArgumentException for no receivers or more than the configured maximum.
+    public Map<String, Integer> sendMulticast(String sender, Collection<String> receivers, String content, MultipartFile file) {
+        Set<String> distinct = new LinkedHashSet<>(receivers);
+        if (distinct.isEmpty() || distinct.size() > maxMulticastReceivers) {
+            throw new IllegalArgumentException("Between 1 and " + maxMulticastReceivers + " receivers are required.");
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Map<String, Integer> statuses = new LinkedHashMap<>();
+        List<String> allowed = new ArrayList<>();
+        for (String receiver : distinct) {
+            if (userService.isFriend(sender, receiver)) {
+                allowed.add(receiver);
+                statuses.put(receiver, -1); // Until delivered
+            } else {
+                statuses.put(receiver, 3); // Not friends
+            }
+        }
+
+        if (!allowed.isEmpty()) {
+            String blobName = null;
+            if (file != null && !file.isEmpty()) {
+                try {
+                    blobName = blobStore().store(file);
+                    recordAttachmentMetadata(blobName, file.getOriginalFilename(), file.getContentType());
+                    recordAttachmentName(blobName, file.getOriginalFilename(), sender, allowed);
+                } catch (IOException e) {
+                    System.err.println("Failed to save file: " + e.getMessage());
+                    return recordMulticast(sample, statuses);
+                }
+                // store() took the first receiver's reference
+                for (int i = 1; i < allowed.size(); i++) {
+                    blobStore().retain(blobName);
+                }
+            }
+
+            LocalDateTime now = LocalDateTime.now();
+            List<Message> messages = new ArrayList<>(allowed.size());
+            List<CompletableFuture<Void>> saves = new ArrayList<>(allowed.size());
+            for (String receiver : allowed) {
+                Message message = new Message();
+                message.setId(UUID.randomUUID().toString());
+                message.setSender(sender);
+                message.setReceiver(receiver);
+                message.setTimestamp(now);
+                message.setRead(false);
+                if (blobName != null) {
+                    message.setFileLink("/files/" + blobName);
+                    message.setFileName(file.getOriginalFilename());
+                    message.setContent("[FILE]");
+                } else {
+                    message.setContent(content);
+                }
+                if (clusterRouter.route(message)) {
+                    statuses.put(receiver, 1); // Stored by the node the receiver is online on
+                    holdRoutedAttachment(message); // The other node links to the blob here
+                    continue;
+                }
+                messages.add(message);
+                saves.add(messageRepository.saveAsync(message));
+            }
+            try {
+                CompletableFuture.allOf(saves.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                // As with a single send, a failed write is logged and delivery goes ahead
+                System.err.println("Error saving message to database: " + e.getCause().getMessage());
+            }
+            for (Message message : messages) {
+                statuses.put(message.getReceiver(), enqueue(message));
+            }
+        }
+        return recordMulticast(sample, statuses);
+    }
+
+    private Map<String, Integer> recordMulticast(Timer.Sample sample, Map<String, Integer> statuses) {
+        sample.stop(meterRegistry.timer("simplechat.messages.multicast"));
+        DistributionSummary.builder("simplechat.messages.multicast.receivers")
+                .description("Receivers per multicast send")
+                .baseUnit("receivers")
+                .register(meterRegistry)
+                .record(statuses.size());
+        statuses.values().forEach(status -> meterRegistry.counter("simplechat.messages.multicast.deliveries", "status", String.valueOf(status)).increment());
+        return statuses;
+    }
+
+    // Moves a finished file (e.g. an assembled chunked upload) into the attachment store.
+    // Returns the blob name, holding one reference for the message that will link to it.
+    public String storeAttachment(Path file, String originalName) throws IOException {
+        String blobName = blobStore().storeFile(file);
+        try {
+            recordAttachmentMetadata(blobName, originalName, null);
+        } catch (IOException e) {
+            blobStore().release(blobName); // No message will take the reference over
+            throw e;
+        }
+        return blobName;
+    }
+
+    // Sends an attachment returned by storeAttachment. The message takes over its reference,
+    // which is released again if the message isn't sent.
+    public int sendFileMessage(String sender, String receiver, String blobName, String originalName) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        if (!userService.isFriend(sender, receiver)) {
+            blobStore().release(blobName);
+            return recordSend(sample, 3); // Not friends
+        }
+
+        Message message = new Message();
+        message.setId(UUID.randomUUID().toString());
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setTimestamp(LocalDateTime.now());
+        message.setRead(false);
+        message.setFileLink("/files/" + blobName);
+        message.setFileName(originalName);
+        message.setContent("[FILE]");
+        recordAttachmentName(blobName, originalName, sender, List.of(receiver));
+        return recordSend(sample, deliver(message));
+    }
+
+    // Drops the message's reference to its attachment, deleting the blob if it was the last one
+    public void releaseAttachment(Message message) {
+        String blobName = attachmentBlobName(message);
+        if (blobName != null) {
+            blobStore().release(blobName);
+        }
+    }
+
+    // Applies message retention. Messages deleted rather than archived give up their attachment
+    // references, so the next sweep removes blobs only they linked to. Returns the number removed.
+    public int compactMessages() {
+        int removed = messageRepository.compact(this::releaseAttachment);
+        if (removed > 0) {
+            meterRegistry.counter("simplechat.messages.retired").increment(removed);
+        }
+        expireRoutedAttachments();
+        return removed;
+    }
+
+    // The reference a routed message's attachment keeps in place of a local message. Persisted with the
+    // file's metadata, so the blob survives restarts, and given up by expireRoutedAttachments.
+    private void holdRoutedAttachment(Message message) {
+        String blobName = attachmentBlobName(message);
+        if (blobName != null && !fileMetadataRepository.addRoutedReference(blobName, System.currentTimeMillis())) {
+            System.err.println("No metadata to hold routed reference to " + blobName);
+        }
+    }
+
+    // Releases the routed references of blobs not sent to another node for routed-ttl-days
+    private void expireRoutedAttachments() {
+        if (routedAttachmentTtlDays <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(routedAttachmentTtlDays);
+        for (FileMetadata metadata : fileMetadataRepository.findAll()) {
+            if (metadata.getRoutedReferences() > 0 && metadata.getLastRoutedMillis() < cutoff) {
+                int references = fileMetadataRepository.clearRoutedReferences(metadata.getFileName());
+                for (int i = 0; i < references; i++) {
+                    blobStore().release(metadata.getFileName());
+                }
+            }
+        }
+    }
+
+    // Deletes blobs no message links to. Returns the number deleted.
+    public int collectAttachmentGarbage() {
+        try {
+            return blobStore().collectGarbage();
+        } catch (IOException e) {
+            System.err.println("Attachment garbage collection failed: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private String attachmentBlobName(Message message) {
+        String fileLink = message.getFileLink();
+        if (fileLink == null || !fileLink.startsWith("/files/")) {
+            return null;
+        }
+        String name = fileLink.substring("/files/".length());
+        return BlobStore.isBlobName(name) ? name : null; // Files stored before content addressing aren't counted
+    }
+
+    // Created on first use, and again if STORAGE_ROOT is changed
+    private BlobStore blobStore() {
+        BlobStore store = blobStore;
+        if (store != null && store.getRoot().equals(getStorageRoot())) {
+            return store;
+        }
+        blobStoreLock.lock();
+        try {
+            if (blobStore == null || !blobStore.getRoot().equals(getStorageRoot())) {
+                blobStore = new BlobStore(getStorageRoot(), fileMetadataRepository::delete);
+            }
+            return blobStore;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            blobStoreLock.unlock();
+        }
+    }
+
+    private void recordAttachmentMetadata(String blobName, String originalName, String declaredContentType) throws IOException {
+        // Same bytes, same blob: metadata from the first upload stays valid
+        if (fileMetadataRepository.findByFileName(blobName).isPresent()) {
+            return;
+        }
+        String contentType = originalName != null ? Files.probeContentType(Paths.get(originalName).getFileName()) : null;
+        saveFileMetadata(blobName, blobStore().path(blobName), blobName,
+                contentType != null ? contentType : declaredContentType);
+    }
+
+    // Remembers the name for the sender and the receivers, for getAttachmentName
+    private void recordAttachmentName(String blobName, String originalName, String sender, Collection<String> receivers) {
+        if (originalName == null) {
+            return;
+        }
+        Map<String, String> names = new HashMap<>();
+        names.put(sender, originalName);
+        receivers.forEach(receiver -> names.put(receiver, originalName));
+        fileMetadataRepository.recordNames(blobName, names);
+    }
+
+    private int deliver(Message message) {
+        if (clusterRouter.route(message)) {
+            holdRoutedAttachment(message); // The other node links to the blob here
+            return 1; // Receiver online on another node, which stored it
+        }
         messageRepository.save(message); // Save message to JSON DB
+        return enqueue(message);
+    }
 
-        // If receiver is online (long polling active), deliver immediately
-        if (userService.isUserOnline(receiver)) {
-            // Add message to receiver's queue
-            messageQueues.computeIfAbsent(receiver, k -> new LinkedBlockingQueue<>()).offer(message);
-            // In a real scenario, you'd trigger the long-polling response here.
-            // For now, it will be picked up by the next long poll.
-            return 1; // Receiver online
-        } else {
-            // Add message to receiver's queue for later retrieval
-            messageQueues.computeIfAbsent(receiver, k -> new LinkedBlockingQueue<>()).offer(message);
-            return 2; // Receiver offline, message queued
+    // A message another node accepted for a user online here: stored and delivered as if sent here.
+    // Never routed on, so nodes with stale routes can't pass a message back and forth.
+    private boolean acceptRouted(Message message) {
+        message.setSeq(0); // Numbered by this node's repository
+        message.setRead(false);
+        messageRepository.save(message);
+        enqueue(message);
+        return true;
+    }
+
+    // Hands a saved message to its receiver's queue and wakes their long poll or stream
+    private int enqueue(Message message) {
+        String receiver = message.getReceiver();
+        offer(message);
+        notifyMessageListeners(receiver); // Wake up the receiver's parked long poll or stream
+        return userService.isUserOnline(receiver) ? 1 : 2; // 1 receiver online, 2 offline and queued
+    }
+
+    // The queue is capped per receiver. A saved message that doesn't fit is still handed out from
+    // the repository by getNewMessages, so only an unsaved one (seq 0) is lost.
+    private void offer(Message message) {
+        if (messageQueues.computeIfAbsent(message.getReceiver(), k -> new LinkedBlockingQueue<>(maxQueuedPerReceiver)).offer(message)) {
+            return;
+        }
+        meterRegistry.counter("simplechat.queues.overflow").increment();
+        if (message.getSeq() == 0) {
+            System.err.println("Delivery queue full for " + message.getReceiver() + ", unsaved message " + message.getId() + " dropped");
+        }
+    }
+
+    public void addMessageListener(String username, Runnable listener) {
+        messageListeners.compute(username, (k, listeners) -> {
+            if (listeners == null) {
+                listeners = ConcurrentHashMap.newKeySet();
+            }
+            listeners.add(listener);
+            return listeners;
+        });
+    }
+
+    public void removeMessageListener(String username, Runnable listener) {
+        messageListeners.computeIfPresent(username, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    private void notifyMessageListeners(String receiver) {
+        Set<Runnable> listeners = messageListeners.get(receiver);
+        if (listeners == null) {
+            return;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.err.println("Message listener failed for " + receiver + ": " + e.getMessage());
+            }
         }
     }
 
     public List<Message> getNewMessages(String username) {
-        // Get all unread messages from the main repository for this user
-        List<Message> unreadFromDb = messageRepository.findUnreadMessagesForUser(username);
+        return getNewMessages(username, 0, Integer.MAX_VALUE);
+    }
 
-        // Also take messages from the real-time queue
+    // At-least-once delivery: the user's messages not yet acknowledged (see acknowledge), with a seq
+    // above after, oldest first and at most limit of them. Nothing is marked read here, so messages
+    // a client never got (a dropped response, a closed stream) are handed out again by the next call.
+    // Callers streaming to one connection pass the highest seq they already took as after.
+    public List<Message> getNewMessages(String username, long after, int limit) {
+        // The queue only says something arrived; drained first, so every message in it is also
+        // in the repository's list below, which has no gaps in seq order
         LinkedBlockingQueue<Message> userQueue = messageQueues.get(username);
-        List<Message> newMessages = new java.util.ArrayList<>();
+        List<Message> queued = new ArrayList<>();
         if (userQueue != null) {
-            userQueue.drainTo(newMessages); // Move all messages from queue to list
+            userQueue.drainTo(queued);
         }
+        List<Message> unacknowledged = messageRepository.findUnreadMessagesForUser(username);
 
-        // Combine and return. Mark messages as read in the DB
-        if (!unreadFromDb.isEmpty()) {
-            newMessages.addAll(unreadFromDb);
+        List<Message> newMessages = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Message message : unacknowledged) {
+            if (newMessages.size() >= limit) {
+                break;
+            }
+            if ((after == 0 || message.getSeq() > after) && seen.add(message.getId())) {
+                newMessages.add(message);
+            }
+        }
+        // Queued messages without a seq never made it into the repository, so this is their only delivery
+        for (Message message : queued) {
+            if (newMessages.size() < limit && message.getSeq() == 0 && seen.add(message.getId())) {
+                newMessages.add(message);
+            }
         }
 
+        long redelivered = 0;
         if (!newMessages.isEmpty()) {
-            // Mark these messages as read in the "database"
-            messageRepository.markMessagesAsRead(newMessages);
+            long previous = handedOut.getOrDefault(username, 0L);
+            redelivered = newMessages.stream().filter(m -> m.getSeq() != 0 && m.getSeq() <= previous).count();
+            long last = newMessages.stream().mapToLong(Message::getSeq).max().orElse(0);
+            handedOut.merge(username, last, Math::max);
+        }
+        DistributionSummary.builder("simplechat.messages.delivered")
+                .description("Messages handed out per getNewMessages call")
+                .baseUnit("messages")
+                .register(meterRegistry)
+                .record(newMessages.size());
+        if (redelivered > 0) {
+            meterRegistry.counter("simplechat.messages.redelivered").increment(redelivered);
         }
-
         return newMessages;
     }
 
+    // Acknowledges the user's messages up to and including seq cursor: they count as read and are not
+    // handed out again. Cursors only move forward. Returns the user's cursor afterwards.
+    // Throws IllegalArgumentException for a negative cursor.
+    public long acknowledge(String username, long cursor) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Cursor must not be negative.");
+        }
+        int acknowledged = messageRepository.acknowledge(username, cursor);
+        if (acknowledged > 0) {
+            meterRegistry.counter("simplechat.messages.acknowledged").increment(acknowledged);
+        }
+        return messageRepository.getDeliveryCursor(username);
+    }
+
+    // A page of the conversation between username and other, going back from the cursor (null for the
+    // newest page). Read-only, and independent of delivery: it neither hands out nor acknowledges anything.
+    // Throws IllegalArgumentException for a malformed cursor or a limit below 1.
+    public ConversationPage getConversation(String username, String other, String cursor, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1.");
+        }
+        int pageSize = Math.min(limit, maxHistoryPageSize);
+        ConversationCursor before = cursor == null || cursor.isEmpty() ? null : ConversationCursor.decode(cursor);
+
+        // One message more than the page tells whether there is an older page
+        List<Message> messages = messageRepository.findConversationPage(username, other, before, pageSize + 1);
+        if (messages.size() <= pageSize) {
+            return new ConversationPage(messages, null);
+        }
+        List<Message> page = new ArrayList<>(messages.subList(1, messages.size()));
+        return new ConversationPage(page, ConversationCursor.of(page.get(0)).encode());
+    }
+
+    public Path getStorageRoot() {
+        return Paths.get(STORAGE_ROOT);
+    }
+
+    // Metadata recorded at upload time. Files stored without it, or changed on disk since, are
+    // hashed and probed here once and the result is saved.
+    public FileMetadata getFileMetadata(String fileName, Path filePath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        FileMetadata metadata = fileMetadataRepository.findByFileName(fileName).orElse(null);
+        if (metadata != null && metadata.getSize() == attributes.size()
+                && metadata.getLastModified() == attributes.lastModifiedTime().toMillis()) {
+            return metadata;
+        }
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(filePath), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return saveFileMetadata(fileName, filePath, HexFormat.of().formatHex(digest.digest()), null);
+    }
+
+    private FileMetadata saveFileMetadata(String fileName, Path filePath, String sha256, String declaredContentType) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        String contentType = Files.probeContentType(filePath);
+        if (contentType == null) {
+            contentType = declaredContentType != null ? declaredContentType : "application/octet-stream";
+        }
+
+        FileMetadata metadata = new FileMetadata();
+        // What the file was sent as, and to whom, doesn't change with its bytes on disk
+        fileMetadataRepository.findByFileName(fileName).ifPresent(previous -> {
+            metadata.setRoutedReferences(previous.getRoutedReferences());
+            metadata.setLastRoutedMillis(previous.getLastRoutedMillis());
+            metadata.setNamesByUser(previous.getNamesByUser());
+        });
+        metadata.setFileName(fileName);
+        metadata.setSize(attributes.size());
+        metadata.setContentType(contentType);
+        metadata.setSha256(sha256);
+        metadata.setLastModified(attributes.lastModifiedTime().toMillis());
+        fileMetadataRepository.save(metadata);
+        return metadata;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Required on every JVM
+        }
+    }
+
+    // The name the file had when it was sent to or by the user, or null if it never was.
+    // Blobs are shared by identical uploads, so the name is recorded per user with the blob's metadata.
+    public String getAttachmentName(String filename, String username) {
+        return fileMetadataRepository.findByFileName(filename)
+                .map(metadata -> metadata.getNamesByUser().get(username))
+                .orElse(null);
+    }
+
     public Path getFilePath(String filename, String requestingUser) throws IOException {
         Path filePath = Paths.get(STORAGE_ROOT, filename).normalize();
 
@@ -0,0 +1,92 @@
+package com.example.simplechat.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Why each user counts as present: a lease, renewed by every poll, heartbeat or login, and open
+ * connections (streams), which hold the user present for as long as they stay open. Closing the
+ * last connection starts a lease, so a client reconnecting doesn't show as offline in between.
+ *
+ * Leases expire through a TimingWheel, advanced with expire(); renewing one just moves its
+ * deadline, so a user polling every few seconds costs no more than one who doesn't. When a
+ * user's lease runs out with no connection open, onLapse is called with them.
+ */
+public class PresenceTracker {
+
+    private static final int WHEEL_SIZE = 512;
+
+    private final long leaseMs;
+    private final LongSupplier clock;
+    private final TimingWheel<String> leases;
+    private final Consumer<String> onLapse;
+    // Key: username, Value: open connections
+    private final Map<String, Integer> connections = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public PresenceTracker(long leaseMs, long tickMs, LongSupplier clock, Consumer<String> onLapse) {
+        this.leaseMs = leaseMs;
+        this.clock = clock;
+        this.onLapse = onLapse;
+        this.leases = new TimingWheel<>(tickMs, WHEEL_SIZE, clock.getAsLong(), this::lapseIfAbsent);
+    }
+
+    public void renew(String username) {
+        leases.schedule(username, clock.getAsLong() + leaseMs);
+    }
+
+    public void hold(String username) {
+        lock.lock();
+        try {
+            connections.merge(username, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(String username) {
+        lock.lock();
+        try {
+            Integer left = connections.computeIfPresent(username, (k, n) -> n > 1 ? n - 1 : null);
+            if (left == null) {
+                renew(username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the lease. Returns whether the user is still present through an open connection.
+    public boolean end(String username) {
+        leases.cancel(username);
+        return isHeld(username);
+    }
+
+    public boolean isHeld(String username) {
+        lock.lock();
+        try {
+            return connections.containsKey(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPresent(String username) {
+        return isHeld(username) || leases.contains(username);
+    }
+
+    // Expires the leases that ran out by now. Returns the number expired.
+    public int expire() {
+        return leases.advance(clock.getAsLong());
+    }
+
+    // The wheel calls back after releasing its lock; a lease renewed meanwhile keeps the user
+    private void lapseIfAbsent(String username) {
+        if (!isPresent(username)) {
+            onLapse.accept(username);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Server-Sent Events push channel. Each connection streams messages as MessageService accepts them,
+// through a bounded send buffer drained by at most one writer task at a time. A connection sends each
+// message once; the client acknowledges through /api/ack, and a new connection starts again from
+// the last acknowledged message. Connections also get "presence" events for the users in their
+// friend list, a batch at a time, and keep their user online while open.
+@Service
+public class PushService {
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private UserService userService;
+
+    // Messages pulled from MessageService but not yet written to the connection.
+    // When the client reads slower than messages arrive, the buffer stays full and new messages
+    // stay unread in MessageService (and reachable through long polling) until it drains.
+    @Value("${simplechat.push.buffer-size:256}")
+    private int bufferSize = 256;
+
+    @Value("${simplechat.push.timeout-ms:1800000}")
+    private long timeoutMs = 1800000;
+
+    // Key: username, Value: open push connections of that user
+    private final ConcurrentHashMap<String, Set<PushConnection>> connections = new ConcurrentHashMap<>();
+
+    // Writers spend their time blocked on slow clients, which is cheap on virtual threads
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private ExecutorService writerPool;
+    private Executor writers;
+    // One instance, so shutdown removes the listener init added
+    private final Consumer<Map<String, Boolean>> presenceListener = this::publishPresence;
+
+    @PostConstruct
+    private void init() {
+        if (virtualThreads) {
+            writerPool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("push-writer-", 0).factory());
+        } else {
+            writerPool = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "push-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        writers = writerPool;
+        userService.addPresenceListener(presenceListener);
+    }
+
+    public SseEmitter connect(String username) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        PushConnection connection = new PushConnection(username, emitter);
+
+        connections.compute(username, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(connection);
+            return set;
+        });
+        messageService.addMessageListener(username, connection.listener);
+        userService.holdPresence(username);
+
+        emitter.onCompletion(connection::close);
+        emitter.onTimeout(connection::close);
+        emitter.onError(e -> connection.close());
+
+        // Flush whatever is already waiting for the user
+        connection.wakeUp();
+        return emitter;
+    }
+
+    public int getConnectionCount(String username) {
+        Set<PushConnection> set = connections.get(username);
+        return set == null ? 0 : set.size();
+    }
+
+    // Forwards a batch of presence changes to the open connections of everyone listing the users in it
+    void publishPresence(Map<String, Boolean> changes) {
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            for (String follower : userService.getFollowers(change.getKey())) {
+                Set<PushConnection> set = connections.get(follower);
+                if (set != null) {
+                    set.forEach(c -> c.presenceChanged(change.getKey(), change.getValue()));
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        userService.removePresenceListener(presenceListener);
+        connections.values().forEach(set -> set.forEach(c -> c.emitter.complete()));
+        writerPool.shutdown();
+    }
+
+    private class PushConnection {
+        private final String username;
+        private final SseEmitter emitter;
+        private final ArrayBlockingQueue<Message> buffer;
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Runnable listener = this::wakeUp;
+        // Presence changes not yet sent, the latest per user
+        private final ConcurrentHashMap<String, Boolean> presence = new ConcurrentHashMap<>();
+        // Highest seq pulled into the buffer; only the writer touches it
+        private long pulledUpTo;
+
+        PushConnection(String username, SseEmitter emitter) {
+            this.username = username;
+            this.emitter = emitter;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        // Called on the sender's thread: never blocks, just makes sure a writer will run
+        void wakeUp() {
+            if (closed.get()) {
+                return;
+            }
+            pending.set(true);
+            if (writing.compareAndSet(false, true)) {
+                writers.execute(this::write);
+            }
+        }
+
+        void presenceChanged(String friend, boolean online) {
+            presence.put(friend, online);
+            wakeUp();
+        }
+
+        private void write() {
+            try {
+                while (pending.getAndSet(false) && !closed.get()) {
+                    if (!presence.isEmpty()) {
+                        Map<String, Boolean> changes = new LinkedHashMap<>();
+                        for (String friend : presence.keySet()) {
+                            Boolean online = presence.remove(friend);
+                            if (online != null) {
+                                changes.put(friend, online);
+                            }
+                        }
+                        emitter.send(SseEmitter.event().name("presence").data(changes));
+                    }
+                    List<Message> batch = messageService.getNewMessages(username, pulledUpTo, buffer.remainingCapacity());
+                    buffer.addAll(batch);
+                    batch.forEach(m -> pulledUpTo = Math.max(pulledUpTo, m.getSeq()));
+                    Message message;
+                    while ((message = buffer.peek()) != null) {
+                        // Blocks while the client is slow to read
+                        emitter.send(SseEmitter.event().id(message.getId()).name("message").data(message));
+                        buffer.poll();
+                    }
+                    if (batch.size() == bufferSize) {
+                        pending.set(true); // Buffer was the limit, there may be more waiting
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Messages still in the buffer stay unacknowledged and are handed out again
+                System.err.println("Push connection for " + username + " failed: " + e.getMessage());
+                emitter.completeWithError(e);
+                close();
+            } finally {
+                writing.set(false);
+            }
+            // A wakeUp that came in after the loop exited but before writing was cleared
+            if (pending.get() && !closed.get() && writing.compareAndSet(false, true)) {
+                writers.execute(this::write);
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            messageService.removeMessageListener(username, listener);
+            connections.computeIfPresent(username, (k, set) -> {
+                set.remove(this);
+                return set.isEmpty() ? null : set;
+            });
+            userService.releasePresence(username);
+        }
+    }
+}
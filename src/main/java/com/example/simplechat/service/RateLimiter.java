@@ -0,0 +1,68 @@
+package com.example.simplechat.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket per key (username): up to burst requests at once, refilled at ratePerSecond.
+ *
+ * Each bucket is one AtomicLong holding the time at which it will be full again, so a request is
+ * one compare-and-set and needs no lock: the bucket has a token if that time is less than
+ * burst intervals ahead of now, and taking one moves it one interval further. A bucket that is
+ * full again holds nothing worth keeping, and prune() drops those.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    // How far ahead of now the full time may be while a token is left
+    private final long toleranceNanos;
+    private final LongSupplier clock;
+    // Key: username, Value: when their bucket is full again, on the clock's scale
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    // clock in nanoseconds, e.g. System::nanoTime
+    public RateLimiter(double ratePerSecond, int burst, LongSupplier clock) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.clock = clock;
+    }
+
+    // Takes a token for key. Returns 0 if there was one, otherwise the nanoseconds until there is.
+    public long tryAcquire(String key) {
+        AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(clock.getAsLong()));
+        while (true) {
+            long now = clock.getAsLong();
+            long full = bucket.get();
+            long from = full - now < 0 ? now : full; // A full bucket doesn't save up more
+            long wait = from - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, from + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    // Drops the buckets that are full again. A request racing the removal may get one token
+    // more than its bucket had, which is fine for a limiter.
+    public int prune() {
+        long now = clock.getAsLong();
+        int removed = 0;
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+            if (entry.getValue().get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.simplechat.service;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Active access tokens, each a session of one user; a user may hold several (one per device).
+ *
+ * Lookups are a single map access plus a deadline check, so a token is refused the moment it
+ * expires. Expired sessions are removed by a TimingWheel, advanced with expire(), so the maps
+ * hold only live sessions and no sweep ever scans them. Revocation removes a session at once.
+ */
+public class SessionStore {
+
+    private static final int WHEEL_SIZE = 512;
+
+    public record Session(String token, String username, long expiresAtMillis) {
+    }
+
+    private final ConcurrentHashMap<String, Session> sessionsByToken = new ConcurrentHashMap<>();
+    // Key: username, Value: that user's tokens
+    private final ConcurrentHashMap<String, Set<String>> tokensByUser = new ConcurrentHashMap<>();
+    private final TimingWheel<String> expiry;
+    private final LongSupplier clock;
+
+    public SessionStore(long tickMs, LongSupplier clock) {
+        this.clock = clock;
+        this.expiry = new TimingWheel<>(tickMs, WHEEL_SIZE, clock.getAsLong(), this::removeIfExpired);
+    }
+
+    // Starts a session with a new random token
+    public Session create(String username, long lifetimeMs) {
+        return add(UUID.randomUUID().toString(), username, clock.getAsLong() + lifetimeMs);
+    }
+
+    // Registers an existing token, e.g. one persisted before a restart. Replaces any session with that token.
+    public Session add(String token, String username, long expiresAtMillis) {
+        Session session = new Session(token, username, expiresAtMillis);
+        Session previous = sessionsByToken.put(token, session);
+        if (previous != null && !previous.username().equals(username)) {
+            untrack(previous);
+        }
+        tokensByUser.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(token);
+        expiry.schedule(token, expiresAtMillis);
+        return session;
+    }
+
+    public Optional<Session> find(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        Session session = sessionsByToken.get(token);
+        if (session == null || session.expiresAtMillis() <= clock.getAsLong()) {
+            return Optional.empty(); // An expired one is left for the wheel
+        }
+        return Optional.of(session);
+    }
+
+    // Ends the session at once. Returns it, or empty if the token had no session.
+    public Optional<Session> revoke(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        expiry.cancel(token);
+        return Optional.ofNullable(remove(token));
+    }
+
+    // Ends every session of the user. Returns the number ended.
+    public int revokeAll(String username) {
+        Set<String> tokens = tokensByUser.remove(username);
+        if (tokens == null) {
+            return 0;
+        }
+        int revoked = 0;
+        for (String token : tokens) {
+            expiry.cancel(token);
+            if (sessionsByToken.remove(token) != null) {
+                revoked++;
+            }
+        }
+        return revoked;
+    }
+
+    // Removes the sessions that expired by now. Returns the number removed.
+    public int expire() {
+        return expiry.advance(clock.getAsLong());
+    }
+
+    public int size() {
+        return sessionsByToken.size();
+    }
+
+    public int countForUser(String username) {
+        Set<String> tokens = tokensByUser.get(username);
+        return tokens == null ? 0 : tokens.size();
+    }
+
+    // The wheel calls back after releasing its lock; a token added again meanwhile stays
+    private void removeIfExpired(String token) {
+        Session session = sessionsByToken.get(token);
+        if (session != null && session.expiresAtMillis() <= clock.getAsLong() && sessionsByToken.remove(token, session)) {
+            untrack(session);
+        }
+    }
+
+    private Session remove(String token) {
+        Session session = sessionsByToken.remove(token);
+        if (session != null) {
+            untrack(session);
+        }
+        return session;
+    }
+
+    private void untrack(Session session) {
+        tokensByUser.computeIfPresent(session.username(), (k, tokens) -> {
+            tokens.remove(session.token());
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DeliveryBus over TCP, for a few nodes, e.g. several JVMs on one box over loopback. Each node
+ * listens on a port and opens one connection to each peer it sends to, starting with a HELLO frame
+ * that carries its id. A frame is a type byte and a length-prefixed JSON body.
+ *
+ * A MESSAGE is answered with one byte, 1 once the peer has stored it, so send() returning true means
+ * the message is the peer's to deliver. Sends to one peer go one at a time over its connection.
+ */
+public class TcpDeliveryBus implements DeliveryBus {
+
+    private static final byte HELLO = 0;
+    private static final byte MESSAGE = 1;
+    private static final byte PRESENCE = 2;
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int REPLY_TIMEOUT_MS = 5000;
+    private static final TypeReference<Map<String, Boolean>> PRESENCE_TYPE = new TypeReference<>() {
+    };
+
+    private final String nodeId;
+    private final ServerSocket serverSocket;
+    private final ObjectMapper objectMapper;
+    // Key: node id
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private volatile Receiver receiver;
+    private volatile boolean closed;
+
+    // Port 0 picks a free one, see getPort()
+    public TcpDeliveryBus(String nodeId, String bindHost, int port) throws IOException {
+        this.nodeId = nodeId;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(bindHost, port));
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void addPeer(String peerId, InetSocketAddress address) {
+        peers.put(peerId, new Peer(address));
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Peers already listening learn about this node at once; the others when it first sends to them
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        Thread acceptor = new Thread(this::accept, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        peers.values().forEach(Peer::hello);
+    }
+
+    @Override
+    public boolean send(String peerId, Message message) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) {
+            return false;
+        }
+        try {
+            return peer.send(MESSAGE, objectMapper.writeValueAsBytes(message), true);
+        } catch (IOException e) {
+            System.err.println("Failed to encode message for node " + peerId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void announce(Map<String, Boolean> presence) {
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(presence);
+        } catch (IOException e) {
+            System.err.println("Failed to encode presence: " + e.getMessage());
+            return;
+        }
+        peers.values().forEach(peer -> peer.send(PRESENCE, body, false));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close cluster listener: " + e.getMessage());
+        }
+        peers.values().forEach(Peer::disconnect);
+        inbound.forEach(TcpDeliveryBus::closeQuietly);
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                inbound.add(socket);
+                Thread reader = new Thread(() -> read(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Cluster listener failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        String from = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (!closed) {
+                byte type = in.readByte();
+                byte[] body = readBody(in);
+                switch (type) {
+                    case HELLO -> {
+                        from = new String(body, StandardCharsets.UTF_8);
+                        receiver.joined(from);
+                    }
+                    case MESSAGE -> {
+                        out.writeByte(receive(objectMapper.readValue(body, Message.class)) ? 1 : 0);
+                        out.flush();
+                    }
+                    case PRESENCE -> {
+                        if (from == null) {
+                            throw new IOException("Presence before hello");
+                        }
+                        receiver.presence(from, objectMapper.readValue(body, PRESENCE_TYPE));
+                    }
+                    default -> throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // The peer closed the connection
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Connection from node " + from + " failed: " + e.getMessage());
+            }
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    private boolean receive(Message message) {
+        try {
+            return receiver.message(message);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to accept message " + message.getId() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        return in.readNBytes(length);
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, byte[] body) throws IOException {
+        out.writeByte(type);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    // Outgoing connection to one peer, opened on first use and again after it breaks
+    private final class Peer {
+        private final InetSocketAddress address;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void hello() {
+            lock.lock();
+            try {
+                connect();
+            } catch (IOException e) {
+                disconnect(); // Not up yet; it says hello when it starts
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean send(byte type, byte[] body, boolean awaitReply) {
+            lock.lock();
+            try {
+                // One retry, for a connection the peer dropped (e.g. restarted) since the last send.
+                // Only failures before the frame is out are retried, or the peer could store a message twice.
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    try {
+                        connect();
+                        writeFrame(out, type, body);
+                    } catch (IOException e) {
+                        disconnect();
+                        continue;
+                    }
+                    if (!awaitReply) {
+                        return true;
+                    }
+                    try {
+                        return in.readByte() == 1;
+                    } catch (IOException e) {
+                        System.err.println("No reply from node at " + address + ": " + e.getMessage());
+                        disconnect();
+                        return false;
+                    }
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Under lock
+        private void connect() throws IOException {
+            if (socket != null) {
+                return;
+            }
+            Socket s = new Socket();
+            try {
+                s.connect(address, CONNECT_TIMEOUT_MS);
+                s.setSoTimeout(REPLY_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                in = new DataInputStream(s.getInputStream());
+                writeFrame(out, HELLO, nodeId.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                closeQuietly(s);
+                throw e;
+            }
+            socket = s;
+        }
+
+        void disconnect() {
+            lock.lock();
+            try {
+                if (socket != null) {
+                    closeQuietly(socket);
+                    socket = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.simplechat.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: deadlines rounded up to a tick, kept in a ring of buckets indexed by tick.
+ * Scheduling and cancelling are O(1); advancing visits only the buckets of the ticks that passed,
+ * and within them only the keys that are due, plus those a whole rotation or more away, which
+ * stay put. A deadline is never reported before it passes, but up to one tick late.
+ *
+ * Each key has at most one deadline: scheduling it again moves it. The wheel doesn't run itself;
+ * the owner calls advance(), typically from a scheduler every tick.
+ */
+public class TimingWheel<K> {
+
+    private final long tickMs;
+    private final Bucket<K>[] buckets;
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    private final Consumer<K> onExpiry;
+    // Last tick whose bucket was processed
+    private long currentTick;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final class Entry<K> {
+        final K key;
+        final long dueTick;
+        Bucket<K> bucket;
+        Entry<K> prev;
+        Entry<K> next;
+
+        Entry(K key, long dueTick) {
+            this.key = key;
+            this.dueTick = dueTick;
+        }
+    }
+
+    // Doubly linked, so an entry is unlinked without searching its bucket
+    private static final class Bucket<K> {
+        Entry<K> head;
+
+        void add(Entry<K> entry) {
+            entry.bucket = this;
+            entry.prev = null;
+            entry.next = head;
+            if (head != null) {
+                head.prev = entry;
+            }
+            head = entry;
+        }
+
+        void remove(Entry<K> entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            entry.bucket = null;
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+
+    // Called with each key whose deadline passed, from advance(), outside the wheel's lock
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, int wheelSize, long startMillis, Consumer<K> onExpiry) {
+        if (tickMs < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickMs = tickMs;
+        this.buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new Bucket<>();
+        }
+        this.onExpiry = onExpiry;
+        this.currentTick = startMillis / tickMs;
+    }
+
+    public void schedule(K key, long deadlineMillis) {
+        lock.lock();
+        try {
+            Entry<K> previous = entries.remove(key);
+            if (previous != null) {
+                previous.bucket.remove(previous);
+            }
+            // Rounded up, and never into a bucket that has already been processed
+            long dueTick = Math.max(currentTick + 1, Math.floorDiv(deadlineMillis + tickMs - 1, tickMs));
+            Entry<K> entry = new Entry<>(key, dueTick);
+            buckets[(int) Math.floorMod(dueTick, (long) buckets.length)].add(entry);
+            entries.put(key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean cancel(K key) {
+        lock.lock();
+        try {
+            Entry<K> entry = entries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            entry.bucket.remove(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(K key) {
+        lock.lock();
+        try {
+            return entries.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Expires every key whose deadline tick has passed by nowMillis. Returns the number expired.
+    public int advance(long nowMillis) {
+        List<K> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            long nowTick = Math.floorDiv(nowMillis, tickMs);
+            // After a long pause, one visit to each bucket covers every tick that passed
+            long from = Math.max(currentTick + 1, nowTick - buckets.length + 1);
+            for (long tick = from; tick <= nowTick; tick++) {
+                Bucket<K> bucket = buckets[(int) Math.floorMod(tick, (long) buckets.length)];
+                for (Entry<K> entry = bucket.head; entry != null; ) {
+                    Entry<K> next = entry.next;
+                    if (entry.dueTick <= nowTick) {
+                        bucket.remove(entry);
+                        entries.remove(entry.key);
+                        expired.add(entry.key);
+                    }
+                    entry = next;
+                }
+            }
+            currentTick = Math.max(currentTick, nowTick);
+        } finally {
+            lock.unlock();
+        }
+        for (K key : expired) {
+            try {
+                onExpiry.accept(key);
+            } catch (RuntimeException e) {
+                System.err.println("Timing wheel expiry callback failed for " + key + ": " + e.getMessage());
+            }
+        }
+        return expired.size();
+    }
+}
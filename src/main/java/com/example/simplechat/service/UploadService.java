@@ -0,0 +1,207 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.UploadSession;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked, resumable uploads: init, upload chunk N (any order, retries allowed), complete.
+ *
+ * Each chunk is streamed from the request body into its slot of a part file under STORAGE_ROOT,
+ * so nothing is buffered by multipart handling. Only on completion is the part file handed to the
+ * attachment store and attached to a Message.
+ */
+@Service
+public class UploadService {
+
+    private static final String UPLOADS_DIR = ".uploads";
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private UserService userService;
+
+    @Value("${simplechat.uploads.chunk-size:1048576}")
+    private int chunkSize = 1024 * 1024;
+
+    // Uploads with no chunk for this long are dropped together with their part file
+    @Value("${simplechat.uploads.expiry-ms:86400000}")
+    private long expiryMs = 24 * 60 * 60 * 1000L;
+
+    // Largest file a client may announce; the part file is sized to it up front
+    @Value("${simplechat.uploads.max-size:1073741824}")
+    private long maxSize = 1024 * 1024 * 1024L;
+
+    // How often idle uploads are looked for
+    @Value("${simplechat.uploads.sweep-interval-ms:600000}")
+    private long sweepIntervalMs = 10 * 60 * 1000L;
+
+    // Key: upload id
+    private final ConcurrentHashMap<String, UploadSession> uploads = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    private void init() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::expireStaleUploads, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+    }
+
+    // Returns null if sender and receiver aren't friends
+    public UploadSession startUpload(String sender, String receiver, String fileName, long size) throws IOException {
+        if (size <= 0 || size > maxSize) {
+            throw new IllegalArgumentException("File size must be between 1 and " + maxSize + " bytes.");
+        }
+        String safeName = fileName == null ? "" : Paths.get(fileName).getFileName().toString();
+        if (safeName.isBlank()) {
+            throw new IllegalArgumentException("File name is required.");
+        }
+        if (!userService.isFriend(sender, receiver)) {
+            return null;
+        }
+        try {
+            Math.toIntExact(Math.ceilDiv(size, (long) chunkSize));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("File size needs too many chunks.");
+        }
+
+        String uploadId = UUID.randomUUID().toString();
+
+        Path uploadsDir = messageService.getStorageRoot().resolve(UPLOADS_DIR);
+        Files.createDirectories(uploadsDir);
+        Path partFile = uploadsDir.resolve(uploadId + ".part");
+        // Size the part file up front: transferFrom won't write past the end of a file,
+        // and chunks may arrive in any order. The gaps stay sparse until they're filled.
+        try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        UploadSession upload = new UploadSession(uploadId, sender, receiver, safeName, size, chunkSize, partFile);
+        uploads.put(uploadId, upload);
+        return upload;
+    }
+
+    // Only the sender can see or add to an upload
+    public UploadSession getUpload(String uploadId, String username) {
+        UploadSession upload = uploads.get(uploadId);
+        if (upload == null || !upload.getSender().equals(username)) {
+            return null;
+        }
+        return upload;
+    }
+
+    // Writes the body into the chunk's slot. The body must be exactly the chunk's length;
+    // anything else is rejected and the chunk stays missing, so the client can simply retry it.
+    public void writeChunk(UploadSession upload, int index, InputStream body) throws IOException {
+        if (index < 0 || index >= upload.getChunkCount()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        // Refused once completion has started, so the part file isn't written while it is hashed and moved
+        if (!upload.beginWrite()) {
+            throw new IllegalStateException("Upload already completed.");
+        }
+        long offset = upload.chunkOffset(index);
+        long length = upload.chunkLength(index);
+
+        boolean received = false;
+        ReadableByteChannel source = Channels.newChannel(body);
+        // Chunks of the same upload may be written concurrently; each writes only its own range
+        try (FileChannel out = FileChannel.open(upload.getPartFile(), StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < length) {
+                long n = out.transferFrom(source, offset + written, length - written);
+                if (n <= 0) {
+                    break;
+                }
+                written += n;
+            }
+            if (written != length || source.read(ByteBuffer.allocate(1)) != -1) {
+                throw new IllegalArgumentException("Chunk " + index + " must be exactly " + length + " bytes.");
+            }
+            received = true;
+        } finally {
+            upload.endWrite(index, received);
+        }
+    }
+
+    // Hands the assembled file to the attachment store and sends it. Returns the sendMessage status code.
+    // If the file can't be stored the upload is dropped with its part file, and the client starts over.
+    public int completeUpload(UploadSession upload) throws IOException {
+        if (!upload.markCompleted()) {
+            throw new IllegalStateException("Upload is incomplete, still receiving a chunk or already completed.");
+        }
+        uploads.remove(upload.getUploadId());
+
+        String blobName;
+        try {
+            try (FileChannel part = FileChannel.open(upload.getPartFile(), StandardOpenOption.WRITE)) {
+                part.force(true);
+            }
+            // Chunks arrive out of order, so the content hash is taken once the file is whole
+            blobName = messageService.storeAttachment(upload.getPartFile(), upload.getFileName());
+        } catch (IOException e) {
+            deletePartFile(upload); // Gone already if the store got as far as taking it over
+            throw e;
+        }
+        return messageService.sendFileMessage(upload.getSender(), upload.getReceiver(), blobName, upload.getFileName());
+    }
+
+    public boolean cancelUpload(UploadSession upload) {
+        if (uploads.remove(upload.getUploadId(), upload)) {
+            deletePartFile(upload);
+            return true;
+        }
+        return false;
+    }
+
+    // Runs on the upload-expiry thread
+    void expireStaleUploads() {
+        long cutoff = System.currentTimeMillis() - expiryMs;
+        uploads.values().removeIf(upload -> {
+            if (upload.getLastActivityMillis() < cutoff && !upload.isCompleted()) {
+                deletePartFile(upload);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void deletePartFile(UploadSession upload) {
+        try {
+            Files.deleteIfExists(upload.getPartFile());
+        } catch (IOException e) {
+            System.err.println("Failed to delete upload part file: " + e.getMessage());
+        }
+    }
+}
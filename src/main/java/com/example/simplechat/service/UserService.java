@@ -2,16 +2,35 @@ package com.example.simplechat.service;
 
 import com.example.simplechat.model.User;
 import com.example.simplechat.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 @Service
 public class UserService {
@@ -19,49 +38,196 @@ public class UserService {
     @Autowired
     private UserRepository userRepository;
 
-    // Simulate online status for long polling
-    // Key: username, Value: a dummy object for synchronization or a DeferredResult/CompletableFuture
+    // Users currently present; kept in step with the presence tracker under presenceLock
+    // Key: username, Value: a dummy object
     private final ConcurrentHashMap<String, Object> onlineUsers = new ConcurrentHashMap<>();
 
+    // How long a poll, heartbeat or login keeps a user online; an open stream keeps them online until it closes
+    @Value("${simplechat.presence.lease-ms:30000}")
+    private long presenceLeaseMs = 30000;
+
+    // Resolution of lease expiry: a user goes offline within a tick of their lease running out
+    @Value("${simplechat.presence.tick-ms:1000}")
+    private long presenceTickMs = 1000;
+
+    // Presence changes are collected and published to listeners at most this often
+    @Value("${simplechat.presence.batch-interval-ms:1000}")
+    private long presenceBatchIntervalMs = 1000;
+
+    private PresenceTracker presence = new PresenceTracker(30000, 1000, System::currentTimeMillis, this::lapse);
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    // Changes since the last batch, the latest per user; guarded by presenceLock
+    private Map<String, Boolean> pendingPresence = new LinkedHashMap<>();
+    private final Set<Consumer<Map<String, Boolean>>> presenceListeners = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService presenceScheduler;
+
+    // How long an access token stays valid after login
+    @Value("${simplechat.sessions.lifetime-ms:3600000}")
+    private long sessionLifetimeMs = 3600000;
+
+    // Resolution of session expiry: expired sessions are refused at once, and removed within a tick
+    @Value("${simplechat.sessions.tick-ms:1000}")
+    private long sessionTickMs = 1000;
+
+    // Access tokens -> sessions; several per user. The newest token is also kept on the User, so it
+    // survives a restart and is taken back into the store on first use.
+    private SessionStore sessions = new SessionStore(1000, System::currentTimeMillis);
+    private ScheduledExecutorService sessionExpiry;
+
+    // Falls back to the global registry when not wired by Spring (unit tests, benchmarks)
+    @Autowired
+    private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("simplechat.users.online", onlineUsers, Map::size)
+                .description("Users marked online")
+                .register(meterRegistry);
+
+        sessions = new SessionStore(sessionTickMs, System::currentTimeMillis);
+        Gauge.builder("simplechat.sessions.active", this, service -> service.sessions.size())
+                .description("Access tokens with a live session")
+                .register(meterRegistry);
+        sessionExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        sessionExpiry.scheduleAtFixedRate(() -> sessions.expire(), sessionTickMs, sessionTickMs, TimeUnit.MILLISECONDS);
+
+        presence = new PresenceTracker(presenceLeaseMs, presenceTickMs, System::currentTimeMillis, this::lapse);
+        presenceScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence");
+            t.setDaemon(true);
+            return t;
+        });
+        presenceScheduler.scheduleAtFixedRate(() -> presence.expire(), presenceTickMs, presenceTickMs, TimeUnit.MILLISECONDS);
+        presenceScheduler.scheduleAtFixedRate(this::flushPresence, presenceBatchIntervalMs, presenceBatchIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (sessionExpiry != null) {
+            sessionExpiry.shutdown();
+        }
+        if (presenceScheduler != null) {
+            presenceScheduler.shutdown();
+        }
+    }
+
     public String login(String username, String password) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String accessToken = doLogin(username, password);
+        sample.stop(meterRegistry.timer("simplechat.login", "result", accessToken != null ? "success" : "failure"));
+        return accessToken;
+    }
+
+    private String doLogin(String username, String password) {
         Optional<User> userOptional = userRepository.findByUsername(username);
         if (userOptional.isPresent()) {
             User user = userOptional.get();
             String hashedPassword = hashPasswordMD5(password);
             if (user.getPasswordHash().equals(hashedPassword)) {
-                String accessToken = UUID.randomUUID().toString();
-                LocalDateTime expiry = LocalDateTime.now().plusHours(1); // Token expires in 1 hour
-                user.setAccessToken(accessToken);
-                user.setAccessTokenExpiry(expiry);
+                // A new session; earlier tokens of this user stay valid until they expire or log out
+                SessionStore.Session session = sessions.create(username, sessionLifetimeMs);
+                user.setAccessToken(session.token());
+                user.setAccessTokenExpiry(LocalDateTime.ofInstant(Instant.ofEpochMilli(session.expiresAtMillis()), ZoneId.systemDefault()));
                 userRepository.save(user); // Update user in DB
-                onlineUsers.put(username, new Object()); // Mark as online
-                return accessToken;
+                setOnlineStatus(username, true); // Mark as online
+                return session.token();
             }
         }
         return null; // Login failed
     }
 
     public Optional<User> validateAccessToken(String accessToken) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Optional<User> user = doValidateAccessToken(accessToken);
+        sample.stop(meterRegistry.timer("simplechat.token.validation", "result", user.isPresent() ? "valid" : "invalid"));
+        return user;
+    }
+
+    private Optional<User> doValidateAccessToken(String accessToken) {
+        Optional<SessionStore.Session> session = sessions.find(accessToken);
+        if (session.isPresent()) {
+            return userRepository.findByUsername(session.get().username());
+        }
+        // Not in the store: a token saved on the User before a restart is still good until its expiry
         Optional<User> userOptional = userRepository.findByAccessToken(accessToken);
         if (userOptional.isPresent()) {
             User user = userOptional.get();
             if (user.getAccessTokenExpiry() != null && user.getAccessTokenExpiry().isAfter(LocalDateTime.now())) {
+                sessions.add(accessToken, user.getUsername(),
+                        user.getAccessTokenExpiry().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
                 return Optional.of(user);
             }
         }
         return Optional.empty(); // Token invalid or expired
     }
 
+    // Revokes the token at once. Returns false if it wasn't a valid token.
+    public boolean logout(String accessToken) {
+        Optional<SessionStore.Session> session = sessions.revoke(accessToken);
+        Optional<User> user = session.isPresent()
+                ? userRepository.findByUsername(session.get().username())
+                : userRepository.findByAccessToken(accessToken);
+        boolean persisted = user.filter(u -> accessToken.equals(u.getAccessToken())).isPresent();
+        if (persisted) {
+            // Or the fallback in validateAccessToken would let it back in
+            forgetPersistedToken(user.get());
+        }
+        if (session.isPresent() && sessions.countForUser(session.get().username()) == 0) {
+            setOnlineStatus(session.get().username(), false); // Their last device signed out
+        }
+        return session.isPresent() || persisted;
+    }
+
+    // Revokes every token of the user, e.g. after a password change or a lost device. Returns the number revoked.
+    public int logoutAll(String username) {
+        int revoked = sessions.revokeAll(username);
+        setOnlineStatus(username, false);
+        Optional<User> user = userRepository.findByUsername(username);
+        if (user.isPresent() && user.get().getAccessToken() != null) {
+            forgetPersistedToken(user.get());
+        }
+        return revoked;
+    }
+
+    private void forgetPersistedToken(User user) {
+        user.setAccessToken(null);
+        user.setAccessTokenExpiry(null);
+        userRepository.save(user);
+    }
+
     public List<String> getFriends(String username) {
-        return userRepository.findByUsername(username)
-                .map(User::getFriends)
-                .orElse(List.of()); // Return empty list if user not found
+        return userRepository.getFriendGraph().getFriends(username); // Empty if user not found
+    }
+
+    // The users who have username in their friend list, i.e. whom username may message
+    public List<String> getFollowers(String username) {
+        return userRepository.getFriendGraph().getFollowers(username);
     }
 
+    // Whether the receiver lists the sender as a friend; a hash probe, however many friends they have
     public boolean isFriend(String senderUsername, String receiverUsername) {
-        return userRepository.findByUsername(receiverUsername)
-                .map(user -> user.getFriends().contains(senderUsername))
-                .orElse(false);
+        return userRepository.getFriendGraph().hasFriend(receiverUsername, senderUsername);
+    }
+
+    public boolean userExists(String username) {
+        return userRepository.findByUsername(username).isPresent();
+    }
+
+    // Returns false if the friend doesn't exist, is the user themself, or is already listed
+    public boolean addFriend(String username, String friend) {
+        if (username.equals(friend)) {
+            return false;
+        }
+        return userRepository.addFriend(username, friend);
+    }
+
+    // Returns false if the friend wasn't listed
+    public boolean removeFriend(String username, String friend) {
+        return userRepository.removeFriend(username, friend);
     }
 
     public String hashPasswordMD5(String password) {
@@ -79,11 +245,39 @@ public class UserService {
         }
     }
 
+    // Online renews the user's lease; offline ends it, though an open stream still keeps them online
     public void setOnlineStatus(String username, boolean isOnline) {
-        if (isOnline) {
-            onlineUsers.put(username, new Object()); // Using dummy object for presence
-        } else {
-            onlineUsers.remove(username);
+        presenceLock.lock();
+        try {
+            if (isOnline) {
+                presence.renew(username);
+                markOnline(username);
+            } else if (!presence.end(username)) {
+                markOffline(username);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // An open connection (stream) keeps the user online until releasePresence
+    public void holdPresence(String username) {
+        presenceLock.lock();
+        try {
+            presence.hold(username);
+            markOnline(username);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // The last connection closing starts a lease, so a quick reconnect doesn't show as offline
+    public void releasePresence(String username) {
+        presenceLock.lock();
+        try {
+            presence.release(username);
+        } finally {
+            presenceLock.unlock();
         }
     }
 
@@ -91,6 +285,86 @@ public class UserService {
         return onlineUsers.containsKey(username);
     }
 
+    // Online status of each user, in the given order
+    public Map<String, Boolean> getPresence(Collection<String> usernames) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String username : usernames) {
+            result.put(username, onlineUsers.containsKey(username));
+        }
+        return result;
+    }
+
+    // Called with batches of presence changes (username -> online), from the presence thread
+    public void addPresenceListener(Consumer<Map<String, Boolean>> listener) {
+        presenceListeners.add(listener);
+    }
+
+    public void removePresenceListener(Consumer<Map<String, Boolean>> listener) {
+        presenceListeners.remove(listener);
+    }
+
+    // Publishes the changes collected since the last batch; a user who went offline and came back is left out
+    void flushPresence() {
+        Map<String, Boolean> batch;
+        presenceLock.lock();
+        try {
+            if (pendingPresence.isEmpty()) {
+                return;
+            }
+            batch = pendingPresence;
+            pendingPresence = new LinkedHashMap<>();
+        } finally {
+            presenceLock.unlock();
+        }
+        DistributionSummary.builder("simplechat.presence.batch")
+                .description("Presence changes per published batch")
+                .register(meterRegistry)
+                .record(batch.size());
+        for (Consumer<Map<String, Boolean>> listener : presenceListeners) {
+            try {
+                listener.accept(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Presence listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // The tracker found the user's lease ran out with no connection open
+    private void lapse(String username) {
+        presenceLock.lock();
+        try {
+            if (!presence.isPresent(username)) {
+                markOffline(username);
+                Counter.builder("simplechat.presence.expired")
+                        .description("Users gone offline because their lease ran out")
+                        .register(meterRegistry)
+                        .increment();
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Both run under presenceLock
+    private void markOnline(String username) {
+        if (onlineUsers.put(username, Boolean.TRUE) == null) {
+            presenceChanged(username, true);
+        }
+    }
+
+    private void markOffline(String username) {
+        if (onlineUsers.remove(username) != null) {
+            presenceChanged(username, false);
+        }
+    }
+
+    private void presenceChanged(String username, boolean online) {
+        Boolean previous = pendingPresence.put(username, online);
+        if (previous != null && previous != online) {
+            pendingPresence.remove(username); // Back where the last batch left it
+        }
+    }
+
     public ConcurrentHashMap<String, Object> getOnlineUsers() {
         return onlineUsers;
     }
@@ -0,0 +1,149 @@
+package com.example.simplechat.benchmark;
+
+import com.example.simplechat.controller.ChatController;
+import com.example.simplechat.model.Message;
+import com.example.simplechat.model.User;
+import com.example.simplechat.repository.MessageRepository;
+import com.example.simplechat.service.MessageService;
+import com.example.simplechat.service.UserService;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Send-to-delivery latency of a parked long poll.
+ *
+ * "polling" replays the old ChatController loop that checked every parked request every 100 ms,
+ * "event" goes through ChatController.getNewMessages and the MessageService listener.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.simplechat.benchmark.DeliveryLatencyBenchmark [-Dexec.args=200]
+ */
+public class DeliveryLatencyBenchmark {
+
+    private static final String SENDER = "sender";
+    private static final String RECEIVER = "receiver";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        report("polling (100 ms scheduler)", measurePolling(iterations));
+        report("event-driven wakeup", measureEventDriven(iterations));
+    }
+
+    private static long[] measurePolling(int iterations) throws Exception {
+        MessageService messageService = newMessageService(newUserService());
+        ConcurrentHashMap<String, DeferredResult<List<Message>>> parked = new ConcurrentHashMap<>();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(() -> parked.forEach((username, deferredResult) -> {
+            if (!deferredResult.isSetOrExpired()) {
+                List<Message> newMessages = messageService.getNewMessages(username);
+                if (!newMessages.isEmpty()) {
+                    deferredResult.setResult(newMessages);
+                    parked.remove(username, deferredResult);
+                }
+            }
+        }), 0, 100, TimeUnit.MILLISECONDS);
+
+        try {
+            return measure(iterations, messageService, () -> {
+                DeferredResult<List<Message>> deferredResult = new DeferredResult<>(10000L, Collections.emptyList());
+                parked.put(RECEIVER, deferredResult);
+                return deferredResult;
+            });
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static long[] measureEventDriven(int iterations) throws Exception {
+        UserService userService = newUserService();
+        MessageService messageService = newMessageService(userService);
+        ChatController chatController = new ChatController();
+        ReflectionTestUtils.setField(chatController, "userService", userService);
+        ReflectionTestUtils.setField(chatController, "messageService", messageService);
+
+        return measure(iterations, messageService, () -> chatController.getNewMessages("token", null));
+    }
+
+    // parkPoll parks one long poll for RECEIVER, then one message is sent and timed until the poll completes
+    private static long[] measure(int iterations, MessageService messageService,
+                                  Supplier<DeferredResult<List<Message>>> parkPoll) throws Exception {
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            DeferredResult<List<Message>> deferredResult = parkPoll.get();
+
+            CountDownLatch delivered = new CountDownLatch(1);
+            AtomicLong deliveredAt = new AtomicLong();
+            deferredResult.setResultHandler(result -> {
+                deliveredAt.set(System.nanoTime());
+                delivered.countDown();
+            });
+
+            // Random offset so the send doesn't line up with the polling tick
+            Thread.sleep(ThreadLocalRandom.current().nextInt(5, 50));
+            long sentAt = System.nanoTime();
+            messageService.sendMessage(SENDER, RECEIVER, "ping " + i, null);
+            if (!delivered.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Message " + i + " was not delivered");
+            }
+            latencies[i] = deliveredAt.get() - sentAt;
+        }
+        return latencies;
+    }
+
+    private static UserService newUserService() {
+        User receiver = new User();
+        receiver.setUsername(RECEIVER);
+        receiver.setFriends(Arrays.asList(SENDER));
+        receiver.setAccessToken("token");
+        receiver.setAccessTokenExpiry(LocalDateTime.now().plusHours(1));
+
+        UserService userService = mock(UserService.class);
+        when(userService.isFriend(SENDER, RECEIVER)).thenReturn(true);
+        when(userService.isUserOnline(anyString())).thenReturn(true);
+        when(userService.validateAccessToken("token")).thenReturn(Optional.of(receiver));
+        return userService;
+    }
+
+    private static MessageService newMessageService(UserService userService) {
+        // The repository is stubbed out so the numbers show delivery latency, not file I/O
+        MessageRepository messageRepository = mock(MessageRepository.class);
+        when(messageRepository.findUnreadMessagesForUser(anyString())).thenReturn(new ArrayList<>());
+
+        MessageService messageService = new MessageService();
+        ReflectionTestUtils.setField(messageService, "messageRepository", messageRepository);
+        ReflectionTestUtils.setField(messageService, "userService", userService);
+        return messageService;
+    }
+
+    private static void report(String name, long[] latenciesNanos) {
+        long[] sorted = latenciesNanos.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        System.out.printf("%-28s n=%d mean=%.3f ms p50=%.3f ms p99=%.3f ms max=%.3f ms%n",
+                name, sorted.length, mean / 1e6,
+                sorted[sorted.length / 2] / 1e6,
+                sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * 0.99) - 1)] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.simplechat.benchmark;
+
+import com.example.simplechat.SimplechatApplication;
+import com.example.simplechat.service.MessageService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the server with platform vs virtual request threads under a burst of uploads.
+ *
+ * Each client loops for the run duration: upload a small file through /api/send-message, then
+ * GET /api/friends. Friends latency stands in for "logins queued behind uploads".
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.example.simplechat.benchmark.VirtualThreadLoadBenchmark
+ *   -Dexec.args="10000 20"   (clients, seconds per mode)
+ * 10k clients need about 2 file descriptors each (client and server socket), so raise ulimit -n.
+ * Messages go to messages.log under target/classes; run mvn clean afterwards for a fresh data set.
+ */
+public class VirtualThreadLoadBenchmark {
+
+    private static final byte[] FILE_CONTENT = new byte[32 * 1024];
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Arrays.fill(FILE_CONTENT, (byte) 'x');
+        // devtools would restart main() in a fresh classloader and drop the arguments
+        System.setProperty("spring.devtools.restart.enabled", "false");
+
+        for (boolean virtual : new boolean[]{false, true}) {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(SimplechatApplication.class)
+                    .properties(
+                            "server.port=0",
+                            "spring.threads.virtual.enabled=" + virtual,
+                            "server.tomcat.max-connections=" + (clients + 1000),
+                            "server.tomcat.accept-count=" + clients,
+                            "simplechat.messages.persistence=log",
+                            "simplechat.messages.log.fsync=never",
+                            "logging.level.root=WARN")
+                    .run();
+            try {
+                Path storage = Files.createTempDirectory("simplechat-load");
+                ReflectionTestUtils.setField(context.getBean(MessageService.class), "STORAGE_ROOT", storage + "/");
+                int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+                run(virtual ? "virtual threads" : "platform threads", port, clients, seconds);
+            } finally {
+                context.close();
+            }
+        }
+    }
+
+    private static void run(String mode, int port, int clients, int seconds) throws Exception {
+        String base = "http://localhost:" + port + "/api";
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        String token = login(client, base, "user2");
+
+        String boundary = "----simplechat-load";
+        byte[] uploadBody = multipart(boundary);
+        HttpRequest upload = HttpRequest.newBuilder(URI.create(base + "/send-message"))
+                .header("Access-Token", token)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(uploadBody))
+                .build();
+        HttpRequest friends = HttpRequest.newBuilder(URI.create(base + "/friends"))
+                .header("Access-Token", token)
+                .GET()
+                .build();
+
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        ConcurrentLinkedQueue<Long> friendsLatencies = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(clients);
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                executor.submit(() -> {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            if (client.send(upload, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                                completed.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                            long t0 = System.nanoTime();
+                            if (client.send(friends, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                                completed.incrementAndGet();
+                                friendsLatencies.add(System.nanoTime() - t0);
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        List<Long> sorted = new ArrayList<>(friendsLatencies);
+        sorted.sort(Long::compare);
+        System.out.printf("%-17s clients=%d requests=%d failed=%d throughput=%.0f req/s friends p50=%.1f ms p99=%.1f ms%n",
+                mode, clients, completed.get(), failed.get(), completed.get() / elapsed,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6);
+    }
+
+    private static String login(HttpClient client, String base, String username) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/login"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + username + "\",\"password\":\"123456\"}"))
+                .build();
+        String body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        return body.replaceAll(".*\"accessToken\"\\s*:\\s*\"([^\"]+)\".*", "$1");
+    }
+
+    private static byte[] multipart(String boundary) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"receiver\"\r\n\r\nuser1\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(FILE_CONTENT);
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(sorted.size() * p) - 1));
+    }
+}
@@ -1,18 +1,27 @@
 package com.example.simplechat.controller;
 
+import com.example.simplechat.config.FileChannelResourceHttpMessageConverter;
+import com.example.simplechat.config.FileChannelResourceRegionHttpMessageConverter;
+import com.example.simplechat.model.ConversationPage;
+import com.example.simplechat.model.FileMetadata;
 import com.example.simplechat.model.Message;
+import com.example.simplechat.model.UploadSession;
 import com.example.simplechat.model.User;
 import com.example.simplechat.service.MessageService;
+import com.example.simplechat.service.PushService;
+import com.example.simplechat.service.UploadService;
 import com.example.simplechat.service.UserService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -20,6 +29,7 @@ import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.nio.file.Files; // Thêm import này
@@ -43,6 +53,12 @@ class ChatControllerTest {
     @Mock
     private MessageService messageService;
 
+    @Mock
+    private PushService pushService;
+
+    @Mock
+    private UploadService uploadService;
+
     @InjectMocks
     private ChatController chatController;
 
@@ -116,6 +132,55 @@ class ChatControllerTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void logout_ValidToken_RevokesItAndReturnsNoContent() throws Exception {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+
+        mockMvc.perform(post("/api/logout").header("Access-Token", validAccessToken))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(post("/api/logout").param("all", "true").header("Access-Token", validAccessToken))
+                .andExpect(status().isNoContent());
+
+        verify(userService).logout(validAccessToken);
+        verify(userService).logoutAll("testuser");
+    }
+
+    @Test
+    void addAndRemoveFriend_ReturnUpdatedListOrErrorStatus() throws Exception {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(userService.userExists("friend3")).thenReturn(true);
+        when(userService.addFriend("testuser", "friend3")).thenReturn(true, false);
+        when(userService.getFriends("testuser")).thenReturn(List.of("friend1", "friend3"));
+
+        mockMvc.perform(post("/api/friends/friend3").header("Access-Token", validAccessToken))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.friends[1]").value("friend3"));
+        mockMvc.perform(post("/api/friends/friend3").header("Access-Token", validAccessToken))
+                .andExpect(status().isConflict());
+        mockMvc.perform(post("/api/friends/nobody").header("Access-Token", validAccessToken))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(delete("/api/friends/friend2").header("Access-Token", validAccessToken))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void sendMulticast_CommaSeparatedReceivers_ReturnsStatusPerReceiver() throws Exception {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        Map<String, Integer> statuses = new java.util.LinkedHashMap<>();
+        statuses.put("friend1", 1);
+        statuses.put("stranger", 3);
+        when(messageService.sendMulticast("testuser", List.of("friend1", "stranger"), "Hi all", null)).thenReturn(statuses);
+
+        mockMvc.perform(post("/api/send-multicast")
+                        .header("Access-Token", validAccessToken)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .param("receivers", "friend1,stranger")
+                        .param("message", "Hi all"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.statuses.friend1").value(1))
+                .andExpect(jsonPath("$.statuses.stranger").value(3));
+    }
+
     @Test
     void getFriends_ValidToken_ReturnsFriendsList() {
         // Arrange
@@ -170,6 +235,19 @@ class ChatControllerTest {
         verify(messageService).sendMessage("testuser", "friend1", "Hello!", null);
     }
 
+    @Test
+    void sendMessage_OverSendRate_Returns429WithRetryAfter() {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.acquireSendPermit("testuser")).thenReturn(1500L);
+
+        ResponseEntity<?> response = chatController.sendMessage(validAccessToken, "friend1", "Hello!", null);
+
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        assertEquals("2", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals(1500L, ((Map<String, Object>) response.getBody()).get("retryAfterMs"));
+        verify(messageService, never()).sendMessage(anyString(), anyString(), any(), any());
+    }
+
     @Test
     void sendMessage_ValidFileMessage_ReturnsSuccess() {
         // Arrange
@@ -246,7 +324,7 @@ class ChatControllerTest {
         when(messageService.getNewMessages("testuser")).thenReturn(messages);
 
         // Act
-        DeferredResult<List<Message>> result = chatController.getNewMessages(validAccessToken);
+        DeferredResult<List<Message>> result = chatController.getNewMessages(validAccessToken, null);
 
         // Assert
         assertNotNull(result);
@@ -256,13 +334,137 @@ class ChatControllerTest {
         verify(messageService).getNewMessages("testuser");
     }
 
+    @Test
+    void getConversation_ReturnsPageWithCursor_AndBadCursorIsBadRequest() throws Exception {
+        Message message = new Message();
+        message.setId("msg1");
+        message.setSender("friend1");
+        message.setReceiver("testuser");
+        message.setContent("Hello!");
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.getConversation("testuser", "friend1", "cursor-1", 20))
+                .thenReturn(new ConversationPage(List.of(message), "cursor-0"));
+        when(messageService.getConversation("testuser", "friend1", "bad", 50))
+                .thenThrow(new IllegalArgumentException("Invalid cursor."));
+
+        mockMvc.perform(get("/api/conversations/friend1/messages")
+                        .header("Access-Token", validAccessToken)
+                        .param("before", "cursor-1")
+                        .param("limit", "20"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages[0].id").value("msg1"))
+                .andExpect(jsonPath("$.nextCursor").value("cursor-0"));
+        mockMvc.perform(get("/api/conversations/friend1/messages")
+                        .header("Access-Token", validAccessToken)
+                        .param("before", "bad"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void acknowledge_ReturnsCursor_AndPollCanCarryTheAck() throws Exception {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.acknowledge("testuser", 42)).thenReturn(42L);
+        when(messageService.acknowledge("testuser", -1)).thenThrow(new IllegalArgumentException("Cursor must not be negative."));
+
+        mockMvc.perform(post("/api/ack").header("Access-Token", validAccessToken).param("cursor", "42"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.cursor").value(42));
+        mockMvc.perform(post("/api/ack").header("Access-Token", validAccessToken).param("cursor", "-1"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(post("/api/ack").header("Access-Token", "invalid-token").param("cursor", "42"))
+                .andExpect(status().isUnauthorized());
+
+        Message message = new Message();
+        message.setId("msg2");
+        message.setSeq(43);
+        when(messageService.getNewMessages("testuser")).thenReturn(List.of(message));
+        DeferredResult<List<Message>> result = chatController.getNewMessages(validAccessToken, 42L);
+        assertEquals(List.of(message), result.getResult());
+        verify(messageService, times(2)).acknowledge("testuser", 42);
+    }
+
+    @Test
+    void getNewMessages_NoMessages_CompletedWhenListenerFires() {
+        // Arrange
+        Message message1 = new Message();
+        message1.setId("msg1");
+        message1.setSender("friend1");
+        message1.setReceiver("testuser");
+        message1.setContent("Hello!");
+        message1.setTimestamp(LocalDateTime.now());
+
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.getNewMessages("testuser")).thenReturn(Collections.emptyList());
+
+        // Act
+        DeferredResult<List<Message>> result = chatController.getNewMessages(validAccessToken, null);
+
+        // Assert: parked, with a listener registered for the user
+        assertFalse(result.hasResult());
+        ArgumentCaptor<Runnable> listenerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(messageService).addMessageListener(eq("testuser"), listenerCaptor.capture());
+
+        // A message arrives: MessageService runs the listener on the sender's thread
+        when(messageService.getNewMessages("testuser")).thenReturn(List.of(message1));
+        listenerCaptor.getValue().run();
+
+        assertEquals(List.of(message1), result.getResult());
+    }
+
+    @Test
+    void getNewMessages_TwoSessions_BothParked_AndOneFetchCompletesBoth() {
+        Message message1 = new Message();
+        message1.setId("msg1");
+        message1.setReceiver("testuser");
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.getNewMessages("testuser")).thenReturn(Collections.emptyList());
+
+        DeferredResult<List<Message>> phone = chatController.getNewMessages(validAccessToken, null);
+        DeferredResult<List<Message>> laptop = chatController.getNewMessages(validAccessToken, null);
+
+        // The second poll joins the first instead of replacing it
+        assertFalse(phone.hasResult());
+        assertFalse(laptop.hasResult());
+        ArgumentCaptor<Runnable> listenerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(messageService, times(1)).addMessageListener(eq("testuser"), listenerCaptor.capture());
+        verify(userService, never()).setOnlineStatus("testuser", false);
+
+        clearInvocations(messageService);
+        when(messageService.getNewMessages("testuser")).thenReturn(List.of(message1));
+        listenerCaptor.getValue().run();
+
+        assertEquals(List.of(message1), phone.getResult());
+        assertEquals(List.of(message1), laptop.getResult());
+        verify(messageService, times(1)).getNewMessages("testuser");
+        // Nothing left parked: the listener goes, but the presence lease keeps the user online until the next poll
+        verify(messageService).removeMessageListener("testuser", listenerCaptor.getValue());
+        verify(userService, never()).setOnlineStatus("testuser", false);
+    }
+
+    @Test
+    void getFriendsPresence_ReturnsTheWholeFriendListInOneCall() {
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(userService.getFriends("testuser")).thenReturn(List.of("friend1", "friend2"));
+        Map<String, Boolean> presence = new LinkedHashMap<>();
+        presence.put("friend1", true);
+        presence.put("friend2", false);
+        when(userService.getPresence(List.of("friend1", "friend2"))).thenReturn(presence);
+
+        ResponseEntity<?> response = chatController.getFriendsPresence(validAccessToken);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(Map.of("presence", presence), response.getBody());
+        assertEquals(HttpStatus.NO_CONTENT, chatController.heartbeat(validAccessToken).getStatusCode());
+        verify(userService).setOnlineStatus("testuser", true);
+    }
+
     @Test
     void getNewMessages_InvalidToken_ReturnsEmptyList() {
         // Arrange
         when(userService.validateAccessToken("invalid-token")).thenReturn(Optional.empty());
 
         // Act
-        DeferredResult<List<Message>> result = chatController.getNewMessages("invalid-token");
+        DeferredResult<List<Message>> result = chatController.getNewMessages("invalid-token", null);
 
         // Assert
         assertNotNull(result);
@@ -271,6 +473,93 @@ class ChatControllerTest {
         verify(userService, never()).setOnlineStatus(anyString(), anyBoolean());
     }
 
+    @Test
+    void stream_ValidTokenAsQueryParam_OpensPushConnection() {
+        // Arrange
+        SseEmitter emitter = new SseEmitter();
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(pushService.connect("testuser")).thenReturn(emitter);
+
+        // Act
+        ResponseEntity<SseEmitter> response = chatController.stream(null, validAccessToken);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertSame(emitter, response.getBody());
+        verify(pushService).connect("testuser");
+    }
+
+    @Test
+    void stream_InvalidToken_ReturnsUnauthorized() {
+        // Arrange
+        when(userService.validateAccessToken("invalid-token")).thenReturn(Optional.empty());
+
+        // Act
+        ResponseEntity<SseEmitter> response = chatController.stream("invalid-token", null);
+
+        // Assert
+        assertEquals(HttpStatus.UNAUTHORIZED, response.getStatusCode());
+        verify(pushService, never()).connect(anyString());
+    }
+
+    @Test
+    void uploadChunk_RawBody_WritesChunk() throws Exception {
+        // Arrange
+        UploadSession upload = new UploadSession("upload-1", "testuser", "friend1", "big.bin", 20, 8, Paths.get("upload-1.part"));
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(uploadService.getUpload("upload-1", "testuser")).thenReturn(upload);
+        doAnswer(invocation -> {
+            upload.markReceived(invocation.getArgument(1));
+            return null;
+        }).when(uploadService).writeChunk(eq(upload), eq(1), any());
+
+        // Act & Assert
+        mockMvc.perform(put("/api/uploads/upload-1/chunks/1")
+                        .header("Access-Token", validAccessToken)
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[8]))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.chunk").value(1))
+                .andExpect(jsonPath("$.remaining").value(2));
+        verify(uploadService).writeChunk(eq(upload), eq(1), any());
+    }
+
+    @Test
+    void completeUpload_OverSendRate_Returns429AndKeepsUpload() throws Exception {
+        UploadSession upload = new UploadSession("upload-1", "testuser", "friend1", "big.bin", 20, 8, Paths.get("upload-1.part"));
+        upload.markReceived(0);
+        upload.markReceived(1);
+        upload.markReceived(2);
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(uploadService.getUpload("upload-1", "testuser")).thenReturn(upload);
+        when(messageService.acquireSendPermit("testuser")).thenReturn(250L);
+
+        ResponseEntity<?> response = chatController.completeUpload(validAccessToken, "upload-1");
+
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        assertEquals("1", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        verify(uploadService, never()).completeUpload(any());
+    }
+
+    @Test
+    void completeUpload_ChunksMissing_ReturnsConflictWithoutTakingASendToken() throws Exception {
+        // Arrange
+        UploadSession upload = new UploadSession("upload-1", "testuser", "friend1", "big.bin", 20, 8, Paths.get("upload-1.part"));
+        upload.markReceived(0);
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(uploadService.getUpload("upload-1", "testuser")).thenReturn(upload);
+
+        // Act
+        ResponseEntity<?> response = chatController.completeUpload(validAccessToken, "upload-1");
+
+        // Assert
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        Map<String, Object> responseBody = (Map<String, Object>) response.getBody();
+        assertEquals(List.of(1, 2), responseBody.get("missingChunks"));
+        verify(messageService, never()).acquireSendPermit(anyString());
+        verify(uploadService, never()).completeUpload(any());
+    }
+
     @Test
     void downloadFile_ValidRequest_ReturnsFile() throws Exception {
         // Arrange
@@ -294,8 +583,7 @@ class ChatControllerTest {
         // Sửa: Kiểm tra filename thực tế từ resource thay vì hardcode
         Resource returnedResource = response.getBody();
         String actualFilename = returnedResource.getFilename();
-        assertEquals("attachment; filename=\"" + actualFilename + "\"",
-                response.getHeaders().getFirst("Content-Disposition"));
+        assertEquals(actualFilename, response.getHeaders().getContentDisposition().getFilename());
 
         // Verify content of the returned resource
         try (var is = returnedResource.getInputStream()) {
@@ -310,6 +598,62 @@ class ChatControllerTest {
     }
 
 
+    @Test
+    void downloadFile_Blob_NamedAfterTheUsersMessage() throws Exception {
+        String blobName = "a".repeat(64);
+        Path testFilePath = Files.createTempFile("blob", ".bin");
+        Files.write(testFilePath, "This is test content.".getBytes());
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.getFilePath(blobName, "testuser")).thenReturn(testFilePath);
+        when(messageService.getAttachmentName(blobName, "testuser")).thenReturn("báo cáo.pdf");
+
+        ResponseEntity<Resource> response = chatController.downloadFile(validAccessToken, blobName);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("báo cáo.pdf", response.getHeaders().getContentDisposition().getFilename());
+        assertTrue(response.getHeaders().getContentDisposition().isAttachment());
+
+        Files.deleteIfExists(testFilePath);
+    }
+
+    @Test
+    void downloadFile_RangeAndConditionalRequests_ServedFromFileChannel() throws Exception {
+        // Arrange
+        Path testFilePath = Files.createTempFile("test-file", ".txt");
+        Files.write(testFilePath, "This is test content.".getBytes());
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFileName("test-file.txt");
+        metadata.setContentType("text/plain");
+        metadata.setSha256("abc123");
+        metadata.setLastModified(Files.getLastModifiedTime(testFilePath).toMillis());
+        when(userService.validateAccessToken(validAccessToken)).thenReturn(Optional.of(testUser));
+        when(messageService.getFilePath("test-file.txt", "testuser")).thenReturn(testFilePath);
+        when(messageService.getFileMetadata("test-file.txt", testFilePath)).thenReturn(metadata);
+        MockMvc fileChannelMvc = MockMvcBuilders.standaloneSetup(chatController)
+                .setMessageConverters(new FileChannelResourceHttpMessageConverter(), new FileChannelResourceRegionHttpMessageConverter())
+                .build();
+
+        // Act & Assert
+        fileChannelMvc.perform(get("/api/files/test-file.txt").header("Access-Token", validAccessToken))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"abc123\""))
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(content().string("This is test content."));
+
+        fileChannelMvc.perform(get("/api/files/test-file.txt").header("Access-Token", validAccessToken)
+                        .header("If-None-Match", "\"abc123\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        fileChannelMvc.perform(get("/api/files/test-file.txt").header("Access-Token", validAccessToken)
+                        .header("Range", "bytes=8-11"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 8-11/21"))
+                .andExpect(content().string("test"));
+
+        Files.deleteIfExists(testFilePath);
+    }
+
     @Test
     void downloadFile_InvalidToken_ReturnsUnauthorized() throws IOException {
         // Arrange
@@ -0,0 +1,153 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinarySnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(String id, String sender, String receiver, String content, LocalDateTime timestamp) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setContent(content);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    @Test
+    void messages_RoundTripEveryFieldExactly() throws IOException {
+        LocalDateTime now = LocalDateTime.of(2024, 5, 1, 12, 30, 15, 123_456_000);
+        Message text = message(UUID.randomUUID().toString(), "user1", "user2", "Xin chào 👋", now);
+        Message reply = message("legacy-id", "user2", "user1", "", now.minusDays(3).withNano(7));
+        reply.setRead(true);
+        Message file = message(UUID.randomUUID().toString(), "user1", "user2", null, null);
+        file.setFileLink("/files/" + "a".repeat(64));
+        file.setFileName("report.pdf");
+        Message oldFile = message(null, "user1", null, null, LocalDateTime.of(1969, 12, 31, 23, 59, 59));
+        oldFile.setFileLink("1700000000000_old.txt");
+        text.setSeq(41);
+        reply.setSeq(42);
+        file.setSeq(40); // Retention can leave gaps, and merged archives go back in seq
+        List<Message> messages = List.of(text, reply, file, oldFile);
+        Path snapshot = tempDir.resolve("messages.bin");
+
+        BinarySnapshot.writeMessages(snapshot, messages);
+        List<Message> read = new ArrayList<>();
+        int count = BinarySnapshot.readMessages(snapshot, read::add);
+
+        assertEquals(4, count);
+        assertEquals(messages, read);
+    }
+
+    @Test
+    void messages_BlobLinksPackedAsHashBytes() throws IOException {
+        List<Message> blobLinks = new ArrayList<>();
+        List<Message> plainLinks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String hash = String.format("%064x", i);
+            Message blob = message(UUID.randomUUID().toString(), "user1", "user2", "[FILE]", LocalDateTime.of(2024, 1, 1, 0, 0));
+            blob.setFileLink("/files/" + hash);
+            blobLinks.add(blob);
+            Message plain = message(blob.getId(), "user1", "user2", "[FILE]", blob.getTimestamp());
+            plain.setFileLink("/other/" + hash); // Same length, not a blob link
+            plainLinks.add(plain);
+        }
+        Path packed = tempDir.resolve("packed.bin");
+        Path strings = tempDir.resolve("strings.bin");
+
+        BinarySnapshot.writeMessages(packed, blobLinks);
+        BinarySnapshot.writeMessages(strings, plainLinks);
+        List<Message> read = new ArrayList<>();
+        BinarySnapshot.readMessages(packed, read::add);
+
+        assertEquals(blobLinks, read);
+        // 32 bytes per link instead of about 72
+        assertTrue(Files.size(packed) + 100 * 30 < Files.size(strings), Files.size(packed) + " vs " + Files.size(strings));
+    }
+
+    @Test
+    void users_RoundTripWithSharedNames() throws IOException {
+        User user1 = new User();
+        user1.setUsername("user1");
+        user1.setPasswordHash("e10adc3949ba59abbe56e057f20f883e");
+        user1.setFriends(List.of("user2", "user3"));
+        user1.setAccessToken(UUID.randomUUID().toString());
+        user1.setAccessTokenExpiry(LocalDateTime.now().plusDays(1));
+        User user2 = new User();
+        user2.setUsername("user2");
+        user2.setFriends(List.of("user1"));
+        user2.setAccessToken("not-a-uuid");
+        Path snapshot = tempDir.resolve("users.bin");
+
+        BinarySnapshot.writeUsers(snapshot, List.of(user1, user2));
+        List<User> read = new ArrayList<>();
+        BinarySnapshot.readUsers(snapshot, read::add);
+
+        assertEquals(List.of(user1, user2), read);
+    }
+
+    @Test
+    void read_TruncatedOrWrongKind_Fails() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(message(UUID.randomUUID().toString(), "user1", "user2", "message " + i, LocalDateTime.now()));
+        }
+        Path snapshot = tempDir.resolve("messages.bin");
+        BinarySnapshot.writeMessages(snapshot, messages);
+
+        assertThrows(IOException.class, () -> BinarySnapshot.readUsers(snapshot, user -> { }));
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        IOException e = assertThrows(IOException.class, () -> BinarySnapshot.readMessages(snapshot, message -> { }));
+        assertTrue(e.getMessage().contains("truncated"));
+    }
+
+    @Test
+    void messageRepository_BinaryMode_ImportsJsonOnceThenUsesSnapshot() throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, """
+                [{"id":"m1","sender":"user1","receiver":"user2","content":"hi","timestamp":"2024-05-01T12:00:00","read":false}]
+                """);
+
+        MessageRepository repository = binaryRepository(messagesFile);
+        repository.save(message("m2", "user2", "user1", "hello", LocalDateTime.now()));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+        assertTrue(Files.exists(tempDir.resolve("messages.bin")));
+        // The JSON file is left as imported
+        Files.writeString(messagesFile, "[]");
+
+        MessageRepository reloaded = binaryRepository(messagesFile);
+
+        assertEquals(List.of("m1", "m2"), reloaded.findAll().stream().map(Message::getId).toList());
+        assertEquals(1, reloaded.findUnreadMessagesForUser("user2").size());
+        ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+    }
+
+    private MessageRepository binaryRepository(Path messagesFile) {
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", "binary");
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.simplechat.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<String> deleted = new ArrayList<>();
+
+    private BlobStore store() throws IOException {
+        return new BlobStore(tempDir.resolve("storage"), deleted::add);
+    }
+
+    @Test
+    void storeFile_DuplicateContent_KeepsOneBlobAndDropsTheCopy() throws IOException {
+        BlobStore store = store();
+        Path first = Files.writeString(tempDir.resolve("a.part"), "hello");
+        Path second = Files.writeString(tempDir.resolve("b.part"), "hello");
+
+        String blobA = store.storeFile(first);
+        String blobB = store.storeFile(second);
+
+        assertEquals(blobA, blobB);
+        assertTrue(BlobStore.isBlobName(blobA));
+        assertEquals("hello", Files.readString(store.path(blobA)));
+        assertFalse(Files.exists(first));
+        assertFalse(Files.exists(second));
+        assertEquals(2, store.getRefCount(blobA));
+    }
+
+    @Test
+    void store_DuplicateContent_OnlyHashed_AndLeavesNoTempFiles() throws IOException {
+        BlobStore store = store();
+        int[] reads = {0};
+        InputStreamSource source = () -> {
+            reads[0]++;
+            return new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8));
+        };
+
+        // New content: hashed, then copied
+        String blob = store.store(source);
+        assertEquals(2, reads[0]);
+        // Already stored: hashed only, nothing written
+        assertEquals(blob, store.store(source));
+        assertEquals(3, reads[0]);
+
+        assertEquals("hello", Files.readString(store.path(blob)));
+        assertEquals(2, store.getRefCount(blob));
+        try (Stream<Path> files = Files.list(store.getRoot())) {
+            assertEquals(List.of(store.path(blob)), files.toList());
+        }
+    }
+
+    @Test
+    void resetRefCounts_ThenCollectGarbage_DeletesOnlyUnreferencedBlobs() throws IOException {
+        BlobStore store = store();
+        String kept = store.store(new ByteArrayResource("kept".getBytes(StandardCharsets.UTF_8)));
+        String orphan = store.store(new ByteArrayResource("orphan".getBytes(StandardCharsets.UTF_8)));
+        Files.writeString(store.getRoot().resolve("legacy_file.txt"), "not a blob");
+
+        // After a restart only the messages' links count
+        store.resetRefCounts(List.of(kept, "legacy_file.txt"));
+        int collected = store.collectGarbage();
+
+        assertEquals(1, collected);
+        assertTrue(Files.exists(store.path(kept)));
+        assertFalse(Files.exists(store.path(orphan)));
+        assertTrue(Files.exists(store.getRoot().resolve("legacy_file.txt")));
+        assertEquals(List.of(orphan), deleted);
+    }
+}
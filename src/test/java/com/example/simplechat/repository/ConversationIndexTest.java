@@ -0,0 +1,77 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationIndexTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    private final List<Message> messages = new ArrayList<>();
+    private final ConversationIndex index = new ConversationIndex(messages::get);
+
+    private Message add(String id, String sender, String receiver, LocalDateTime timestamp) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setTimestamp(timestamp);
+        messages.add(message);
+        index.add(sender, receiver, timestamp, id, messages.size() - 1);
+        return message;
+    }
+
+    @Test
+    void page_WalksBackThroughConversation_InBothDirectionsOfThePair() {
+        List<Message> conversation = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            boolean fromUser1 = i % 2 == 0;
+            conversation.add(add("m" + i, fromUser1 ? "user1" : "user2", fromUser1 ? "user2" : "user1", START.plusSeconds(i)));
+            add("other" + i, "user1", "user3", START.plusSeconds(i));
+        }
+
+        List<Message> newest = index.page("user2", "user1", null, 10);
+        List<Message> middle = index.page("user1", "user2", ConversationCursor.of(newest.get(0)), 10);
+        List<Message> oldest = index.page("user1", "user2", ConversationCursor.of(middle.get(0)), 10);
+
+        assertEquals(conversation.subList(15, 25), newest);
+        assertEquals(conversation.subList(5, 15), middle);
+        assertEquals(conversation.subList(0, 5), oldest);
+        assertTrue(index.page("user1", "user2", ConversationCursor.of(oldest.get(0)), 10).isEmpty());
+        assertTrue(index.page("user2", "user3", null, 10).isEmpty());
+    }
+
+    @Test
+    void add_OutOfOrderAndEqualTimestamps_KeepsTimestampThenIdOrder() {
+        Message b = add("b", "user1", "user2", START.plusSeconds(2));
+        Message c = add("c", "user2", "user1", START.plusSeconds(2));
+        Message late = add("late", "user1", "user2", START.plusSeconds(1)); // saved after newer ones
+        Message a = add("a", "user2", "user1", START.plusSeconds(2));
+
+        assertEquals(List.of(late, a, b, c), index.page("user1", "user2", null, 10));
+        assertEquals(List.of(late, a), index.page("user1", "user2", ConversationCursor.of(b), 10));
+    }
+
+    @Test
+    void cursor_StaysValidWhenNewerMessagesArrive() {
+        for (int i = 0; i < 10; i++) {
+            add("m" + i, "user1", "user2", START.plusSeconds(i));
+        }
+        List<Message> first = index.page("user1", "user2", null, 4);
+        String cursor = ConversationCursor.of(first.get(0)).encode();
+
+        for (int i = 10; i < 20; i++) {
+            add("m" + i, "user2", "user1", START.plusSeconds(i));
+        }
+
+        List<Message> next = index.page("user1", "user2", ConversationCursor.decode(cursor), 4);
+        assertEquals(messages.subList(2, 6), next);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryCursorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(String id, String receiver) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender("user1");
+        message.setReceiver(receiver);
+        message.setContent("content " + id);
+        message.setTimestamp(LocalDateTime.now());
+        return message;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "log", "binary", "segments"})
+    void acknowledge_HidesMessagesUpToCursor_AndSurvivesRestart(String mode) throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, "[]");
+        MessageRepository repository = repository(messagesFile, mode);
+        List<Message> toUser2 = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = message("m" + i, "user2");
+            repository.save(message);
+            toUser2.add(message);
+            repository.save(message("other" + i, "user3"));
+        }
+        for (int i = 1; i < toUser2.size(); i++) {
+            assertTrue(toUser2.get(i).getSeq() > toUser2.get(i - 1).getSeq());
+        }
+
+        long cursor = toUser2.get(2).getSeq();
+        assertEquals(3, repository.acknowledge("user2", cursor));
+        // Cursors only move forward
+        assertEquals(0, repository.acknowledge("user2", toUser2.get(0).getSeq()));
+        assertEquals(cursor, repository.getDeliveryCursor("user2"));
+        assertEquals(List.of("m3", "m4"), ids(repository.findUnreadMessagesForUser("user2")));
+        assertEquals(5, repository.findUnreadMessagesForUser("user3").size());
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+
+        MessageRepository reloaded = repository(messagesFile, mode);
+        assertEquals(cursor, reloaded.getDeliveryCursor("user2"));
+        assertEquals(List.of("m3", "m4"), ids(reloaded.findUnreadMessagesForUser("user2")));
+        assertEquals(3, reloaded.findAll().stream().filter(Message::isRead).count());
+        // New messages come after everything acknowledged, and a cursor can't run ahead of them
+        Message next = message("m5", "user2");
+        reloaded.save(next);
+        assertTrue(next.getSeq() > toUser2.get(4).getSeq());
+        assertEquals(3, reloaded.acknowledge("user2", Long.MAX_VALUE));
+        assertEquals(next.getSeq(), reloaded.getDeliveryCursor("user2"));
+        assertTrue(reloaded.findUnreadMessagesForUser("user2").isEmpty());
+        ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "log"})
+    void load_MessagesWithoutSeq_AreNumberedInOrder_AndKeepTheirNumbers(String mode) throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, """
+                [{"id":"a","sender":"user1","receiver":"user2","content":"hi","timestamp":"2024-05-01T12:00:00","read":true},
+                 {"id":"b","sender":"user1","receiver":"user2","content":"hi","timestamp":"2024-05-01T12:00:01","read":false}]
+                """);
+        MessageRepository repository = repository(messagesFile, mode);
+        assertEquals(List.of(1L, 2L), repository.findAll().stream().map(Message::getSeq).toList());
+        assertEquals(List.of("b"), ids(repository.findUnreadMessagesForUser("user2")));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+
+        MessageRepository reloaded = repository(messagesFile, mode);
+        assertEquals(List.of(1L, 2L), reloaded.findAll().stream().map(Message::getSeq).toList());
+        ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        return messages.stream().map(Message::getId).toList();
+    }
+
+    private MessageRepository repository(Path messagesFile, String mode) {
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", mode);
+        ReflectionTestUtils.setField(repository, "segmentSize", 1024);
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+}
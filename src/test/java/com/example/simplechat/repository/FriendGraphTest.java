@@ -0,0 +1,120 @@
+package com.example.simplechat.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FriendGraphTest {
+
+    // Interns u0..u(count-1) as ids 0..count-1, without giving anyone a friend
+    private static FriendGraph graphWithUsers(int count) {
+        FriendGraph graph = new FriendGraph();
+        for (int i = 0; i < count; i++) {
+            graph.setFriends("u" + i, List.of());
+        }
+        return graph;
+    }
+
+    @Test
+    void removeFriend_InTheMiddleOfAProbeChain_LaterMembersStillFound() {
+        // In a set of 4 slots, ids 3 and 4 both hash to slot 1 and id 1 to slot 2, so 4 probes
+        // past both and sits at the end of the chain 3, 1, 4
+        FriendGraph graph = graphWithUsers(5);
+        graph.addFriend("u0", "u3");
+        graph.addFriend("u0", "u1");
+        graph.addFriend("u0", "u4");
+
+        assertTrue(graph.removeFriend("u0", "u1"));
+        assertTrue(graph.hasFriend("u0", "u3"));
+        assertTrue(graph.hasFriend("u0", "u4"));
+        assertFalse(graph.hasFriend("u0", "u1"));
+
+        assertTrue(graph.removeFriend("u0", "u3"));
+        assertTrue(graph.hasFriend("u0", "u4"));
+        assertFalse(graph.removeFriend("u0", "u3"));
+        assertEquals(List.of("u4"), graph.getFriends("u0"));
+        assertEquals(1, graph.getEdgeCount());
+    }
+
+    @Test
+    void addFriend_CollidingIds_AllKeptOnceEach() {
+        FriendGraph graph = graphWithUsers(5);
+
+        assertTrue(graph.addFriend("u0", "u3"));
+        assertTrue(graph.addFriend("u0", "u4")); // Same home slot as u3
+        assertFalse(graph.addFriend("u0", "u4"));
+
+        assertTrue(graph.hasFriend("u0", "u3"));
+        assertTrue(graph.hasFriend("u0", "u4"));
+        assertFalse(graph.hasFriend("u0", "u1"));
+        assertEquals(List.of("u3", "u4"), graph.getFriends("u0"));
+        assertEquals(2, graph.getEdgeCount());
+    }
+
+    @Test
+    void addFriend_GrowingPastResizeThreshold_KeepsEveryMember() {
+        int count = 1_000;
+        FriendGraph graph = new FriendGraph();
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            assertTrue(graph.addFriend("owner", "u" + i));
+            expected.add("u" + i);
+        }
+
+        for (int i = 1; i <= count; i++) {
+            assertTrue(graph.hasFriend("owner", "u" + i), "u" + i);
+            assertEquals(List.of("owner"), graph.getFollowers("u" + i));
+        }
+        assertFalse(graph.hasFriend("owner", "u0"));
+        assertEquals(expected, graph.getFriends("owner")); // In the order they were first seen
+        assertEquals(count, graph.getEdgeCount());
+    }
+
+    @Test
+    void addAndRemove_RandomSequence_MatchesAHashSet() {
+        FriendGraph graph = graphWithUsers(200);
+        Set<Integer> model = new HashSet<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20_000; step++) {
+            int id = 1 + random.nextInt(199);
+            if (random.nextBoolean()) {
+                assertEquals(model.add(id), graph.addFriend("u0", "u" + id));
+            } else {
+                assertEquals(model.remove(id), graph.removeFriend("u0", "u" + id));
+            }
+        }
+        for (int id = 1; id < 200; id++) {
+            assertEquals(model.contains(id), graph.hasFriend("u0", "u" + id), "u" + id);
+        }
+        assertEquals(model.size(), graph.getEdgeCount());
+    }
+
+    @Test
+    void setFriends_ReplacingTheList_KeepsFollowersSymmetric() {
+        FriendGraph graph = new FriendGraph();
+        graph.setFriends("alice", List.of("bob", "carol", "dave"));
+        graph.setFriends("erin", List.of("carol"));
+
+        graph.setFriends("alice", List.of("carol", "frank"));
+
+        assertEquals(List.of("carol", "frank"), graph.getFriends("alice"));
+        assertEquals(List.of(), graph.getFollowers("bob"));
+        assertEquals(List.of(), graph.getFollowers("dave"));
+        assertEquals(List.of("alice", "erin"), graph.getFollowers("carol"));
+        assertEquals(List.of("alice"), graph.getFollowers("frank"));
+        assertFalse(graph.hasFriend("alice", "bob"));
+        assertFalse(graph.hasFriend("bob", "alice")); // Edges are directed
+        assertEquals(3, graph.getEdgeCount());
+
+        graph.setFriends("alice", null);
+        assertEquals(List.of(), graph.getFriends("alice"));
+        assertEquals(List.of("erin"), graph.getFollowers("carol"));
+        assertEquals(1, graph.getEdgeCount());
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.simplechat.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitterTest {
+
+    @Test
+    void submit_ConcurrentCallers_SharesWritesAndKeepsEveryMutation() throws Exception {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstWrite = new CountDownLatch(1);
+        CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test-commit", batch -> {
+            firstWrite.countDown();
+            try {
+                // Hold the first write so the other submits pile up behind it
+                releaseFirstWrite.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.addAll(batch);
+        }, 64, 5);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(committer.submit(0));
+        assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<CompletableFuture<Void>>> submits = new ArrayList<>();
+            for (int i = 1; i < 100; i++) {
+                int n = i;
+                submits.add(CompletableFuture.supplyAsync(() -> committer.submit(n), executor));
+            }
+            submits.forEach(s -> futures.add(s.join()));
+        }
+        releaseFirstWrite.countDown();
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        committer.close();
+
+        assertEquals(100, written.size());
+        assertEquals(100, committer.getMutationCount());
+        assertTrue(committer.getBatchCount() < 100, "batches: " + committer.getBatchCount());
+        assertTrue(committer.getLargestBatchSize() > 1);
+        assertTrue(committer.getLargestBatchSize() <= 64);
+    }
+
+    @Test
+    void submit_LoneCaller_DoesNotWaitForTheWindow() throws Exception {
+        GroupCommitter<String> committer = new GroupCommitter<>("test-commit", batch -> { }, 16, 60_000);
+
+        long start = System.nanoTime();
+        committer.submit("m1").get(5, TimeUnit.SECONDS);
+        committer.submit("m2").get(5, TimeUnit.SECONDS);
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, committer.getBatchCount());
+        committer.close();
+    }
+
+    @Test
+    void submit_WriteFails_CompletesFutureExceptionally() {
+        GroupCommitter<String> committer = new GroupCommitter<>("test-commit", batch -> {
+            throw new IOException("disk full");
+        }, 16, 1);
+
+        CompletableFuture<Void> future = committer.submit("m1");
+
+        CompletionException e = assertThrows(CompletionException.class, future::join);
+        assertEquals("disk full", e.getCause().getMessage());
+        committer.close();
+    }
+
+    @Test
+    void submit_AfterClose_FailsImmediately() {
+        GroupCommitter<String> committer = new GroupCommitter<>("test-commit", batch -> { }, 16, 1);
+        committer.close();
+
+        assertTrue(committer.submit("m1").isCompletedExceptionally());
+    }
+
+    @Test
+    void submit_ListenerThrows_WriterKeepsGoing() throws Exception {
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test-commit", written::addAll, 64, 5);
+        committer.setBatchSizeListener(size -> {
+            throw new IllegalStateException("listener broke");
+        });
+
+        committer.submit(1).get(5, TimeUnit.SECONDS);
+        committer.submit(2).get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(1, 2), written);
+        committer.close();
+    }
+
+    @Test
+    void submit_RacingClose_EveryFutureCompletes() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            GroupCommitter<Integer> committer = new GroupCommitter<>("test-commit", batch -> { }, 64, 1);
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int t = 0; t < 4; t++) {
+                    executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 200; i++) {
+                            futures.add(committer.submit(i));
+                        }
+                        return null;
+                    });
+                }
+                start.countDown();
+                committer.close();
+            }
+            for (CompletableFuture<Void> future : futures) {
+                // Written, or failed because the committer was closed; never left hanging
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertInstanceOf(IOException.class, e.getCause());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.simplechat.repository;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+
+    @Test
+    void partitionOf_AddingPartition_MovesOnlyKeysToNewPartition() {
+        HashRing four = new HashRing(4);
+        HashRing five = new HashRing(5);
+        int keys = 10_000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "user" + i;
+            int before = four.partitionOf(key);
+            int after = five.partitionOf(key);
+            if (before != after) {
+                assertEquals(4, after, key);
+                moved++;
+            }
+        }
+        // About 1/5 of the keys
+        assertTrue(moved > keys / 7 && moved < keys / 4, "moved " + moved);
+    }
+
+    @Test
+    void partitionOf_SpreadsKeysEvenly() {
+        HashRing ring = new HashRing(6);
+        int keys = 12_000;
+        int[] counts = new int[6];
+        for (int i = 0; i < keys; i++) {
+            counts[ring.partitionOf("user" + i)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > keys / 6 * 0.7 && count < keys / 6 * 1.3, "partition size " + count);
+        }
+        assertEquals(0, new HashRing(1).partitionOf("anyone"));
+    }
+}
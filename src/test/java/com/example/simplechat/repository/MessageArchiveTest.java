@@ -0,0 +1,115 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageArchiveTest {
+
+    private static final LocalDateTime OLD = LocalDateTime.now().minusDays(30);
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(String id, String sender, String receiver, LocalDateTime timestamp, boolean read) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setContent("content " + id);
+        message.setTimestamp(timestamp);
+        message.setRead(read);
+        return message;
+    }
+
+    @Test
+    void add_KeepsConversationOrder_AndSkipsMessagesAlreadyArchived() throws IOException {
+        MessageArchive archive = new MessageArchive(tempDir);
+        Message m1 = message("m1", "user1", "user2", OLD.plusSeconds(1), true);
+        Message m2 = message("m2", "user2", "user1", OLD.plusSeconds(2), true);
+        Message m3 = message("m3", "user1", "user2", OLD.plusSeconds(3), true);
+        archive.add(List.of(m3, m1));
+        archive.add(List.of(m2, m1, message("x", "user1", "user3", OLD, true)));
+
+        MessageArchive reopened = new MessageArchive(tempDir);
+        assertEquals(List.of(m1, m2, m3), reopened.page("user2", "user1", null, 10));
+        assertEquals(List.of(m1), reopened.page("user1", "user2", ConversationCursor.of(m2), 10));
+        assertTrue(reopened.page("user2", "user3", null, 10).isEmpty());
+        List<Message> all = new ArrayList<>();
+        reopened.forEach(all::add);
+        assertEquals(4, all.size());
+    }
+
+    @Test
+    void compact_JsonMode_ArchivesOldReadMessages_AndHistoryStillReturnsThem() throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, "[]");
+        MessageRepository repository = repository(messagesFile, "json");
+        ReflectionTestUtils.setField(repository, "retentionReadMaxAgeDays", 7);
+
+        List<Message> conversation = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // Old and read, except one old message that was never delivered
+            Message message = message("old" + i, "user1", "user2", OLD.plusSeconds(i), i != 2);
+            conversation.add(message);
+            repository.save(message);
+        }
+        Message recent = message("new", "user2", "user1", LocalDateTime.now(), true);
+        conversation.add(recent);
+        repository.save(recent);
+
+        assertEquals(5, repository.compact(m -> fail("archived messages are not deleted")));
+        assertEquals(List.of("old2", "new"), repository.findAll().stream().map(Message::getId).toList());
+        assertEquals(conversation, repository.findConversationPage("user1", "user2", null, 10));
+        assertEquals(conversation.subList(1, 4), repository.findConversationPage("user1", "user2", ConversationCursor.of(conversation.get(4)), 3));
+        assertEquals(0, repository.compact(m -> fail("nothing left to retire")));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+
+        MessageRepository reloaded = repository(messagesFile, "json");
+        assertEquals(2, reloaded.findAll().size());
+        assertEquals(conversation, reloaded.findConversationPage("user2", "user1", null, 10));
+        ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+    }
+
+    @Test
+    void compact_LogMode_CapsConversations_AndReplaysDeletes() {
+        Path messagesFile = tempDir.resolve("messages.json");
+        MessageRepository repository = repository(messagesFile, "log");
+        ReflectionTestUtils.setField(repository, "retentionMaxPerConversation", 3);
+        ReflectionTestUtils.setField(repository, "retentionArchive", false);
+
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 5; i++) {
+            repository.save(message("a" + i, "user1", "user2", now.plusSeconds(i), true));
+            repository.save(message("b" + i, "user1", "user3", now.plusSeconds(i), true));
+        }
+        List<String> deleted = new ArrayList<>();
+        assertEquals(4, repository.compact(m -> deleted.add(m.getId())));
+        assertEquals(List.of("a0", "b0", "a1", "b1"), deleted);
+        // The messages.log replay applies the DELETE record
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        assertEquals(List.of("a2", "a3", "a4"), repository.findConversationPage("user1", "user2", null, 10).stream().map(Message::getId).toList());
+        assertEquals(6, repository.findAll().size());
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+    }
+
+    private MessageRepository repository(Path messagesFile, String mode) {
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", mode);
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+}
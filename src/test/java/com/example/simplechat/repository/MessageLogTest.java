@@ -0,0 +1,89 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(String id) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender("sender");
+        message.setReceiver("receiver");
+        message.setContent("Hello " + id);
+        message.setTimestamp(LocalDateTime.now());
+        return message;
+    }
+
+    @Test
+    void append_ThenReplay_ReturnsEntriesInOrder() throws IOException {
+        Path file = tempDir.resolve("messages.log");
+        try (MessageLog log = new MessageLog(file.toFile(), MessageLog.FsyncPolicy.ALWAYS, 1000)) {
+            assertTrue(log.isEmpty());
+            log.append(MessageLogEntry.save(message("m1")));
+            log.append(MessageLogEntry.save(message("m2")));
+            log.append(MessageLogEntry.read(List.of("m1")));
+        }
+
+        List<MessageLogEntry> replayed = new ArrayList<>();
+        try (MessageLog log = new MessageLog(file.toFile(), MessageLog.FsyncPolicy.NEVER, 1000)) {
+            log.replay(replayed::add);
+        }
+
+        assertEquals(3, replayed.size());
+        assertEquals("m1", replayed.get(0).getMessage().getId());
+        assertEquals("m2", replayed.get(1).getMessage().getId());
+        assertEquals(MessageLogEntry.Type.READ, replayed.get(2).getType());
+        assertEquals(List.of("m1"), replayed.get(2).getIds());
+    }
+
+    @Test
+    void replay_TornLastLine_IsSkipped() throws IOException {
+        Path file = tempDir.resolve("messages.log");
+        try (MessageLog log = new MessageLog(file.toFile(), MessageLog.FsyncPolicy.ALWAYS, 1000)) {
+            log.append(MessageLogEntry.save(message("m1")));
+        }
+        Files.write(file, "{\"type\":\"SAVE\",\"mess".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<MessageLogEntry> replayed = new ArrayList<>();
+        try (MessageLog log = new MessageLog(file.toFile(), MessageLog.FsyncPolicy.ALWAYS, 1000)) {
+            log.replay(replayed::add);
+        }
+
+        assertEquals(1, replayed.size());
+        assertEquals("m1", replayed.get(0).getMessage().getId());
+    }
+
+    @Test
+    void rewrite_ReplacesContents() throws IOException {
+        Path file = tempDir.resolve("messages.log");
+        try (MessageLog log = new MessageLog(file.toFile(), MessageLog.FsyncPolicy.ALWAYS, 1000)) {
+            log.append(MessageLogEntry.save(message("m1")));
+            log.append(MessageLogEntry.read(List.of("m1")));
+
+            log.rewrite(List.of(MessageLogEntry.save(message("m2"))));
+            log.append(MessageLogEntry.save(message("m3")));
+
+            List<MessageLogEntry> replayed = new ArrayList<>();
+            log.replay(replayed::add);
+            assertEquals(2, replayed.size());
+            assertEquals("m2", replayed.get(0).getMessage().getId());
+            assertEquals("m3", replayed.get(1).getMessage().getId());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessagePartitionTest {
+
+    private static final int USERS = 40;
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(String id, String sender, String receiver, int minute) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setContent("content " + id);
+        message.setTimestamp(LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(minute));
+        return message;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "log", "binary", "segments"})
+    void load_PartitionCountChanges_MovesMessagesWithoutLosingAny(String mode) throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, "[]");
+        MessageRepository repository = repository(messagesFile, mode, 1);
+        int minute = 0;
+        for (int u = 0; u < USERS; u++) {
+            for (int i = 0; i < 3; i++) {
+                repository.save(message("u" + u + "-" + i, "sender", "user" + u, minute++));
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            repository.save(message("c" + i, i % 2 == 0 ? "user1" : "user2", i % 2 == 0 ? "user2" : "user1", minute++));
+        }
+        // Everyone below user10 has read their first message
+        for (int u = 0; u < 10; u++) {
+            String username = "user" + u;
+            repository.acknowledge(username, repository.findUnreadMessagesForUser(username).get(0).getSeq());
+        }
+        Map<String, List<String>> unread = unread(repository);
+        Set<String> all = ids(repository.findAll()).stream().collect(Collectors.toSet());
+        List<String> conversation = ids(repository.findConversationPage("user1", "user2", null, 20));
+        assertEquals(6, conversation.size());
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+
+        for (int count : new int[]{4, 6, 1}) {
+            repository = repository(messagesFile, mode, count);
+            assertEquals(unread, unread(repository), "unread after going to " + count);
+            assertEquals(all, ids(repository.findAll()).stream().collect(Collectors.toSet()));
+            assertEquals(conversation, ids(repository.findConversationPage("user2", "user1", null, 20)));
+            Path partitionsDir = tempDir.resolve("messages-partitions");
+            if (count > 1) {
+                assertTrue(Files.exists(partitionsDir.resolve("layout.json")));
+                HashRing ring = new HashRing(count);
+                List<?> partitions = (List<?>) ReflectionTestUtils.getField(repository, "partitions");
+                assertEquals(count, partitions.size());
+                for (int i = 0; i < count; i++) {
+                    for (Message message : ((MessageRepository) partitions.get(i)).findAll()) {
+                        assertEquals(i, ring.partitionOf(message.getReceiver()), message.getId());
+                    }
+                }
+                assertFalse(Files.exists(partitionsDir.resolve(String.valueOf(count))));
+            } else {
+                assertFalse(Files.exists(partitionsDir));
+            }
+            ReflectionTestUtils.invokeMethod(repository, "shutdown");
+        }
+
+        // Acknowledgements still work on the moved messages, and survive a restart
+        repository = repository(messagesFile, mode, 4);
+        List<Message> pending = repository.findUnreadMessagesForUser("user20");
+        assertEquals(2, repository.acknowledge("user20", pending.get(1).getSeq()));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+        repository = repository(messagesFile, mode, 4);
+        assertEquals(List.of("u20-2"), ids(repository.findUnreadMessagesForUser("user20")));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+    }
+
+    private Map<String, List<String>> unread(MessageRepository repository) {
+        Map<String, List<String>> unread = new HashMap<>();
+        for (int u = 0; u < USERS; u++) {
+            unread.put("user" + u, ids(repository.findUnreadMessagesForUser("user" + u)));
+        }
+        return unread;
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        return messages.stream().map(Message::getId).toList();
+    }
+
+    private MessageRepository repository(Path messagesFile, String mode, int partitions) {
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", mode);
+        ReflectionTestUtils.setField(repository, "segmentSize", 1024 * 1024);
+        ReflectionTestUtils.setField(repository, "partitionCount", partitions);
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageSegmentStoreTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private Message message(int i) {
+        Message message = new Message();
+        message.setId(i % 2 == 0 ? UUID.randomUUID().toString() : "id-" + i);
+        message.setSender("user1");
+        message.setReceiver(i % 3 == 0 ? "user2" : "user3");
+        message.setContent("message " + i);
+        message.setTimestamp(LocalDateTime.now().withNano(i));
+        return message;
+    }
+
+    @Test
+    void append_AcrossSegments_ReopensWithSameMessagesAndUnreadIndex() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        // One mapped segment at a time, so reads of older segments have to map them again
+        try (MessageSegmentStore store = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 1)) {
+            for (int i = 0; i < 100; i++) {
+                Message message = message(i);
+                messages.add(message);
+                store.append(message);
+            }
+            assertTrue(store.getSegmentCount() > 1);
+            assertEquals(messages, store.findAll());
+        }
+
+        try (MessageSegmentStore reopened = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 1)) {
+            assertEquals(100, reopened.size());
+            assertEquals(messages, reopened.findAll());
+            assertEquals(messages.stream().filter(m -> m.getReceiver().equals("user2")).toList(), reopened.findUnread("user2"));
+            List<Message> toUser3 = messages.stream().filter(m -> m.getReceiver().equals("user3")).toList();
+            assertEquals(toUser3.subList(toUser3.size() - 5, toUser3.size()), reopened.findConversation("user3", "user1", null, 5));
+        }
+    }
+
+    @Test
+    void markRead_FlipsFlagInPlace_AndSurvivesReopen() throws IOException {
+        List<Message> unread;
+        try (MessageSegmentStore store = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            for (int i = 0; i < 30; i++) {
+                store.append(message(i));
+            }
+            unread = store.findUnread("user2");
+            store.markRead(unread.subList(0, 4));
+            assertTrue(unread.subList(0, 4).stream().allMatch(Message::isRead));
+            assertEquals(unread.subList(4, unread.size()), store.findUnread("user2"));
+            assertTrue(store.force() > 0);
+        }
+
+        try (MessageSegmentStore reopened = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            assertEquals(unread.size() - 4, reopened.findUnread("user2").size());
+            assertEquals(4, reopened.findAll().stream().filter(Message::isRead).count());
+        }
+    }
+
+    @Test
+    void tornLastRecord_IsDiscarded_AndAppendsContinueThere() throws IOException {
+        try (MessageSegmentStore store = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            store.append(message(0));
+            store.append(message(1));
+        }
+        // Flip a byte in the second record's body, as if the crash hit before all of it reached the disk
+        Path segment = tempDir.resolve("00000000.segment");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            long second = 9 + length.flip().getInt();
+            channel.write(ByteBuffer.wrap(new byte[]{42}), second + 20);
+        }
+
+        try (MessageSegmentStore reopened = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            assertEquals(1, reopened.size());
+            reopened.append(message(2));
+        }
+        try (MessageSegmentStore reopened = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            assertEquals(List.of("message 0", "message 2"), reopened.findAll().stream().map(Message::getContent).toList());
+        }
+    }
+
+    @Test
+    void retire_DeletesFullyReadOldSegments_AndStopsAtTheFirstWithAnUnreadMessage() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        int retired;
+        try (MessageSegmentStore store = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            for (int i = 0; i < 100; i++) {
+                Message message = message(i);
+                message.setTimestamp(LocalDateTime.now().minusDays(10).plusSeconds(i));
+                message.setRead(i != 60);
+                messages.add(message);
+                store.append(message);
+            }
+            int segments = store.getSegmentCount();
+
+            List<Message> retirable = store.findRetirable(LocalDateTime.now().minusDays(1), 0);
+            assertFalse(retirable.isEmpty());
+            assertTrue(retirable.size() <= 60);
+            assertEquals(messages.subList(0, retirable.size()), retirable);
+            retired = retirable.size();
+            store.retire(retired);
+
+            assertTrue(store.getSegmentCount() < segments);
+            assertFalse(Files.exists(tempDir.resolve("00000000.segment")));
+            assertEquals(messages.subList(retirable.size(), 100), store.findAll());
+            List<Message> toUser3 = messages.subList(retirable.size(), 100).stream().filter(m -> m.getReceiver().equals("user3")).toList();
+            assertEquals(toUser3, store.findConversation("user1", "user3", null, 100));
+            store.append(message(100));
+        }
+
+        try (MessageSegmentStore reopened = new MessageSegmentStore(tempDir, SEGMENT_SIZE, 2)) {
+            assertEquals(messages.get(60), reopened.findUnread("user2").get(0));
+            assertEquals(101 - retired, reopened.size());
+        }
+    }
+
+    @Test
+    void messageRepository_SegmentMode_ImportsJsonAndKeepsReadState() throws IOException {
+        Path messagesFile = tempDir.resolve("messages.json");
+        Files.writeString(messagesFile, """
+                [{"id":"m1","sender":"user1","receiver":"user2","content":"hi","timestamp":"2024-05-01T12:00:00","read":false}]
+                """);
+
+        MessageRepository repository = segmentRepository(messagesFile);
+        repository.save(message(3));
+        repository.markMessagesAsRead(repository.findUnreadMessagesForUser("user2"));
+        ReflectionTestUtils.invokeMethod(repository, "shutdown");
+
+        MessageRepository reloaded = segmentRepository(messagesFile);
+        assertEquals(2, reloaded.findAll().size());
+        assertTrue(reloaded.findUnreadMessagesForUser("user2").isEmpty());
+        ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+    }
+
+    private MessageRepository segmentRepository(Path messagesFile) {
+        MessageRepository repository = new MessageRepository();
+        ReflectionTestUtils.setField(repository, "persistenceMode", "segments");
+        ReflectionTestUtils.setField(repository, "segmentSize", SEGMENT_SIZE);
+        ReflectionTestUtils.setField(repository, "messagesFile", messagesFile.toFile());
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.User;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private UserRepository userRepository;
+
+    @BeforeEach
+    void setUp() {
+        userRepository = new UserRepository();
+        ReflectionTestUtils.setField(userRepository, "usersFile", tempDir.resolve("users.json").toFile());
+        ReflectionTestUtils.invokeMethod(userRepository, "load");
+    }
+
+    private User user(String username, String token) {
+        User user = new User();
+        user.setUsername(username);
+        user.setPasswordHash("hash");
+        user.setFriends(List.of());
+        user.setAccessToken(token);
+        user.setAccessTokenExpiry(LocalDateTime.now().plusHours(1));
+        return user;
+    }
+
+    @Test
+    void save_NewUser_IndexedByUsernameAndToken() {
+        User user = user("testuser", "token-1");
+
+        userRepository.save(user);
+
+        assertSame(user, userRepository.findByUsername("testuser").orElseThrow());
+        assertSame(user, userRepository.findByAccessToken("token-1").orElseThrow());
+        assertEquals(1, userRepository.findAll().size());
+    }
+
+    @Test
+    void save_RotatedToken_OldTokenNoLongerResolves() {
+        User user = user("testuser", "token-1");
+        userRepository.save(user);
+
+        user.setAccessToken("token-2");
+        // Not saved yet: the old token must already stop matching
+        assertTrue(userRepository.findByAccessToken("token-1").isEmpty());
+
+        userRepository.save(user);
+
+        assertTrue(userRepository.findByAccessToken("token-1").isEmpty());
+        assertSame(user, userRepository.findByAccessToken("token-2").orElseThrow());
+    }
+
+    @Test
+    void save_ReplacingInstance_KeepsSingleEntry() {
+        userRepository.save(user("testuser", "token-1"));
+        User replacement = user("testuser", null);
+
+        userRepository.save(replacement);
+
+        assertEquals(1, userRepository.findAll().size());
+        assertSame(replacement, userRepository.findByUsername("testuser").orElseThrow());
+        assertTrue(userRepository.findByAccessToken("token-1").isEmpty());
+    }
+
+    @Test
+    void addAndRemoveFriend_UpdateGraphAndPersistedList() throws Exception {
+        userRepository.save(user("user1", null));
+        userRepository.save(user("user2", null));
+
+        assertTrue(userRepository.addFriend("user1", "user2"));
+        assertFalse(userRepository.addFriend("user1", "user2"));
+        assertFalse(userRepository.addFriend("user1", "nobody"));
+
+        FriendGraph graph = userRepository.getFriendGraph();
+        assertTrue(graph.hasFriend("user1", "user2"));
+        assertFalse(graph.hasFriend("user2", "user1"));
+        assertEquals(List.of("user1"), graph.getFollowers("user2"));
+        assertEquals(List.of("user2"), userRepository.findByUsername("user1").orElseThrow().getFriends());
+
+        // Reloaded from users.json, the graph is rebuilt from the saved lists
+        UserRepository reloaded = new UserRepository();
+        ReflectionTestUtils.setField(reloaded, "usersFile", tempDir.resolve("users.json").toFile());
+        for (User user : new ObjectMapper().findAndRegisterModules()
+                .readValue(tempDir.resolve("users.json").toFile(), User[].class)) {
+            ReflectionTestUtils.invokeMethod(reloaded, "index", user);
+        }
+        assertTrue(reloaded.getFriendGraph().hasFriend("user1", "user2"));
+
+        assertTrue(userRepository.removeFriend("user1", "user2"));
+        assertFalse(userRepository.removeFriend("user1", "user2"));
+        assertTrue(graph.getFollowers("user2").isEmpty());
+        assertEquals(List.of(), userRepository.findByUsername("user1").orElseThrow().getFriends());
+    }
+
+    @Test
+    void friendGraph_ManyFriends_AddRemoveAndReplaceKeepBothDirectionsInStep() {
+        FriendGraph graph = new FriendGraph();
+        List<String> friends = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            friends.add("friend" + i);
+        }
+        graph.setFriends("owner", friends);
+        assertEquals(5000, graph.getEdgeCount());
+        assertTrue(graph.hasFriend("owner", "friend4999"));
+
+        for (int i = 0; i < 5000; i += 2) {
+            assertTrue(graph.removeFriend("owner", "friend" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i % 2 == 1, graph.hasFriend("owner", "friend" + i), "friend" + i);
+            assertEquals(i % 2 == 1 ? List.of("owner") : List.of(), graph.getFollowers("friend" + i));
+        }
+
+        graph.setFriends("owner", List.of("friend1", "friend2"));
+        assertEquals(List.of("friend1", "friend2"), graph.getFriends("owner"));
+        assertEquals(2, graph.getEdgeCount());
+        assertTrue(graph.getFollowers("friend3").isEmpty());
+    }
+
+    @Test
+    void findByAccessToken_Null_ReturnsEmpty() {
+        assertTrue(userRepository.findByAccessToken(null).isEmpty());
+    }
+
+    @Test
+    void load_PartitionCountChanges_MovesUsersToTheirPartitions() {
+        for (int i = 0; i < 30; i++) {
+            userRepository.save(user("user" + i, "token-" + i));
+        }
+
+        for (int count : new int[]{3, 5, 1}) {
+            UserRepository reloaded = partitioned(count);
+            assertEquals(30, reloaded.findAll().size(), "users after going to " + count);
+            for (int i = 0; i < 30; i++) {
+                assertEquals("user" + i, reloaded.findByAccessToken("token-" + i).orElseThrow().getUsername());
+            }
+            Path partitionsDir = tempDir.resolve("users-partitions");
+            if (count > 1) {
+                HashRing ring = new HashRing(count);
+                for (int p = 0; p < count; p++) {
+                    List<User> users = readUsers(partitionsDir.resolve(p + "/users.json"));
+                    for (User user : users) {
+                        assertEquals(p, ring.partitionOf(user.getUsername()), user.getUsername());
+                    }
+                }
+                assertFalse(partitionsDir.resolve(String.valueOf(count)).toFile().exists());
+                // Each partition indexes only its own users
+                List<?> partitions = (List<?>) ReflectionTestUtils.getField(reloaded, "partitions");
+                for (int p = 0; p < count; p++) {
+                    Map<?, ?> indexed = (Map<?, ?>) ReflectionTestUtils.getField(partitions.get(p), "users");
+                    for (Object username : indexed.keySet()) {
+                        assertEquals(p, ring.partitionOf((String) username));
+                    }
+                }
+                assertTrue(readUsers(tempDir.resolve("users.json")).isEmpty());
+                // Saves go to the user's partition file
+                User renamed = reloaded.findByUsername("user7").orElseThrow();
+                renamed.setAccessToken("token-7-" + count);
+                reloaded.save(renamed);
+                assertTrue(readUsers(partitionsDir.resolve(ring.partitionOf("user7") + "/users.json")).stream()
+                        .anyMatch(u -> renamed.getAccessToken().equals(u.getAccessToken())));
+                renamed.setAccessToken("token-7");
+                reloaded.save(renamed);
+            } else {
+                assertFalse(partitionsDir.toFile().exists());
+                assertEquals(30, readUsers(tempDir.resolve("users.json")).size());
+            }
+            ReflectionTestUtils.invokeMethod(reloaded, "shutdown");
+        }
+    }
+
+    private UserRepository partitioned(int count) {
+        UserRepository repository = new UserRepository();
+        ReflectionTestUtils.setField(repository, "usersFile", tempDir.resolve("users.json").toFile());
+        ReflectionTestUtils.setField(repository, "partitionCount", count);
+        ReflectionTestUtils.invokeMethod(repository, "load");
+        return repository;
+    }
+
+    private static List<User> readUsers(Path file) {
+        try {
+            return List.of(new ObjectMapper().findAndRegisterModules().readValue(file.toFile(), User[].class));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
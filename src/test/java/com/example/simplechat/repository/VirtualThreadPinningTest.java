@@ -0,0 +1,78 @@
+package com.example.simplechat.repository;
+
+import com.example.simplechat.model.Message;
+import com.example.simplechat.model.User;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Hammers the repositories from virtual threads and fails if any of them parked while pinned to
+// its carrier, e.g. because it waited for a lock or a future inside a synchronized section.
+class VirtualThreadPinningTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void repositories_ContendedWritesOnVirtualThreads_DoNotPin() throws Exception {
+        MessageRepository messageRepository = new MessageRepository();
+        ReflectionTestUtils.setField(messageRepository, "persistenceMode", "log");
+        ReflectionTestUtils.setField(messageRepository, "fsyncPolicy", MessageLog.FsyncPolicy.NEVER);
+        ReflectionTestUtils.setField(messageRepository, "messagesFile", tempDir.resolve("messages.json").toFile());
+        ReflectionTestUtils.invokeMethod(messageRepository, "load");
+
+        UserRepository userRepository = new UserRepository();
+        ReflectionTestUtils.setField(userRepository, "usersFile", tempDir.resolve("users.json").toFile());
+        ReflectionTestUtils.invokeMethod(userRepository, "load");
+
+        Path jfrFile = tempDir.resolve("pinning.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < 200; i++) {
+                    int n = i;
+                    executor.submit(() -> {
+                        Message message = new Message();
+                        message.setId(UUID.randomUUID().toString());
+                        message.setSender("sender");
+                        message.setReceiver("receiver" + (n % 10));
+                        message.setContent("Hello " + n);
+                        message.setTimestamp(LocalDateTime.now());
+                        messageRepository.save(message);
+                        messageRepository.markMessagesAsRead(messageRepository.findUnreadMessagesForUser(message.getReceiver()));
+
+                        User user = new User();
+                        user.setUsername("user" + (n % 10));
+                        user.setFriends(List.of());
+                        user.setAccessToken(UUID.randomUUID().toString());
+                        userRepository.save(user);
+                        return null;
+                    });
+                }
+            }
+
+            recording.stop();
+            recording.dump(jfrFile);
+        }
+
+        List<RecordedEvent> pinned = RecordingFile.readAllEvents(jfrFile);
+        assertTrue(pinned.isEmpty(), () -> "Virtual threads pinned: " + pinned);
+        assertEquals(200, messageRepository.findAll().size());
+        ReflectionTestUtils.invokeMethod(messageRepository, "shutdown");
+    }
+}
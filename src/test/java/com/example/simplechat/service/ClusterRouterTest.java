@@ -0,0 +1,81 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterRouterTest {
+
+    private final InProcessDeliveryBus.Network network = new InProcessDeliveryBus.Network();
+
+    private record Node(ClusterRouter router, UserService users, List<Message> received) {
+    }
+
+    private Node node(String id) {
+        UserService users = new UserService();
+        ClusterRouter router = new ClusterRouter();
+        ReflectionTestUtils.setField(router, "userService", users);
+        List<Message> received = new ArrayList<>();
+        router.setDeliveryHandler(received::add);
+        router.start(new InProcessDeliveryBus(network, id));
+        return new Node(router, users, received);
+    }
+
+    private Message message(String id, String receiver) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender("alice");
+        message.setReceiver(receiver);
+        message.setContent("Hello " + receiver);
+        message.setSeq(7);
+        return message;
+    }
+
+    @Test
+    void route_ToTheNodeTheReceiverIsOnlineOn_AndKeepsTheRestHere() {
+        Node a = node("a");
+        Node b = node("b");
+        b.users().setOnlineStatus("bob", true);
+        b.users().flushPresence();
+        a.users().setOnlineStatus("alice", true);
+        a.users().flushPresence();
+
+        assertEquals(Optional.of("b"), a.router().findNode("bob"));
+        Message toBob = message("m1", "bob");
+        assertTrue(a.router().route(toBob));
+        assertEquals(1, b.received().size());
+        assertEquals("m1", b.received().get(0).getId());
+        assertNotSame(toBob, b.received().get(0));
+
+        // Online here, or nowhere known: delivered here
+        assertFalse(b.router().route(message("m2", "bob")));
+        assertFalse(a.router().route(message("m3", "carol")));
+        assertTrue(b.router().route(message("m4", "alice")));
+        assertEquals(List.of("m1", "m4"), List.of(b.received().get(0).getId(), a.received().get(0).getId()));
+
+        b.users().setOnlineStatus("bob", false);
+        b.users().flushPresence();
+        assertEquals(Optional.empty(), a.router().findNode("bob"));
+        assertFalse(a.router().route(message("m5", "bob")));
+    }
+
+    @Test
+    void start_NodeJoiningLate_LearnsWhoIsAlreadyOnline_AndAGoneNodeIsNotRoutedTo() {
+        Node a = node("a");
+        a.users().setOnlineStatus("alice", true);
+        a.users().flushPresence(); // Nobody else to tell yet
+
+        Node b = node("b");
+        assertEquals(Optional.of("a"), b.router().findNode("alice"));
+
+        ReflectionTestUtils.invokeMethod(a.router(), "shutdown");
+        assertFalse(b.router().route(message("m1", "alice")));
+        assertEquals(Optional.empty(), b.router().findNode("alice"));
+    }
+}
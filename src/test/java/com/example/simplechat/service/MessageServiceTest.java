@@ -1,7 +1,13 @@
 package com.example.simplechat.service;
 
+import com.example.simplechat.model.ConversationCursor;
+import com.example.simplechat.model.ConversationPage;
 import com.example.simplechat.model.Message;
+import com.example.simplechat.model.FileMetadata;
+import com.example.simplechat.repository.BlobStore;
+import com.example.simplechat.repository.FileMetadataRepository;
 import com.example.simplechat.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -21,6 +27,8 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -37,6 +45,9 @@ class MessageServiceTest {
     @Mock
     private UserService userService;
 
+    @Mock
+    private FileMetadataRepository fileMetadataRepository;
+
     @InjectMocks
     private MessageService messageService;
 
@@ -87,6 +98,103 @@ class MessageServiceTest {
         assertEquals(1, messageQueues.get("receiver").size());
     }
 
+    @Test
+    void sendMessage_ListenerRegistered_ListenerNotified() {
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        when(userService.isUserOnline("receiver")).thenReturn(true);
+        Runnable listener = mock(Runnable.class);
+        Runnable otherListener = mock(Runnable.class);
+        messageService.addMessageListener("receiver", listener);
+        messageService.addMessageListener("someone-else", otherListener);
+
+        messageService.sendMessage("sender", "receiver", "Hello!", null);
+
+        verify(listener).run();
+        verify(otherListener, never()).run();
+
+        messageService.removeMessageListener("receiver", listener);
+        messageService.sendMessage("sender", "receiver", "Hello again!", null);
+        verify(listener, times(1)).run();
+    }
+
+    @Test
+    void sendMessage_ReceiverOnAnotherNode_RoutedThere_AndNotStoredHere() {
+        ClusterRouter clusterRouter = mock(ClusterRouter.class);
+        ReflectionTestUtils.setField(messageService, "clusterRouter", clusterRouter);
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        when(clusterRouter.route(any(Message.class))).thenReturn(true);
+
+        assertEquals(1, messageService.sendMessage("sender", "receiver", "Hello!", null));
+
+        verify(messageRepository, never()).save(any(Message.class));
+        assertFalse(messageQueues.containsKey("receiver"));
+    }
+
+    @Test
+    void sendMessage_File_ReceiverOnAnotherNode_BlobKeptForThem() throws IOException {
+        ClusterRouter clusterRouter = mock(ClusterRouter.class);
+        ReflectionTestUtils.setField(messageService, "clusterRouter", clusterRouter);
+        MockMultipartFile file = new MockMultipartFile("file", "photo.jpg", "image/jpeg", "routed".getBytes());
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        when(clusterRouter.route(any(Message.class))).thenReturn(true);
+        when(fileMetadataRepository.addRoutedReference(anyString(), anyLong())).thenReturn(true);
+
+        assertEquals(1, messageService.sendMessage("sender", "receiver", null, file));
+
+        ArgumentCaptor<Message> routed = ArgumentCaptor.forClass(Message.class);
+        verify(clusterRouter).route(routed.capture());
+        String blobName = routed.getValue().getFileLink().substring("/files/".length());
+        BlobStore blobStore = ReflectionTestUtils.invokeMethod(messageService, "blobStore");
+        // The other node links here, so the blob stays and its reference is persisted
+        assertEquals(1, blobStore.getRefCount(blobName));
+        assertTrue(Files.exists(blobStore.path(blobName)));
+        verify(fileMetadataRepository).addRoutedReference(eq(blobName), anyLong());
+    }
+
+    @Test
+    void sendMulticast_File_RoutedReceiversHoldRoutedReference() throws IOException {
+        ClusterRouter clusterRouter = mock(ClusterRouter.class);
+        ReflectionTestUtils.setField(messageService, "clusterRouter", clusterRouter);
+        MockMultipartFile file = new MockMultipartFile("file", "notice.txt", "text/plain", "routed".getBytes());
+        when(userService.isFriend(eq("sender"), anyString())).thenReturn(true);
+        when(clusterRouter.route(any(Message.class))).thenAnswer(inv -> ((Message) inv.getArgument(0)).getReceiver().equals("remote"));
+        when(messageRepository.saveAsync(any(Message.class))).thenReturn(java.util.concurrent.CompletableFuture.completedFuture(null));
+        when(fileMetadataRepository.addRoutedReference(anyString(), anyLong())).thenReturn(true);
+
+        messageService.sendMulticast("sender", List.of("remote", "local"), null, file);
+
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository).saveAsync(saved.capture());
+        String blobName = saved.getValue().getFileLink().substring("/files/".length());
+        BlobStore blobStore = ReflectionTestUtils.invokeMethod(messageService, "blobStore");
+        assertEquals(2, blobStore.getRefCount(blobName));
+
+        // The local message giving its reference up leaves the routed one
+        messageService.releaseAttachment(saved.getValue());
+        assertEquals(1, blobStore.getRefCount(blobName));
+        assertTrue(Files.exists(blobStore.path(blobName)));
+    }
+
+    @Test
+    void compactMessages_RoutedReferenceExpired_BlobReleased() throws IOException {
+        BlobStore blobStore = ReflectionTestUtils.invokeMethod(messageService, "blobStore");
+        Path source = tempDir.resolve("routed.txt");
+        Files.writeString(source, "routed");
+        String blobName = blobStore.storeFile(source);
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFileName(blobName);
+        metadata.setRoutedReferences(1);
+        metadata.setLastRoutedMillis(System.currentTimeMillis() - java.util.concurrent.TimeUnit.DAYS.toMillis(2));
+        ReflectionTestUtils.setField(messageService, "routedAttachmentTtlDays", 1);
+        when(fileMetadataRepository.findAll()).thenReturn(List.of(metadata));
+        when(fileMetadataRepository.clearRoutedReferences(blobName)).thenReturn(1);
+
+        messageService.compactMessages();
+
+        assertEquals(0, blobStore.getRefCount(blobName));
+        assertFalse(Files.exists(blobStore.path(blobName)));
+    }
+
     @Test
     void sendMessage_NotFriends_ReturnsThree() {
         when(userService.isFriend("sender", "stranger")).thenReturn(false);
@@ -128,6 +236,43 @@ class MessageServiceTest {
         assertEquals("test content", Files.readString(storedFilePath));
     }
 
+    @Test
+    void sendMulticast_File_StoredOnce_OneReferencePerDeliveredMessage() throws IOException {
+        MockMultipartFile file = new MockMultipartFile("file", "notice.txt", "text/plain", "announcement".getBytes());
+        when(userService.isFriend(eq("sender"), anyString())).thenAnswer(inv -> !inv.getArgument(1).equals("stranger"));
+        when(userService.isUserOnline(anyString())).thenAnswer(inv -> inv.getArgument(0).equals("friend1"));
+        when(messageRepository.saveAsync(any(Message.class))).thenReturn(java.util.concurrent.CompletableFuture.completedFuture(null));
+
+        Map<String, Integer> statuses = messageService.sendMulticast("sender",
+                List.of("friend1", "stranger", "friend2", "friend1"), null, file);
+
+        assertEquals(List.of("friend1", "stranger", "friend2"), new ArrayList<>(statuses.keySet()));
+        assertEquals(List.of(1, 3, 2), new ArrayList<>(statuses.values()));
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository, times(2)).saveAsync(saved.capture());
+        verify(messageRepository, never()).save(any(Message.class));
+        String fileLink = saved.getAllValues().get(0).getFileLink();
+        assertEquals(fileLink, saved.getAllValues().get(1).getFileLink());
+        String blobName = fileLink.substring("/files/".length());
+        try (var stored = Files.list(Paths.get(tempStoragePath))) {
+            assertEquals(1, stored.filter(path -> path.getFileName().toString().equals(blobName)).count());
+        }
+        BlobStore blobStore = ReflectionTestUtils.invokeMethod(messageService, "blobStore");
+        assertEquals(2, blobStore.getRefCount(blobName));
+        assertEquals(1, messageQueues.get("friend2").size());
+    }
+
+    @Test
+    void sendMulticast_TooManyReceivers_Throws() {
+        ReflectionTestUtils.setField(messageService, "maxMulticastReceivers", 2);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> messageService.sendMulticast("sender", List.of("a", "b", "c"), "hi", null));
+        assertThrows(IllegalArgumentException.class,
+                () -> messageService.sendMulticast("sender", List.of(), "hi", null));
+        verifyNoInteractions(messageRepository);
+    }
+
     @Test
     void getNewMessages_WithUnreadFromDB_ReturnsAllMessages() {
         String username = "testuser";
@@ -159,13 +304,65 @@ class MessageServiceTest {
         assertTrue(result.contains(queueMessage));
         assertTrue(result.contains(dbMessage));
         verify(messageRepository).findUnreadMessagesForUser(username);
-        verify(messageRepository).markMessagesAsRead(argThat(list ->
-                list.size() == 2 && list.contains(dbMessage) && list.contains(queueMessage)
-        ));
+        // Handing out isn't delivery: nothing is read until the client acknowledges
+        verify(messageRepository, never()).markMessagesAsRead(anyList());
 
         assertTrue(messageQueues.get(username).isEmpty());
     }
 
+    @Test
+    void getNewMessages_MessageInQueueAndDB_ReturnedOnce() {
+        String username = "testuser";
+
+        Message message = new Message();
+        message.setId("msg-1");
+        message.setSender("friend1");
+        message.setReceiver(username);
+        message.setContent("Hello");
+        message.setTimestamp(LocalDateTime.now());
+
+        when(messageRepository.findUnreadMessagesForUser(username))
+                .thenReturn(Arrays.asList(message));
+
+        LinkedBlockingQueue<Message> userQueue = new LinkedBlockingQueue<>();
+        userQueue.offer(message);
+        messageQueues.put(username, userQueue);
+
+        List<Message> result = messageService.getNewMessages(username);
+
+        assertEquals(1, result.size());
+        verify(messageRepository, never()).markMessagesAsRead(anyList());
+    }
+
+    @Test
+    void getNewMessages_UntilAcknowledged_HandsOutTheSameMessagesAgain() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(messageService, "meterRegistry", registry);
+        List<Message> unacknowledged = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Message message = new Message();
+            message.setId("m" + i);
+            message.setReceiver("testuser");
+            message.setSeq(i * 10);
+            unacknowledged.add(message);
+        }
+        when(messageRepository.findUnreadMessagesForUser("testuser")).thenReturn(unacknowledged);
+
+        assertEquals(unacknowledged.subList(0, 2), messageService.getNewMessages("testuser", 0, 2));
+        // The response was lost: the next poll gets the same messages
+        assertEquals(unacknowledged, messageService.getNewMessages("testuser"));
+        // A stream that already took up to seq 20 only gets what follows
+        assertEquals(unacknowledged.subList(2, 3), messageService.getNewMessages("testuser", 20, 10));
+        // m1 and m2 on the second call, m3 on the third
+        assertEquals(3.0, registry.get("simplechat.messages.redelivered").counter().count());
+
+        when(messageRepository.acknowledge("testuser", 20)).thenReturn(2);
+        when(messageRepository.getDeliveryCursor("testuser")).thenReturn(20L);
+        assertEquals(20L, messageService.acknowledge("testuser", 20));
+        assertEquals(2.0, registry.get("simplechat.messages.acknowledged").counter().count());
+        assertThrows(IllegalArgumentException.class, () -> messageService.acknowledge("testuser", -1));
+    }
+
     @Test
     void getNewMessages_NoMessages_ReturnsEmptyList() {
         String username = "testuser";
@@ -179,6 +376,164 @@ class MessageServiceTest {
         verify(messageRepository, never()).markMessagesAsRead(anyList());
     }
 
+    @Test
+    void sendMessage_FileMessage_RecordsHashAndContentTypeOnce() {
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        MockMultipartFile file = new MockMultipartFile("file", "test.txt", "text/plain", "test content".getBytes());
+
+        messageService.sendMessage("sender", "receiver", null, file);
+
+        ArgumentCaptor<FileMetadata> metadata = ArgumentCaptor.forClass(FileMetadata.class);
+        verify(fileMetadataRepository).save(metadata.capture());
+        // Stored under sha256("test content")
+        assertEquals("6ae8a75555209fd6c44157c0aed8016e763ff435a19cf186f76863140143ff72", metadata.getValue().getFileName());
+        assertEquals(12, metadata.getValue().getSize());
+        assertEquals("text/plain", metadata.getValue().getContentType());
+        assertEquals(metadata.getValue().getFileName(), metadata.getValue().getSha256());
+    }
+
+    @Test
+    void sendMessage_SameFileTwice_StoresOneBlobUntilBothReleased() throws IOException {
+        when(userService.isFriend(eq("sender"), anyString())).thenReturn(true);
+        MockMultipartFile file = new MockMultipartFile("file", "photo.png", "image/png", "same bytes".getBytes());
+
+        messageService.sendMessage("sender", "friend1", null, file);
+        messageService.sendMessage("sender", "friend2", null, file);
+
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository, times(2)).save(saved.capture());
+        Message first = saved.getAllValues().get(0);
+        Message second = saved.getAllValues().get(1);
+        assertEquals(first.getFileLink(), second.getFileLink());
+        assertEquals("photo.png", second.getFileName());
+        Path blob = Paths.get(tempStoragePath, first.getFileLink().substring("/files/".length()));
+        try (var files = Files.list(Paths.get(tempStoragePath))) {
+            assertEquals(List.of(blob), files.toList());
+        }
+
+        messageService.releaseAttachment(first);
+        assertTrue(Files.exists(blob));
+        messageService.releaseAttachment(second);
+        assertFalse(Files.exists(blob));
+    }
+
+    @Test
+    void getFileMetadata_Recorded_DoesNotRehash() throws IOException {
+        Path testFile = Files.writeString(Paths.get(tempStoragePath, "known.txt"), "test content");
+        FileMetadata recorded = new FileMetadata();
+        recorded.setFileName("known.txt");
+        recorded.setSize(12);
+        recorded.setSha256("recorded-hash");
+        recorded.setLastModified(Files.getLastModifiedTime(testFile).toMillis());
+        when(fileMetadataRepository.findByFileName("known.txt")).thenReturn(Optional.of(recorded));
+
+        assertSame(recorded, messageService.getFileMetadata("known.txt", testFile));
+        verify(fileMetadataRepository, never()).save(any());
+    }
+
+    @Test
+    void sendAndGetNewMessages_RecordMetricsByStatusAndBatchSize() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(messageService, "meterRegistry", registry);
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        when(userService.isFriend("sender", "stranger")).thenReturn(false);
+        when(messageRepository.findUnreadMessagesForUser("receiver")).thenReturn(new ArrayList<>());
+
+        messageService.sendMessage("sender", "receiver", "one", null);
+        messageService.sendMessage("sender", "receiver", "two", null);
+        messageService.sendMessage("sender", "stranger", "nope", null);
+        messageService.getNewMessages("receiver");
+
+        assertEquals(2, registry.get("simplechat.messages.send").tag("status", "2").timer().count());
+        assertEquals(1, registry.get("simplechat.messages.send").tag("status", "3").timer().count());
+        assertEquals(2.0, registry.get("simplechat.messages.delivered").summary().max());
+    }
+
+    @Test
+    void getConversation_MoreThanAPage_ReturnsCursorOfOldestMessage() {
+        List<Message> found = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Message message = new Message();
+            message.setId("m" + i);
+            message.setTimestamp(LocalDateTime.of(2024, 5, 1, 12, 0, i));
+            found.add(message);
+        }
+        when(messageRepository.findConversationPage("testuser", "friend1", null, 4)).thenReturn(found);
+
+        ConversationPage page = messageService.getConversation("testuser", "friend1", null, 3);
+
+        assertEquals(found.subList(1, 4), page.getMessages());
+        ConversationCursor cursor = ConversationCursor.decode(page.getNextCursor());
+        assertEquals("m1", cursor.id());
+        assertEquals(LocalDateTime.of(2024, 5, 1, 12, 0, 1), cursor.timestamp());
+
+        when(messageRepository.findConversationPage("testuser", "friend1", cursor, 4)).thenReturn(found.subList(0, 1));
+        ConversationPage last = messageService.getConversation("testuser", "friend1", page.getNextCursor(), 3);
+        assertEquals(found.subList(0, 1), last.getMessages());
+        assertNull(last.getNextCursor());
+        verify(messageRepository, never()).markMessagesAsRead(anyList());
+    }
+
+    @Test
+    void getConversation_BadCursorOrLimit_Throws_AndLargeLimitIsCapped() {
+        assertThrows(IllegalArgumentException.class, () -> messageService.getConversation("testuser", "friend1", "not a cursor!", 10));
+        assertThrows(IllegalArgumentException.class, () -> messageService.getConversation("testuser", "friend1", null, 0));
+
+        messageService.getConversation("testuser", "friend1", null, 1_000_000);
+
+        verify(messageRepository).findConversationPage("testuser", "friend1", null, 101);
+    }
+
+    @Test
+    void getAttachmentName_RecordedPerUserWithTheBlobsMetadata() {
+        String blobName = "b".repeat(64);
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFileName(blobName);
+        metadata.setNamesByUser(Map.of("testuser", "report.pdf", "someone", "theirs.txt"));
+        when(fileMetadataRepository.findByFileName(anyString())).thenReturn(Optional.empty());
+        when(fileMetadataRepository.findByFileName(blobName)).thenReturn(Optional.of(metadata));
+
+        assertEquals("report.pdf", messageService.getAttachmentName(blobName, "testuser"));
+        assertNull(messageService.getAttachmentName(blobName, "stranger"));
+        assertNull(messageService.getAttachmentName("c".repeat(64), "testuser"));
+        verifyNoInteractions(messageRepository); // No history scan on the download path
+    }
+
+    @Test
+    void sendMessage_File_RecordsTheNameForSenderAndReceiver() {
+        MockMultipartFile file = new MockMultipartFile("file", "report.pdf", "application/pdf", "pdf".getBytes());
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        when(userService.isUserOnline("receiver")).thenReturn(true);
+
+        messageService.sendMessage("sender", "receiver", null, file);
+
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(messageRepository).save(saved.capture());
+        String blobName = saved.getValue().getFileLink().substring("/files/".length());
+        verify(fileMetadataRepository).recordNames(blobName, Map.of("sender", "report.pdf", "receiver", "report.pdf"));
+    }
+
+    @Test
+    void init_AttachmentsWithoutRecordedNames_NamesTakenFromTheirMessages() {
+        String blobName = "d".repeat(64);
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFileName(blobName);
+        Message message = new Message();
+        message.setSender("friend");
+        message.setReceiver("testuser");
+        message.setFileLink("/files/" + blobName);
+        message.setFileName("old.pdf");
+        when(messageRepository.findAll()).thenReturn(List.of(message));
+        when(fileMetadataRepository.findByFileName(blobName)).thenReturn(Optional.of(metadata));
+
+        ReflectionTestUtils.invokeMethod(messageService, "init");
+        try {
+            verify(fileMetadataRepository).recordNames(blobName, Map.of("friend", "old.pdf", "testuser", "old.pdf"));
+        } finally {
+            ReflectionTestUtils.invokeMethod(messageService, "shutdown");
+        }
+    }
+
     @Test
     void getFilePath_ValidFile_ReturnsPath() throws IOException {
         String filename = "test-file.txt";
@@ -209,4 +564,44 @@ class MessageServiceTest {
             messageService.getFilePath(maliciousFilename, "testuser");
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void acquireSendPermit_OverTheRate_ReturnsWaitAndCountsThrottled() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(messageService, "meterRegistry", registry);
+        // Unit tests don't start a limiter, so nothing is throttled
+        assertEquals(0, messageService.acquireSendPermit("sender"));
+
+        ReflectionTestUtils.setField(messageService, "sendLimiter", new RateLimiter(1, 2, () -> 0));
+        assertEquals(0, messageService.acquireSendPermit("sender"));
+        assertEquals(0, messageService.acquireSendPermit("sender"));
+        assertEquals(1000, messageService.acquireSendPermit("sender"));
+        assertEquals(0, messageService.acquireSendPermit("other"));
+        assertEquals(1, registry.counter("simplechat.send.throttled").count());
+    }
+
+    @Test
+    void sendMessage_ReceiverQueueFull_MessageStaysInRepository() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(messageService, "meterRegistry", registry);
+        ReflectionTestUtils.setField(messageService, "maxQueuedPerReceiver", 2);
+        when(userService.isFriend("sender", "receiver")).thenReturn(true);
+        List<Message> saved = new ArrayList<>();
+        doAnswer(invocation -> {
+            Message message = invocation.getArgument(0);
+            message.setSeq(saved.size() + 1);
+            saved.add(message);
+            return null;
+        }).when(messageRepository).save(any(Message.class));
+        when(messageRepository.findUnreadMessagesForUser("receiver")).thenReturn(saved);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, messageService.sendMessage("sender", "receiver", "m" + i, null));
+        }
+
+        assertEquals(2, messageQueues.get("receiver").size());
+        assertEquals(1, registry.counter("simplechat.queues.overflow").count());
+        // The one that didn't fit is still handed out
+        assertEquals(3, messageService.getNewMessages("receiver").size());
+    }
+}
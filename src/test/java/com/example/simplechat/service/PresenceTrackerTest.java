@@ -0,0 +1,58 @@
+package com.example.simplechat.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTrackerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final List<String> lapsed = new ArrayList<>();
+    private final PresenceTracker presence = new PresenceTracker(1_000, 100, now::get, lapsed::add);
+
+    @Test
+    void renew_MovesTheDeadline_SoAUserPollingInTimeNeverLapses() {
+        presence.renew("user1");
+        presence.renew("user2");
+        for (int i = 0; i < 5; i++) {
+            now.addAndGet(600);
+            presence.renew("user1");
+            presence.expire();
+        }
+        assertEquals(List.of("user2"), lapsed);
+        assertTrue(presence.isPresent("user1"));
+        assertFalse(presence.isPresent("user2"));
+    }
+
+    @Test
+    void hold_KeepsTheUserPresent_AndTheLastReleaseStartsALease() {
+        presence.hold("user1");
+        presence.hold("user1");
+        assertTrue(presence.end("user1")); // Still held by its connections
+        now.addAndGet(5_000);
+        presence.expire();
+        assertTrue(lapsed.isEmpty());
+
+        presence.release("user1");
+        presence.release("user1");
+        assertFalse(presence.isHeld("user1"));
+        assertTrue(presence.isPresent("user1"));
+        now.addAndGet(1_100);
+        assertEquals(1, presence.expire());
+        assertEquals(List.of("user1"), lapsed);
+    }
+
+    @Test
+    void expire_UserHeldAfterTheLeaseWasSet_DoesNotLapse() {
+        presence.renew("user1");
+        presence.hold("user1");
+        now.addAndGet(1_100);
+        assertEquals(1, presence.expire());
+        assertTrue(lapsed.isEmpty());
+        assertTrue(presence.isPresent("user1"));
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class PushServiceTest {
+
+    @Mock
+    private MessageService messageService;
+
+    @Mock
+    private UserService userService;
+
+    @InjectMocks
+    private PushService pushService;
+
+    @BeforeEach
+    void setUp() {
+        // Run writer tasks on the calling thread
+        ReflectionTestUtils.setField(pushService, "writers", (Executor) Runnable::run);
+        ReflectionTestUtils.setField(pushService, "bufferSize", 2);
+    }
+
+    private Message message(String id) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender("friend1");
+        message.setReceiver("testuser");
+        message.setContent("Hello " + id);
+        message.setTimestamp(LocalDateTime.now());
+        return message;
+    }
+
+    @Test
+    void connect_RegistersListenerAndMarksOnline() {
+        when(messageService.getNewMessages("testuser", 0L, 2)).thenReturn(Collections.emptyList());
+
+        SseEmitter emitter = pushService.connect("testuser");
+
+        assertNotNull(emitter);
+        assertEquals(1, pushService.getConnectionCount("testuser"));
+        verify(messageService).addMessageListener(eq("testuser"), any(Runnable.class));
+        verify(userService).holdPresence("testuser");
+        // Pending messages are flushed right away
+        verify(messageService).getNewMessages("testuser", 0L, 2);
+    }
+
+    @Test
+    void listener_PullsAtMostBufferSizePerBatch() {
+        when(messageService.getNewMessages("testuser", 0L, 2))
+                .thenReturn(Collections.emptyList())
+                .thenReturn(List.of(message("m1"), message("m2")))
+                .thenReturn(List.of(message("m3")));
+        pushService.connect("testuser");
+        ArgumentCaptor<Runnable> listenerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(messageService).addMessageListener(eq("testuser"), listenerCaptor.capture());
+
+        listenerCaptor.getValue().run();
+
+        // A full batch means there may be more waiting, so the writer pulls again
+        verify(messageService, times(3)).getNewMessages("testuser", 0L, 2);
+    }
+
+    @Test
+    void shutdown_RemovesThePresenceListenerItAdded() {
+        ArgumentCaptor<Consumer<Map<String, Boolean>>> added = ArgumentCaptor.forClass(Consumer.class);
+
+        ReflectionTestUtils.invokeMethod(pushService, "init");
+        ReflectionTestUtils.invokeMethod(pushService, "shutdown");
+
+        verify(userService).addPresenceListener(added.capture());
+        verify(userService).removePresenceListener(same(added.getValue()));
+    }
+}
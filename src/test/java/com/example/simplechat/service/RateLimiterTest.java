@@ -0,0 +1,86 @@
+package com.example.simplechat.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private final AtomicLong now = new AtomicLong(5 * SECOND);
+    // 2 per second, 3 at once
+    private final RateLimiter limiter = new RateLimiter(2, 3, now::get);
+
+    @Test
+    void tryAcquire_BurstThenRefillAtRate() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("user1"));
+        }
+        assertEquals(SECOND / 2, limiter.tryAcquire("user1"));
+        // Other users have their own bucket
+        assertEquals(0, limiter.tryAcquire("user2"));
+
+        now.addAndGet(SECOND / 4);
+        assertEquals(SECOND / 4, limiter.tryAcquire("user1"));
+        now.addAndGet(SECOND / 4);
+        assertEquals(0, limiter.tryAcquire("user1"));
+        assertTrue(limiter.tryAcquire("user1") > 0);
+
+        // A long pause refills the bucket, but never beyond the burst
+        now.addAndGet(60 * SECOND);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("user1"));
+        }
+        assertTrue(limiter.tryAcquire("user1") > 0);
+    }
+
+    @Test
+    void prune_DropsOnlyFullBuckets() {
+        limiter.tryAcquire("user1");
+        limiter.tryAcquire("user2");
+        limiter.tryAcquire("user2");
+        limiter.tryAcquire("user2");
+        now.addAndGet(SECOND / 2);
+        assertEquals(1, limiter.prune());
+        assertEquals(1, limiter.size());
+        // user2's bucket still remembers the burst
+        assertEquals(0, limiter.tryAcquire("user2"));
+        assertTrue(limiter.tryAcquire("user2") > 0);
+    }
+
+    @Test
+    void tryAcquire_ConcurrentCallers_GetExactlyTheBurst() throws InterruptedException {
+        RateLimiter shared = new RateLimiter(1, 50, now::get);
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100; i++) {
+                    if (shared.tryAcquire("user1") == 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, granted.get());
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.simplechat.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStoreTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final SessionStore sessions = new SessionStore(100, now::get);
+
+    @Test
+    void create_SeveralSessionsPerUser_EachExpiresOnItsOwn() {
+        SessionStore.Session first = sessions.create("user1", 1_000);
+        now.addAndGet(500);
+        SessionStore.Session second = sessions.create("user1", 1_000);
+        assertEquals(2, sessions.countForUser("user1"));
+
+        now.addAndGet(500);
+        // Refused as soon as it expires, before the wheel has removed it
+        assertTrue(sessions.find(first.token()).isEmpty());
+        assertEquals("user1", sessions.find(second.token()).orElseThrow().username());
+
+        assertEquals(1, sessions.expire());
+        assertEquals(1, sessions.size());
+        assertEquals(1, sessions.countForUser("user1"));
+    }
+
+    @Test
+    void revoke_EndsOneSession_RevokeAllEndsTheRest() {
+        SessionStore.Session phone = sessions.create("user1", 60_000);
+        SessionStore.Session laptop = sessions.create("user1", 60_000);
+        SessionStore.Session other = sessions.create("user2", 60_000);
+
+        assertTrue(sessions.revoke(phone.token()).isPresent());
+        assertTrue(sessions.revoke(phone.token()).isEmpty());
+        assertTrue(sessions.find(phone.token()).isEmpty());
+        assertTrue(sessions.find(laptop.token()).isPresent());
+
+        assertEquals(1, sessions.revokeAll("user1"));
+        assertTrue(sessions.find(laptop.token()).isEmpty());
+        assertTrue(sessions.find(other.token()).isPresent());
+        now.addAndGet(60_000);
+        assertEquals(1, sessions.expire()); // Revoked tokens left the wheel too
+    }
+
+    @Test
+    void add_ExpiredTokenAddedAgain_SurvivesTheOldDeadline() {
+        sessions.add("token", "user1", now.get() + 200);
+        now.addAndGet(300);
+        sessions.add("token", "user1", now.get() + 1_000);
+
+        sessions.expire();
+        assertTrue(sessions.find("token").isPresent());
+    }
+}
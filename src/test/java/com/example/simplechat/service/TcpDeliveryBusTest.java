@@ -0,0 +1,134 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpDeliveryBusTest {
+
+    // Records what a node receives, for the test to wait on
+    private static final class Recorder implements DeliveryBus.Receiver {
+        final BlockingQueue<Message> messages = new ArrayBlockingQueue<>(16);
+        final BlockingQueue<String> events = new ArrayBlockingQueue<>(16);
+
+        @Override
+        public boolean message(Message message) {
+            return messages.offer(message);
+        }
+
+        @Override
+        public void presence(String nodeId, Map<String, Boolean> presence) {
+            events.offer("presence " + nodeId + " " + presence);
+        }
+
+        @Override
+        public void joined(String nodeId) {
+            events.offer("joined " + nodeId);
+        }
+    }
+
+    private static Message message(String id) {
+        Message message = new Message();
+        message.setId(id);
+        message.setSender("alice");
+        message.setReceiver("bob");
+        message.setContent("Hello");
+        message.setTimestamp(LocalDateTime.of(2024, 1, 2, 3, 4, 5));
+        message.setSeq(42);
+        return message;
+    }
+
+    @Test
+    void send_StoredByThePeer_AndFailsOnceThePeerIsGone() throws Exception {
+        TcpDeliveryBus a = new TcpDeliveryBus("a", "127.0.0.1", 0);
+        TcpDeliveryBus b = new TcpDeliveryBus("b", "127.0.0.1", 0);
+        a.addPeer("b", new InetSocketAddress("127.0.0.1", b.getPort()));
+        b.addPeer("a", new InetSocketAddress("127.0.0.1", a.getPort()));
+        Recorder atA = new Recorder();
+        Recorder atB = new Recorder();
+        try {
+            a.start(atA); // b isn't listening for it yet
+            b.start(atB);
+            assertEquals("joined b", atA.events.poll(5, TimeUnit.SECONDS));
+
+            b.announce(Map.of("bob", true));
+            assertEquals("presence b {bob=true}", atA.events.poll(5, TimeUnit.SECONDS));
+            assertTrue(a.send("b", message("m1")));
+            assertEquals(message("m1"), atB.messages.poll(5, TimeUnit.SECONDS));
+            assertEquals("joined a", atB.events.poll(5, TimeUnit.SECONDS));
+            assertFalse(a.send("c", message("m2")));
+        } finally {
+            b.close();
+        }
+        assertFalse(a.send("b", message("m3")));
+        a.close();
+    }
+
+    @Test
+    void send_ToANodeInAnotherJvm() throws Exception {
+        TcpDeliveryBus a = new TcpDeliveryBus("a", "127.0.0.1", 0);
+        Recorder atA = new Recorder();
+        a.start(atA);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ChildNode.class.getName(), "b", String.valueOf(a.getPort()))
+                .redirectErrorStream(true)
+                .start();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+            String port = out.readLine();
+            assertNotNull(port);
+            assertTrue(port.startsWith("PORT "), port);
+            a.addPeer("b", new InetSocketAddress("127.0.0.1", Integer.parseInt(port.substring(5))));
+
+            assertEquals("joined b", atA.events.poll(10, TimeUnit.SECONDS));
+            assertEquals("presence b {bob=true}", atA.events.poll(10, TimeUnit.SECONDS));
+            assertTrue(a.send("b", message("m1")));
+            assertEquals("MESSAGE m1 bob 42", out.readLine());
+        } finally {
+            child.destroy();
+            child.waitFor(10, TimeUnit.SECONDS);
+        }
+        assertFalse(a.send("b", message("m2")));
+        a.close();
+    }
+
+    // The other JVM: a node that reports the port it listens on and every message it gets
+    public static final class ChildNode {
+        public static void main(String[] args) throws Exception {
+            TcpDeliveryBus bus = new TcpDeliveryBus(args[0], "127.0.0.1", 0);
+            bus.addPeer("a", new InetSocketAddress("127.0.0.1", Integer.parseInt(args[1])));
+            bus.start(new DeliveryBus.Receiver() {
+                @Override
+                public boolean message(Message message) {
+                    System.out.println("MESSAGE " + message.getId() + " " + message.getReceiver() + " " + message.getSeq());
+                    System.out.flush();
+                    return true;
+                }
+
+                @Override
+                public void presence(String nodeId, Map<String, Boolean> presence) {
+                }
+
+                @Override
+                public void joined(String nodeId) {
+                }
+            });
+            bus.announce(Map.of("bob", true));
+            System.out.println("PORT " + bus.getPort());
+            System.out.flush();
+            Thread.sleep(60_000);
+        }
+    }
+}
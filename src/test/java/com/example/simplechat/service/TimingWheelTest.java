@@ -0,0 +1,56 @@
+package com.example.simplechat.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    private final List<String> expired = new ArrayList<>();
+    // 10 ms ticks, 8 buckets: one rotation is 80 ms
+    private final TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0, expired::add);
+
+    @Test
+    void advance_ExpiresOnlyDueKeys_IncludingThoseSeveralRotationsAway() {
+        wheel.schedule("soon", 25);
+        wheel.schedule("later", 25 + 80 * 3); // Same bucket, three rotations further
+        wheel.schedule("cancelled", 30);
+        assertTrue(wheel.cancel("cancelled"));
+
+        assertEquals(0, wheel.advance(29)); // Rounded up to the next tick, never early
+        assertEquals(1, wheel.advance(30));
+        assertEquals(List.of("soon"), expired);
+        assertEquals(0, wheel.advance(200));
+        assertEquals(1, wheel.advance(270));
+        assertEquals(List.of("soon", "later"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void schedule_SameKeyAgain_MovesTheDeadline() {
+        wheel.schedule("key", 20);
+        wheel.schedule("key", 500);
+
+        assertEquals(0, wheel.advance(100));
+        assertTrue(wheel.contains("key"));
+        assertEquals(1, wheel.advance(500));
+        assertFalse(wheel.contains("key"));
+    }
+
+    @Test
+    void advance_AfterLongPause_ExpiresEverythingDue() {
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule("key" + i, i * 7L);
+        }
+        wheel.schedule("future", 10_000);
+
+        assertEquals(100, wheel.advance(5_000));
+        assertEquals(1, wheel.size());
+        // A deadline already behind the wheel goes to the next tick
+        wheel.schedule("past", 0);
+        assertEquals(1, wheel.advance(5_010));
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.simplechat.service;
+
+import com.example.simplechat.model.UploadSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class UploadServiceTest {
+
+    @Mock
+    private MessageService messageService;
+
+    @Mock
+    private UserService userService;
+
+    @InjectMocks
+    private UploadService uploadService;
+
+    @TempDir
+    Path storageRoot;
+
+    private static final byte[] CONTENT = "0123456789abcdefghij!".getBytes(StandardCharsets.UTF_8); // 21 bytes
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(uploadService, "chunkSize", 8);
+        lenient().when(messageService.getStorageRoot()).thenReturn(storageRoot);
+        lenient().when(userService.isFriend("testuser", "friend1")).thenReturn(true);
+    }
+
+    private void writeChunk(UploadSession upload, int index) throws IOException {
+        int from = index * 8;
+        byte[] chunk = Arrays.copyOfRange(CONTENT, from, Math.min(CONTENT.length, from + 8));
+        uploadService.writeChunk(upload, index, new ByteArrayInputStream(chunk));
+    }
+
+    @Test
+    void chunksOutOfOrder_ThenComplete_SendsAssembledFile() throws IOException {
+        byte[][] assembled = new byte[1][];
+        when(messageService.storeAttachment(any(Path.class), eq("notes.txt"))).thenAnswer(invocation -> {
+            assembled[0] = Files.readAllBytes(invocation.getArgument(0));
+            return "blob-hash";
+        });
+        when(messageService.sendFileMessage("testuser", "friend1", "blob-hash", "notes.txt")).thenReturn(1);
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "../notes.txt", CONTENT.length);
+        assertEquals(3, upload.getChunkCount());
+
+        writeChunk(upload, 2);
+        writeChunk(upload, 0);
+        writeChunk(upload, 1);
+        int status = uploadService.completeUpload(upload);
+
+        assertEquals(1, status);
+        assertArrayEquals(CONTENT, assembled[0]);
+        verify(messageService).sendFileMessage("testuser", "friend1", "blob-hash", "notes.txt");
+        assertNull(uploadService.getUpload(upload.getUploadId(), "testuser"));
+    }
+
+    @Test
+    void completeUpload_StoreFails_DropsTheUploadAndItsPartFile() throws IOException {
+        when(messageService.storeAttachment(any(Path.class), eq("notes.txt"))).thenThrow(new IOException("disk full"));
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "notes.txt", CONTENT.length);
+        writeChunk(upload, 0);
+        writeChunk(upload, 1);
+        writeChunk(upload, 2);
+
+        assertThrows(IOException.class, () -> uploadService.completeUpload(upload));
+
+        assertFalse(Files.exists(upload.getPartFile()));
+        assertNull(uploadService.getUpload(upload.getUploadId(), "testuser"));
+        verify(messageService, never()).sendFileMessage(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void resume_ListsMissingChunks_AndCompleteWaitsForThem() throws IOException {
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "notes.txt", CONTENT.length);
+        writeChunk(upload, 1);
+
+        // The client reconnects and asks what is left
+        UploadSession resumed = uploadService.getUpload(upload.getUploadId(), "testuser");
+        assertEquals(List.of(0, 2), resumed.getMissingChunks());
+        assertThrows(IllegalStateException.class, () -> uploadService.completeUpload(resumed));
+        verify(messageService, never()).sendFileMessage(anyString(), anyString(), anyString(), anyString());
+        assertNull(uploadService.getUpload(upload.getUploadId(), "someoneelse"));
+    }
+
+    @Test
+    void writeChunk_WrongLength_LeavesChunkMissing() throws IOException {
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "notes.txt", CONTENT.length);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> uploadService.writeChunk(upload, 0, new ByteArrayInputStream(new byte[3])));
+        assertThrows(IllegalArgumentException.class,
+                () -> uploadService.writeChunk(upload, 0, new ByteArrayInputStream(new byte[9])));
+        assertThrows(IllegalArgumentException.class,
+                () -> uploadService.writeChunk(upload, 3, new ByteArrayInputStream(new byte[8])));
+
+        assertEquals(List.of(0, 1, 2), upload.getMissingChunks());
+    }
+
+    @Test
+    void startUpload_NotFriends_ReturnsNull() throws IOException {
+        when(userService.isFriend("testuser", "stranger")).thenReturn(false);
+
+        assertNull(uploadService.startUpload("testuser", "stranger", "notes.txt", CONTENT.length));
+    }
+
+    @Test
+    void startUpload_OverMaxSizeOrTooManyChunks_RejectedBeforeAnyFile() throws IOException {
+        ReflectionTestUtils.setField(uploadService, "maxSize", 1000L);
+        assertThrows(IllegalArgumentException.class, () -> uploadService.startUpload("testuser", "friend1", "big.bin", 1001));
+
+        ReflectionTestUtils.setField(uploadService, "maxSize", Long.MAX_VALUE);
+        ReflectionTestUtils.setField(uploadService, "chunkSize", 1);
+        assertThrows(IllegalArgumentException.class, () -> uploadService.startUpload("testuser", "friend1", "big.bin", 1L << 40));
+
+        assertFalse(Files.exists(storageRoot.resolve(".uploads")));
+    }
+
+    @Test
+    void writeChunk_AfterCompletionStarted_Refused() throws IOException {
+        when(messageService.storeAttachment(any(Path.class), eq("notes.txt"))).thenReturn("blob-hash");
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "notes.txt", CONTENT.length);
+        for (int i = 0; i < 3; i++) {
+            writeChunk(upload, i);
+        }
+
+        // A chunk still being written holds completion off
+        assertTrue(upload.beginWrite());
+        assertThrows(IllegalStateException.class, () -> uploadService.completeUpload(upload));
+        upload.endWrite(0, false);
+
+        uploadService.completeUpload(upload);
+        assertThrows(IllegalStateException.class, () -> writeChunk(upload, 0));
+    }
+
+    @Test
+    void expireStaleUploads_DropsIdleUploadsAndTheirFiles() throws IOException {
+        UploadSession upload = uploadService.startUpload("testuser", "friend1", "notes.txt", CONTENT.length);
+        ReflectionTestUtils.setField(uploadService, "expiryMs", -1L);
+
+        uploadService.expireStaleUploads();
+
+        assertNull(uploadService.getUpload(upload.getUploadId(), "testuser"));
+        assertFalse(Files.exists(upload.getPartFile()));
+    }
+}
@@ -1,7 +1,9 @@
 package com.example.simplechat.service;
 
 import com.example.simplechat.model.User;
+import com.example.simplechat.repository.FriendGraph;
 import com.example.simplechat.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -11,10 +13,13 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -45,6 +50,22 @@ class UserServiceTest {
         ReflectionTestUtils.setField(userService, "onlineUsers", onlineUsers);
     }
 
+    @Test
+    void loginAndValidateAccessToken_RecordTimersByResult() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(userService, "meterRegistry", registry);
+        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+        when(userRepository.findByAccessToken("valid-token-123")).thenReturn(Optional.of(testUser));
+
+        userService.login("testuser", "hello");
+        userService.login("testuser", "wrong");
+        userService.validateAccessToken("valid-token-123");
+
+        assertEquals(1, registry.get("simplechat.login").tag("result", "success").timer().count());
+        assertEquals(1, registry.get("simplechat.login").tag("result", "failure").timer().count());
+        assertEquals(1, registry.get("simplechat.token.validation").tag("result", "valid").timer().count());
+    }
+
     @Test
     void login_ValidCredentials_ReturnsAccessToken() {
         // Arrange
@@ -134,10 +155,59 @@ class UserServiceTest {
         verify(userRepository).findByAccessToken("invalid-token");
     }
 
+    @Test
+    void login_TwiceThenLogout_RevokesOnlyThatToken() {
+        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+
+        String phone = userService.login("testuser", "hello");
+        String laptop = userService.login("testuser", "hello");
+
+        assertNotEquals(phone, laptop);
+        assertEquals(testUser, userService.validateAccessToken(phone).orElseThrow());
+        assertTrue(userService.logout(phone));
+        assertTrue(userService.validateAccessToken(phone).isEmpty());
+        assertEquals(testUser, userService.validateAccessToken(laptop).orElseThrow());
+
+        // The newest token is the persisted one; logging it out clears it so a restart can't revive it
+        assertTrue(userService.logout(laptop));
+        assertNull(testUser.getAccessToken());
+        assertTrue(userService.validateAccessToken(laptop).isEmpty());
+    }
+
+    @Test
+    void logoutAll_RevokesEverySession() {
+        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+        String phone = userService.login("testuser", "hello");
+        String laptop = userService.login("testuser", "hello");
+
+        assertEquals(2, userService.logoutAll("testuser"));
+
+        assertTrue(userService.validateAccessToken(phone).isEmpty());
+        assertTrue(userService.validateAccessToken(laptop).isEmpty());
+        assertNull(testUser.getAccessToken());
+    }
+
+    private static FriendGraph friendGraph(User... users) {
+        FriendGraph graph = new FriendGraph();
+        for (User user : users) {
+            graph.setFriends(user.getUsername(), user.getFriends());
+        }
+        return graph;
+    }
+
+    @Test
+    void addFriend_DelegatesToRepository_AndRejectsSelf() {
+        when(userRepository.addFriend("testuser", "friend3")).thenReturn(true);
+
+        assertTrue(userService.addFriend("testuser", "friend3"));
+        assertFalse(userService.addFriend("testuser", "testuser"));
+        verify(userRepository, never()).addFriend("testuser", "testuser");
+    }
+
     @Test
     void getFriends_UserExists_ReturnsFriendsList() {
         // Arrange
-        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+        when(userRepository.getFriendGraph()).thenReturn(friendGraph(testUser));
 
         // Act
         List<String> result = userService.getFriends("testuser");
@@ -146,59 +216,59 @@ class UserServiceTest {
         assertEquals(2, result.size());
         assertTrue(result.contains("friend1"));
         assertTrue(result.contains("friend2"));
-        verify(userRepository).findByUsername("testuser");
+        verify(userRepository).getFriendGraph();
     }
 
     @Test
     void getFriends_UserNotFound_ReturnsEmptyList() {
         // Arrange
-        when(userRepository.findByUsername("nonexistent")).thenReturn(Optional.empty());
+        when(userRepository.getFriendGraph()).thenReturn(friendGraph(testUser));
 
         // Act
         List<String> result = userService.getFriends("nonexistent");
 
         // Assert
         assertEquals(0, result.size());
-        verify(userRepository).findByUsername("nonexistent");
+        verify(userRepository).getFriendGraph();
     }
 
     @Test
     void isFriend_UserIsFriend_ReturnsTrue() {
         // Arrange
-        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+        when(userRepository.getFriendGraph()).thenReturn(friendGraph(testUser));
 
         // Act
         boolean result = userService.isFriend("friend1", "testuser");
 
         // Assert
         assertTrue(result);
-        verify(userRepository).findByUsername("testuser");
+        verify(userRepository).getFriendGraph();
     }
 
     @Test
     void isFriend_UserIsNotFriend_ReturnsFalse() {
         // Arrange
-        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+        when(userRepository.getFriendGraph()).thenReturn(friendGraph(testUser));
 
         // Act
         boolean result = userService.isFriend("stranger", "testuser");
 
         // Assert
         assertFalse(result);
-        verify(userRepository).findByUsername("testuser");
+        verify(userRepository).getFriendGraph();
     }
 
     @Test
     void isFriend_ReceiverNotFound_ReturnsFalse() {
         // Arrange
-        when(userRepository.findByUsername("nonexistent")).thenReturn(Optional.empty());
+        when(userRepository.getFriendGraph()).thenReturn(friendGraph(testUser));
 
         // Act
         boolean result = userService.isFriend("friend1", "nonexistent");
 
         // Assert
         assertFalse(result);
-        verify(userRepository).findByUsername("nonexistent");
+        verify(userRepository).getFriendGraph();
     }
 
     @Test
@@ -233,6 +303,41 @@ class UserServiceTest {
         assertFalse(userService.isUserOnline("testuser"));
     }
 
+    @Test
+    void presence_StaysOnlineBetweenPolls_LapsesAfterTheLease_AndPublishesBatches() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        PresenceTracker presence = new PresenceTracker(1_000, 100, now::get,
+                username -> ReflectionTestUtils.invokeMethod(userService, "lapse", username));
+        ReflectionTestUtils.setField(userService, "presence", presence);
+        List<Map<String, Boolean>> batches = new ArrayList<>();
+        userService.addPresenceListener(batches::add);
+
+        userService.setOnlineStatus("user1", true);
+        userService.setOnlineStatus("user2", true);
+        userService.holdPresence("user3");
+        userService.flushPresence();
+        assertEquals(List.of(Map.of("user1", true, "user2", true, "user3", true)), batches);
+
+        // user1 polls again within the lease; user2 doesn't; user3's stream is open
+        now.addAndGet(600);
+        userService.setOnlineStatus("user1", true);
+        now.addAndGet(600);
+        presence.expire();
+        assertTrue(userService.isUserOnline("user1"));
+        assertFalse(userService.isUserOnline("user2"));
+        assertTrue(userService.isUserOnline("user3"));
+        assertEquals(Map.of("user1", true, "user2", false, "user3", true),
+                userService.getPresence(List.of("user1", "user2", "user3")));
+
+        // Offline and back within one batch is no change at all
+        userService.setOnlineStatus("user1", false);
+        userService.setOnlineStatus("user1", true);
+        userService.flushPresence();
+        assertEquals(Map.of("user2", false), batches.get(1));
+        userService.flushPresence();
+        assertEquals(2, batches.size());
+    }
+
     @Test
     void isUserOnline_UserOnline_ReturnsTrue() {
         // Arrange